@@ -0,0 +1,158 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link CartEventSink} that publishes in constant time and delivers events to its listeners later,
+ * on a dispatcher thread of its own, so slow listeners never hold up the thread changing a cart.
+ *
+ * Events wait in a bounded lock-free ring buffer, the same one {@link AsyncCartLogger} uses.
+ * When it is full, events are dropped and counted or the publisher waits, depending on the overflow policy.
+ * Each listener sees events in the order they were published.
+ */
+public class AsyncCartEventSink implements CartEventSink, AutoCloseable {
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKED_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final BoundedQueue<CartEvent> queue;
+    private final AsyncCartLogger.OverflowPolicy overflowPolicy;
+    private final List<CartEventListener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread dispatcher;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failedDeliveries = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a sink with a 64k-event buffer that drops events when it is full.
+     */
+    public AsyncCartEventSink() {
+        this(1 << 16, AsyncCartLogger.OverflowPolicy.DROP);
+    }
+
+    /**
+     * Creates a sink and starts its dispatcher thread.
+     *
+     * @param capacity the maximum number of waiting events, rounded up to a power of two
+     * @param overflowPolicy what publishers do when the buffer is full
+     * @throws IllegalArgumentException if the capacity is not positive or the policy is null
+     */
+    public AsyncCartEventSink(int capacity, AsyncCartLogger.OverflowPolicy overflowPolicy) {
+        if (capacity <= 0 || overflowPolicy == null) {
+            throw new IllegalArgumentException("Capacity must be positive and an overflow policy given");
+        }
+        this.queue = new BoundedQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.dispatcher = new Thread(this::dispatch, "cart-event-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Subscribes a listener to every event published from now on.
+     *
+     * @param listener the listener to add
+     * @throws IllegalArgumentException if the listener is null
+     */
+    public void addListener(CartEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Unsubscribes a listener. Events already being delivered may still reach it.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(CartEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queues an event for the listeners. Returns immediately unless the buffer is full and the overflow
+     * policy is BLOCK. Events published after {@link #close()} are dropped.
+     */
+    @Override
+    public void publish(CartEvent event) {
+        while (!running || !queue.offer(event)) {
+            if (!running || overflowPolicy == AsyncCartLogger.OverflowPolicy.DROP) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(dispatcher);
+            LockSupport.parkNanos(BLOCKED_WAIT_NANOS);
+        }
+    }
+
+    /**
+     * Gets the number of events discarded because the buffer was full or the sink was closed.
+     *
+     * @return the dropped event count
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Gets the number of times a listener threw while handling an event.
+     *
+     * @return the failed delivery count
+     */
+    public long getFailedDeliveries() {
+        return failedDeliveries.sum();
+    }
+
+    /**
+     * Stops accepting events and returns once every queued event has been delivered.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        boolean interrupted = false;
+        while (dispatcher.isAlive()) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            if (!deliverBatch()) {
+                LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+            }
+        }
+        // Publishers that raced with close may still have queued events
+        while (deliverBatch()) {
+            // Keep draining
+        }
+    }
+
+    // Delivers whatever is queued; returns false if the queue was empty
+    private boolean deliverBatch() {
+        CartEvent event = queue.poll();
+        if (event == null) {
+            return false;
+        }
+        int limit = queue.capacity();
+        do {
+            for (CartEventListener listener : listeners) {
+                try {
+                    listener.onCartEvent(event);
+                } catch (RuntimeException e) {
+                    failedDeliveries.increment();
+                }
+            }
+        } while (--limit > 0 && (event = queue.poll()) != null);
+        return true;
+    }
+}
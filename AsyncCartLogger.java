@@ -0,0 +1,278 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous replacement for {@link CartFileHandler#logCartOperation(String, String)}.
+ *
+ * Callers only stamp the message with the current time and place it on a bounded lock-free queue.
+ * A single writer thread drains the queue in batches, formats the timestamps, and appends each batch to a
+ * file channel that stays open for the lifetime of the logger, so a burst of messages costs one write
+ * (and at most one fsync) instead of an open, write and close per message.
+ *
+ * Lines use the same {@code <timestamp>: <message>} layout as the synchronous logger,
+ * with the timestamp at millisecond precision.
+ */
+public class AsyncCartLogger implements Closeable {
+    /**
+     * When the writer forces logged data to the storage device.
+     */
+    public enum FsyncPolicy {
+        /** Leave flushing to the operating system. */
+        NEVER,
+        /** Force the file after every batch is written. */
+        EVERY_BATCH
+    }
+
+    /**
+     * What a caller does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the message and count it as dropped. */
+        DROP,
+        /** Wait for the writer to make room. */
+        BLOCK
+    }
+
+    private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final long BLOCKED_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final BoundedQueue<Entry> queue;
+    private final FileChannel channel;
+    private final long flushIntervalNanos;
+    private final FsyncPolicy fsyncPolicy;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+    private volatile IOException failure;
+
+    // Writer-thread state
+    private final StringBuilder text = new StringBuilder(8 * 1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(64 * 1024);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedSecondText;
+
+    /**
+     * Creates a logger with a 64k-message queue that flushes every 100 ms, never fsyncs and drops on overflow.
+     *
+     * @param logFilename the name of the log file, created if it doesn't exist
+     * @throws IOException if the log file cannot be opened
+     */
+    public AsyncCartLogger(String logFilename) throws IOException {
+        this(logFilename, 1 << 16, 100, FsyncPolicy.NEVER, OverflowPolicy.DROP);
+    }
+
+    /**
+     * Creates a logger and starts its writer thread.
+     * A shutdown hook drains the queue if the JVM exits before {@link #close()} is called.
+     *
+     * @param logFilename the name of the log file, created if it doesn't exist
+     * @param capacity the maximum number of queued messages, rounded up to a power of two
+     * @param flushIntervalMillis the longest time a message waits in the queue before being written
+     * @param fsyncPolicy when written data is forced to the storage device
+     * @param overflowPolicy what callers do when the queue is full
+     * @throws IOException if the log file cannot be opened
+     * @throws IllegalArgumentException if the capacity or flush interval is not positive
+     */
+    public AsyncCartLogger(String logFilename, int capacity, long flushIntervalMillis,
+                           FsyncPolicy fsyncPolicy, OverflowPolicy overflowPolicy) throws IOException {
+        if (capacity <= 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Capacity and flush interval must be positive.");
+        }
+        this.queue = new BoundedQueue<>(capacity);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.fsyncPolicy = fsyncPolicy;
+        this.overflowPolicy = overflowPolicy;
+        this.channel = FileChannel.open(Paths.get(logFilename), StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = new Thread(this::runWriter, "cart-log-writer");
+        this.writer.setDaemon(true);
+        this.shutdownHook = new Thread(this::stopAndDrain, "cart-log-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a log message. Returns immediately unless the queue is full and the overflow policy is BLOCK.
+     *
+     * @param logMessage the message to log
+     * @return true if the message was queued, false if it was dropped or the logger is closed
+     */
+    public boolean log(String logMessage) {
+        if (!running) {
+            return false;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), logMessage);
+        while (!queue.offer(entry)) {
+            if (overflowPolicy == OverflowPolicy.DROP || !running) {
+                dropped.increment();
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BLOCKED_WAIT_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of messages discarded because the queue was full or the logger was closing.
+     *
+     * @return the dropped message count
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Gets the last error the writer thread hit while writing, if any.
+     * Messages in a batch that failed to write are lost.
+     *
+     * @return the last write failure, or null if every write succeeded
+     */
+    public IOException getLastFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops accepting messages, writes everything still queued, and closes the log file.
+     *
+     * @throws IOException the last write or close failure, if any batch could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        stopAndDrain();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down and the hook is running or has run
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void stopAndDrain() {
+        running = false;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (running) {
+                if (!writeBatch()) {
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                }
+            }
+            // Producers that raced with shutdown may still have queued messages
+            while (writeBatch()) {
+                // Keep draining
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    // Drains whatever is queued into one write; returns false if the queue was empty
+    private boolean writeBatch() {
+        Entry entry = queue.poll();
+        if (entry == null) {
+            return false;
+        }
+        text.setLength(0);
+        int limit = queue.capacity();
+        do {
+            appendTimestamp(entry.timestampMillis);
+            text.append(": ").append(entry.message).append(System.lineSeparator());
+        } while (--limit > 0 && (entry = queue.poll()) != null);
+
+        try {
+            writeText();
+            if (fsyncPolicy == FsyncPolicy.EVERY_BATCH) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        return true;
+    }
+
+    private void writeText() throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if (result.isOverflow() || !chars.hasRemaining()) {
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                bytes.clear();
+                if (!chars.hasRemaining()) {
+                    return;
+                }
+            } else if (result.isError()) {
+                result.throwException();
+            }
+        }
+    }
+
+    // Formatting a date is the expensive part, so the text up to the second is reused while it is unchanged
+    private void appendTimestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedSecondText = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault())
+                                            .format(SECOND_FORMAT);
+        }
+        int fraction = Math.floorMod(millis, 1000);
+        text.append(cachedSecondText).append('.')
+            .append((char) ('0' + fraction / 100))
+            .append((char) ('0' + fraction / 10 % 10))
+            .append((char) ('0' + fraction % 10));
+    }
+
+    private static final class Entry {
+        final long timestampMillis;
+        final String message;
+
+        Entry(long timestampMillis, String message) {
+            this.timestampMillis = timestampMillis;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal timing helpers shared by the benchmark programs.
+ * Each measurement runs warm-up rounds first so the JIT has compiled the code under test,
+ * and results are fed into a sink so the work cannot be optimised away.
+ */
+public final class BenchmarkRunner {
+    private static volatile long sink;
+
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Measures the average time of one call to the given operation.
+     *
+     * @param warmupRounds the number of untimed rounds to run first
+     * @param rounds the number of timed rounds
+     * @param operationsPerRound the number of operations one call of {@code round} performs
+     * @param round the work for one round, returning a value that is consumed by the sink
+     * @return the average nanoseconds per operation over the timed rounds
+     */
+    public static double nanosPerOperation(int warmupRounds, int rounds, long operationsPerRound, LongSupplier round) {
+        for (int i = 0; i < warmupRounds; i++) {
+            consume(round.getAsLong());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            consume(round.getAsLong());
+        }
+        return (double) (System.nanoTime() - start) / ((double) rounds * operationsPerRound);
+    }
+
+    /**
+     * Runs an operation on several threads at once for a fixed time and counts completed operations.
+     *
+     * @param threads the number of threads to run
+     * @param warmupMillis how long to run before counting
+     * @param durationMillis how long to count operations
+     * @param operation the work for one operation, given the index of the thread running it
+     * @return the throughput in operations per millisecond
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public static double operationsPerMilli(int threads, long warmupMillis, long durationMillis, IntConsumer operation)
+            throws InterruptedException {
+        AtomicBoolean counting = new AtomicBoolean(false);
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder completed = new LongAdder();
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int threadIndex = t;
+            Thread worker = new Thread(() -> {
+                long local = 0;
+                while (running.get()) {
+                    operation.accept(threadIndex);
+                    if (counting.get()) {
+                        local++;
+                    }
+                }
+                completed.add(local);
+                finished.countDown();
+            }, "bench-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        TimeUnit.MILLISECONDS.sleep(warmupMillis);
+        counting.set(true);
+        TimeUnit.MILLISECONDS.sleep(durationMillis);
+        running.set(false);
+        finished.await();
+        return (double) completed.sum() / durationMillis;
+    }
+
+    /**
+     * Measures the heap in use after collecting garbage, for footprint comparisons.
+     * Collection is requested several times so objects awaiting finalization or reference processing are gone.
+     *
+     * @return the used heap in bytes
+     */
+    public static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Consumes a benchmark result so the JIT cannot eliminate the work that produced it.
+     *
+     * @param value the value to consume
+     */
+    public static void consume(long value) {
+        sink += value;
+    }
+
+    /**
+     * Prints one aligned result line.
+     *
+     * @param label what was measured
+     * @param value the measured value
+     * @param unit the unit of the value
+     */
+    public static void report(String label, double value, String unit) {
+        System.out.println(String.format(Locale.ROOT, "%-48s %14.2f %s", label, value, unit));
+    }
+}
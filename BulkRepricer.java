@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+/**
+ * Reprices every line of one cart or many carts at once, in parallel and all-or-nothing.
+ *
+ * A repricing runs in two phases on a fork/join pool. The first computes and validates the new unit price
+ * of every line without changing anything, so a rule that throws or prices a line below zero rejects
+ * the whole repricing. The second applies the prices as per-line price overrides (see
+ * {@link Cart#setPriceOverride(Product, long)}), so products shared between carts, such as catalog products,
+ * are never changed. If applying fails part way, for example because another thread removed a line,
+ * every override already applied is rolled back.
+ *
+ * Different carts are repriced by different threads, and the lines of a large cart are priced in parallel,
+ * but each cart is only ever changed by one thread; a cart listed more than once is repriced once.
+ * Carts should not be changed by other threads during a repricing; ConcurrentCarts stay consistent if they are,
+ * but the rollback can then only restore what it finds.
+ */
+public final class BulkRepricer {
+    // Below this many lines, pricing one cart's lines is not worth splitting across threads
+    private static final int PARALLEL_LINE_THRESHOLD = 4_096;
+
+    /**
+     * Computes the new unit price of one cart line.
+     */
+    @FunctionalInterface
+    public interface LineRule {
+        /**
+         * Prices a line. Must not change the cart, and may be called from several threads at once.
+         *
+         * @param line a snapshot of the line, with its current unit price
+         * @return the new unit price in cents
+         */
+        long newUnitPriceMinor(CartLine line);
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a repricer running on the common fork/join pool.
+     */
+    public BulkRepricer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a repricer running on the given pool, whose parallelism bounds the threads used.
+     *
+     * @param pool the pool to run on
+     */
+    public BulkRepricer(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool cannot be null");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Applies a discount strategy to the unit price of every line of a cart.
+     *
+     * @param cart the cart to reprice
+     * @param strategy the discount applied to each unit price
+     * @return the number of lines whose price changed
+     * @throws CartException if any line could not be repriced; no cart is changed then
+     */
+    public long reprice(Cart cart, DiscountStrategy strategy) throws CartException {
+        return reprice(Collections.singletonList(cart), strategy);
+    }
+
+    /**
+     * Applies a discount strategy to the unit price of every line of many carts.
+     * The strategy is compiled once and shared by all threads.
+     *
+     * @param carts the carts to reprice
+     * @param strategy the discount applied to each unit price
+     * @return the number of lines whose price changed
+     * @throws CartException if any line could not be repriced; no cart is changed then
+     */
+    public long reprice(Collection<? extends Cart> carts, DiscountStrategy strategy) throws CartException {
+        if (strategy == null) {
+            throw new IllegalArgumentException("Strategy cannot be null");
+        }
+        DiscountStrategy compiled = strategy.compile();
+        return repriceLines(carts, line -> compiled.applyDiscountMinor(line.getUnitPriceMinor()));
+    }
+
+    /**
+     * Reprices every line of many carts with a per-line rule.
+     *
+     * @param carts the carts to reprice; the same cart object listed more than once is repriced once
+     * @param rule the rule giving each line its new unit price
+     * @return the number of lines whose price changed
+     * @throws CartException if the rule fails or gives a negative price for any line, or applying fails;
+     *         no cart is changed then
+     */
+    public long repriceLines(Collection<? extends Cart> carts, LineRule rule) throws CartException {
+        if (carts == null || rule == null) {
+            throw new IllegalArgumentException("Carts and rule cannot be null");
+        }
+        Cart[] targets = distinct(carts);
+        Plan[] plans = new Plan[targets.length];
+        try {
+            run(() -> IntStream.range(0, targets.length).parallel()
+                               .forEach(i -> plans[i] = plan(targets[i], rule)));
+        } catch (RuntimeException e) {
+            throw new CartException("Repricing rejected, no cart was changed: " + reason(e), e);
+        }
+
+        try {
+            run(() -> IntStream.range(0, plans.length).parallel().forEach(i -> plans[i].apply()));
+        } catch (RuntimeException e) {
+            for (Plan plan : plans) {
+                plan.rollBack();
+            }
+            throw new CartException("Repricing failed and was rolled back: " + reason(e), e);
+        }
+        long changed = 0;
+        for (Plan plan : plans) {
+            changed += plan.changed;
+        }
+        return changed;
+    }
+
+    // Keeps the first listing of each cart object, in order, so no cart is planned or changed twice
+    private static Cart[] distinct(Collection<? extends Cart> carts) {
+        Set<Cart> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Cart> distinct = new ArrayList<>(carts.size());
+        for (Cart cart : carts) {
+            if (seen.add(cart)) {
+                distinct.add(cart);
+            }
+        }
+        return distinct.toArray(new Cart[0]);
+    }
+
+    private static Plan plan(Cart cart, LineRule rule) {
+        if (cart == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        CartLine[] lines = cart.getLines().toArray(new CartLine[0]);
+        long[] prices = new long[lines.length];
+        IntStream indexes = IntStream.range(0, lines.length);
+        if (lines.length >= PARALLEL_LINE_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+        indexes.forEach(i -> {
+            long price = rule.newUnitPriceMinor(lines[i]);
+            if (price < 0) {
+                throw new IllegalArgumentException("Rule priced product " + lines[i].getProduct().getId()
+                                                   + " below zero");
+            }
+            prices[i] = price;
+        });
+        return new Plan(cart, lines, prices);
+    }
+
+    // Fork/join rethrows a worker's exception wrapped in a copy of itself; report the original message
+    private static String reason(Throwable e) {
+        while (e.getCause() != null && e.getCause().getClass() == e.getClass()) {
+            e = e.getCause();
+        }
+        return e.getMessage();
+    }
+
+    private void run(Runnable task) {
+        if (ForkJoinPool.commonPool() == pool) {
+            task.run();
+        } else {
+            // A parallel stream started inside a pool's task runs on that pool; invoke waits uninterruptibly,
+            // so a phase never outlives the call that started it
+            pool.invoke(ForkJoinTask.adapt(task));
+        }
+    }
+
+    /**
+     * The validated new prices of one cart, and what applying them replaced so it can be undone.
+     */
+    private static final class Plan {
+        private final Cart cart;
+        private final CartLine[] lines;
+        private final long[] prices;
+        private final boolean[] hadOverride;
+        private int applied;
+        private long changed;
+
+        Plan(Cart cart, CartLine[] lines, long[] prices) {
+            this.cart = cart;
+            this.lines = lines;
+            this.prices = prices;
+            this.hadOverride = new boolean[lines.length];
+        }
+
+        void apply() {
+            for (int i = 0; i < lines.length; i++) {
+                if (prices[i] != lines[i].getUnitPriceMinor()) {
+                    Product product = lines[i].getProduct();
+                    hadOverride[i] = cart.hasPriceOverride(product);
+                    cart.setPriceOverride(product, prices[i]);
+                    changed++;
+                }
+                applied = i + 1;
+            }
+        }
+
+        void rollBack() {
+            for (int i = applied - 1; i >= 0; i--) {
+                if (prices[i] == lines[i].getUnitPriceMinor()) {
+                    continue;
+                }
+                Product product = lines[i].getProduct();
+                try {
+                    if (hadOverride[i]) {
+                        cart.setPriceOverride(product, lines[i].getUnitPriceMinor());
+                    } else {
+                        cart.clearPriceOverride(product);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // The line is gone; there is nothing left to restore
+                }
+            }
+            applied = 0;
+            changed = 0;
+        }
+    }
+}
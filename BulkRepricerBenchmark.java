@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures BulkRepricer throughput over a population of carts holding catalog products,
+ * with fork/join pools of 1 up to N threads. Rounds alternate between two rules so every line changes each round.
+ *
+ * Usage: java BulkRepricerBenchmark [carts] [linesPerCart] [maxThreads]
+ */
+public class BulkRepricerBenchmark {
+
+    public static void main(String[] args) throws CartException {
+        int cartCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int linesPerCart = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        ProductCatalog.Builder builder = ProductCatalog.builder();
+        for (int i = 0; i < 50_000; i++) {
+            builder.addMinorUnits(i, "Catalog product number " + i, 100 + i % 10_000, null);
+        }
+        ProductCatalog catalog = builder.build();
+        Random random = new Random(9);
+        List<Cart> carts = new ArrayList<>(cartCount);
+        long lines = 0;
+        for (int c = 0; c < cartCount; c++) {
+            Cart cart = new Cart();
+            for (int l = 0; l < linesPerCart; l++) {
+                cart.addProduct(catalog.productAt(random.nextInt(catalog.size())), 1 + random.nextInt(3));
+            }
+            lines += cart.getLineCount();
+            carts.add(cart);
+        }
+        BulkRepricer.LineRule tenOff = line -> Money.discountByPercent(line.getProduct().getPriceMinor(), 10);
+        BulkRepricer.LineRule twentyOff = line -> Money.discountByPercent(line.getProduct().getPriceMinor(), 20);
+
+        System.out.println(cartCount + " carts, " + lines + " lines, "
+                           + Runtime.getRuntime().availableProcessors() + " processors");
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            BulkRepricer repricer = new BulkRepricer(pool);
+            long[] round = {0};
+            double nanos = BenchmarkRunner.nanosPerOperation(5, 10, lines, () -> {
+                try {
+                    return repricer.repriceLines(carts, round[0]++ % 2 == 0 ? tenOff : twentyOff);
+                } catch (CartException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            pool.shutdown();
+            double linesPerMilli = 1e6 / nanos;
+            if (threads == 1) {
+                single = linesPerMilli;
+            }
+            BenchmarkRunner.report("  " + threads + " thread" + (threads == 1 ? "" : "s"), linesPerMilli,
+                                   String.format("lines/ms (%.2fx)", linesPerMilli / single));
+        }
+
+        BulkRepricer repricer = new BulkRepricer();
+        double strategyNanos = BenchmarkRunner.nanosPerOperation(3, 5, lines, () -> {
+            try {
+                return repricer.reprice(carts, DiscountStrategy.percentageDiscount(1)
+                                                               .combineWith(DiscountStrategy.fixedAmountDiscount(0.01)));
+            } catch (CartException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        BenchmarkRunner.report("  composed DiscountStrategy, common pool", 1e6 / strategyNanos, "lines/ms");
+    }
+}
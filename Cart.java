@@ -1,99 +1,924 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
- 
+import java.math.RoundingMode;
+
 public class Cart implements Serializable {
-    private List<Product> products = new ArrayList<>();
-    
+    // Pinned so adding methods does not invalidate serialized carts; the serial form is the product list
+    private static final long serialVersionUID = -220250771309127582L;
+    private static final LineListener[] NO_LINE_LISTENERS = new LineListener[0];
+
+    // One entry per distinct product, carrying its quantity
+    private transient ProductIndex products;
+    // Running aggregates, kept current on every mutation and on product price changes
+    private transient TreeSet<CartEntry> byPrice;
+    private transient long total; // In cents, so the running total is exact
+    private transient int units;
+    private transient long nextSequence;
+    private transient LineListener[] lineListeners = NO_LINE_LISTENERS;
+    private transient long version;
+    // Line changes collected while a batch operation runs, announced together when it ends; null otherwise
+    private transient List<LineChange> batch;
+
+    /**
+     * Callback notified whenever a line of a cart changes: added, removed, its quantity changed or its price changed.
+     * Listeners run synchronously on the thread changing the cart, after the change, and for a ConcurrentCart
+     * while its lock is held, so they must be quick and must not change the cart.
+     */
+    public interface LineListener {
+        /**
+         * Called after a line changed.
+         * @param cart The cart that changed.
+         * @param product The product of the line.
+         * @param quantity The new quantity, zero if the line was removed.
+         * @param unitPriceMinor The unit price the cart now charges, in cents.
+         */
+        void lineChanged(Cart cart, Product product, int quantity, long unitPriceMinor);
+
+        /**
+         * Called once after an operation such as addLines or removeAllById changed several lines,
+         * instead of once per line. The default reports each change to lineChanged, in order.
+         * @param cart The cart that changed.
+         * @param changes The changed lines, each product at most once.
+         */
+        default void linesChanged(Cart cart, List<LineChange> changes) {
+            for (LineChange change : changes) {
+                lineChanged(cart, change.getProduct(), change.getQuantity(), change.getUnitPriceMinor());
+            }
+        }
+
+        /**
+         * Called after every line was removed at once.
+         * @param cart The cart that was cleared.
+         */
+        void cartCleared(Cart cart);
+    }
+
+    /**
+     * The new state of one line, as reported to {@link LineListener#lineChanged}.
+     */
+    public static final class LineChange {
+        private final Product product;
+        private final int quantity;
+        private final long unitPriceMinor;
+
+        LineChange(Product product, int quantity, long unitPriceMinor) {
+            this.product = product;
+            this.quantity = quantity;
+            this.unitPriceMinor = unitPriceMinor;
+        }
+
+        public Product getProduct() {
+            return product;
+        }
+
+        /**
+         * Gets the new quantity of the line.
+         * @return The quantity, zero if the line was removed.
+         */
+        public int getQuantity() {
+            return quantity;
+        }
+
+        /**
+         * Gets the unit price the cart now charges.
+         * @return The price in cents.
+         */
+        public long getUnitPriceMinor() {
+            return unitPriceMinor;
+        }
+    }
+
     public Cart(){
-        this.products = new ArrayList<>();
+        this.products = new ProductIndex();
+        this.byPrice = new TreeSet<>(CartEntry::compareByPrice);
+    }
+
+    /**
+     * Creates a cart without its heap index, for subclasses that keep their lines elsewhere.
+     * Such a subclass must override every public method that reads or changes the cart's contents,
+     * and replace itself with an ordinary cart when serialized.
+     * @param storedElsewhere Ignored; distinguishes this constructor.
+     */
+    Cart(boolean storedElsewhere) {
     }
     /**
-     * Gets the list of products in the cart.
+     * Gets the list of products in the cart, in the order they were added.
+     * A product held with a quantity above one appears once per unit.
+     * The returned list is an unmodifiable snapshot; later cart changes are not reflected in it.
      * @return A list of Product objects.
      */
     public List<Product> getProducts() {
-        return products;
+        return Collections.unmodifiableList(products.toProductList());
+    }
+
+    /**
+     * Gets the lines of the cart, one per distinct product, in the order they were first added.
+     * The returned list is an unmodifiable snapshot; later cart changes are not reflected in it.
+     * @return A list of CartLine objects.
+     */
+    public List<CartLine> getLines() {
+        return Collections.unmodifiableList(products.toLineList());
+    }
+
+    /**
+     * Performs an action for each product in the cart, in the order they were added,
+     * without copying the cart contents. A product held with a quantity above one is visited once per unit.
+     * @param action The action to perform on each product.
+     */
+    public void forEachProduct(Consumer<? super Product> action) {
+        products.forEach(entry -> {
+            for (int unit = entry.getQuantity(); unit > 0; unit--) {
+                action.accept(entry.getProduct());
+            }
+        });
+    }
+
+    /**
+     * Performs an action for each line in the cart, in the order they were first added,
+     * without copying the cart contents.
+     * @param action The action to perform on each product and its quantity.
+     */
+    public void forEachLine(ObjIntConsumer<? super Product> action) {
+        products.forEach(entry -> action.accept(entry.getProduct(), entry.getQuantity()));
     }
-    
+
     /**
-     * Adds a product to the cart.
+     * Adds one unit of a product to the cart.
      * @param product The Product object to add.
-     * @throws IllegalArgumentException if the product is null.
+     * @throws IllegalArgumentException if the product or its ID is null.
      */
     public void addProduct(Product product) {
-        if (product == null) {
-            throw new IllegalArgumentException("Product cannot be null");
+        addProduct(product, 1);
+    }
+
+    /**
+     * Adds units of a product to the cart. A product equal to one already in the cart
+     * increases that line's quantity instead of adding a new line; the line keeps the instance first added.
+     * @param product The Product object to add.
+     * @param quantity The number of units to add.
+     * @throws IllegalArgumentException if the product or its ID is null, or the quantity is not positive.
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units.
+     */
+    public void addProduct(Product product, int quantity) {
+        requireProduct(product);
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive");
+        }
+        CartEntry entry = products.find(product);
+        if (entry == null) {
+            attach(product, quantity);
+        } else {
+            changeQuantity(entry, Math.addExact(entry.getQuantity(), quantity));
+        }
+    }
+
+    /**
+     * Adds one unit of each of several products, as {@link #addProduct(Product)} would one by one,
+     * but validating every product before the cart changes and growing its storage once.
+     * Equal products are merged into one line, which keeps the instance first added.
+     * Line listeners are told of the changed lines in a single call, and the version advances once.
+     * @param added The products to add, a product listed more than once adding a unit per listing.
+     * @return The number of units added, counted by this call rather than from the cart's size afterwards.
+     * @throws IllegalArgumentException if the collection, a product or its ID is null; nothing is added then.
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units; nothing is added then.
+     */
+    public int addAll(Collection<? extends Product> added) {
+        if (added == null) {
+            throw new IllegalArgumentException("Products cannot be null");
+        }
+        ProductIndex staged = new ProductIndex();
+        for (Product product : added) {
+            requireProduct(product);
+            stage(staged, product, 1, product.getPriceMinor(), false);
+        }
+        return addStaged(staged, added.size());
+    }
+
+    /**
+     * Adds several lines to the cart, validating them all before the cart changes and growing its storage once.
+     * A line whose product is already in the cart adds its quantity to that line, which keeps its own price.
+     * A new line is charged the line's unit price, held as a price override when it differs from the product's
+     * own price, so a saved or merged cart keeps the prices it charged.
+     * Lines of equal products within the collection are merged, the first one's price winning.
+     * @param lines The lines to add, in the order new lines should appear.
+     * @return The number of units added.
+     * @throws IllegalArgumentException if the collection, a line or a product ID is null; nothing is added then.
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units; nothing is added then.
+     */
+    public int addLines(Collection<CartLine> lines) {
+        long[] added = new long[1];
+        ProductIndex staged = stageLines(lines, added);
+        return addStaged(staged, added[0]);
+    }
+
+    /**
+     * Replaces the cart's contents with the given lines, as {@link #clear()} followed by
+     * {@link #addLines(Collection)}, but validating the lines before the cart is cleared, so a failing call leaves
+     * the cart as it was. A ConcurrentCart makes the replacement one atomic change.
+     * @param lines The lines the cart should hold, in order.
+     * @throws IllegalArgumentException if the collection, a line or a product ID is null; the cart is unchanged then.
+     * @throws ArithmeticException if the lines hold more than Integer.MAX_VALUE units; the cart is unchanged then.
+     */
+    public void replaceLines(Collection<CartLine> lines) {
+        long[] added = new long[1];
+        ProductIndex staged = stageLines(lines, added);
+        if (added[0] > Integer.MAX_VALUE) {
+            throw new ArithmeticException("integer overflow");
+        }
+        clear();
+        addStaged(staged, added[0]);
+    }
+
+    /**
+     * Merges another cart into this one, such as a guest cart into the cart of the customer who just logged in.
+     * The other cart's lines are read once and added as by {@link #addLines(Collection)}: a product in both carts
+     * has its quantities summed at this cart's price, and a product only in the other cart is appended with the
+     * price the other cart charged for it. The other cart is left unchanged.
+     * @param other The cart to merge in; merging a cart into itself doubles every quantity.
+     * @return The number of units added, those of the other cart's lines as read.
+     * @throws IllegalArgumentException if the other cart is null.
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units; nothing is added then.
+     */
+    public int merge(Cart other) {
+        if (other == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        return addLines(other.getLines());
+    }
+
+    /**
+     * Sets the number of units of a product held by the cart.
+     * A quantity of zero removes the product's line; a product not yet in the cart is added.
+     * @param product The Product object whose quantity to set.
+     * @param quantity The new number of units.
+     * @throws IllegalArgumentException if the product or its ID is null, or the quantity is negative.
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units.
+     */
+    public void setQuantity(Product product, int quantity) {
+        requireProduct(product);
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Quantity cannot be negative");
         }
-        products.add(product);
+        CartEntry entry = products.find(product);
+        if (entry == null) {
+            if (quantity > 0) {
+                attach(product, quantity);
+            }
+        } else if (quantity == 0) {
+            products.remove(entry);
+            detach(entry);
+        } else {
+            changeQuantity(entry, quantity);
+        }
+    }
+
+    /**
+     * Removes one unit of a product from the cart, removing its line when the last unit goes.
+     * @param product The Product object to decrement.
+     * @return The number of units left in the cart.
+     * @throws IllegalArgumentException if the product is not in the cart.
+     */
+    public int decrement(Product product) {
+        return removeUnit(requireEntry(product));
+    }
+
+    /**
+     * Gets the number of units of a product held by the cart.
+     * @param product The Product object to look up.
+     * @return The quantity, or zero if the product is not in the cart.
+     */
+    public int getQuantity(Product product) {
+        CartEntry entry = product == null || product.getId() == null ? null : products.find(product);
+        return entry == null ? 0 : entry.getQuantity();
     }
- 
+
     /**
-     * Removes a product from the cart.
+     * Removes one unit of a product from the cart.
      * @param product The Product object to remove.
      * @throws IllegalArgumentException if the product is not in the cart.
      */
     public void removeProduct(Product product) {
-        if (!products.contains(product)) {
-            throw new IllegalArgumentException("Product is not in the cart");
+        decrement(product);
+    }
+
+    /**
+     * Removes one unit of the earliest added product with the given ID.
+     * @param id The ID of the product to remove.
+     * @return An Optional containing the removed Product, or empty if no product has that ID.
+     */
+    public Optional<Product> removeProductById(Long id) {
+        CartEntry entry = id == null ? null : products.first(id);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        removeUnit(entry);
+        return Optional.of(entry.getProduct());
+    }
+
+    /**
+     * Removes every unit of every product with one of the given IDs, looking each ID up once in the index.
+     * @param ids The IDs of the products to remove; null IDs and IDs not in the cart are ignored.
+     * @return The number of units removed.
+     * @throws IllegalArgumentException if the collection is null.
+     */
+    public int removeAllById(Collection<Long> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("IDs cannot be null");
         }
-        products.remove(product);
+        int[] removed = new int[1];
+        inBatch(() -> {
+            for (Long id : ids) {
+                if (id == null) {
+                    continue;
+                }
+                for (CartEntry entry = products.removeFirst(id); entry != null; entry = products.removeFirst(id)) {
+                    removed[0] += entry.getQuantity();
+                    detach(entry);
+                }
+            }
+        });
+        return removed[0];
     }
- 
+
     /**
      * Finds a product in the cart by its ID.
      * @param id The ID of the product.
      * @return An Optional containing the Product if found, or empty if not found.
      */
     public Optional<Product> findProductById(Long id) {
-        return products.stream()
-                .filter(product -> product.getId().equals(id))
-                .findFirst();
+        CartEntry entry = id == null ? null : products.first(id);
+        return entry == null ? Optional.empty() : Optional.of(entry.getProduct());
     }
- 
+
     /**
-     * Calculates the total price of all products in the cart.
+     * Calculates the total price of all products in the cart, each line priced at its quantity.
+     * The total is maintained incrementally, so this does not iterate over the products.
      * @return Total price of products in the cart.
      */
     public double calculateTotal() {
-        return products.stream()
-                .mapToDouble(Product::getPrice)
-                .sum();
+        return Money.toMajor(calculateTotalMinor());
+    }
+
+    /**
+     * Calculates the exact total price of all products in the cart in minor units.
+     * @return Total price of products in the cart, in cents.
+     */
+    public long calculateTotalMinor() {
+        return total;
+    }
+
+    /**
+     * Finds the most expensive product in the cart.
+     * When several products share the highest price, the earliest added one is returned.
+     * @return An Optional containing the most expensive Product, or empty if the cart is empty.
+     */
+    public Optional<Product> getMostExpensiveProduct() {
+        if (byPrice.isEmpty()) {
+            return Optional.empty();
+        }
+        long highest = byPrice.last().getIndexedPrice();
+        return Optional.of(byPrice.ceiling(CartEntry.priceKey(highest, Long.MIN_VALUE)).getProduct());
+    }
+
+    /**
+     * Finds the least expensive product in the cart.
+     * When several products share the lowest price, the earliest added one is returned.
+     * @return An Optional containing the cheapest Product, or empty if the cart is empty.
+     */
+    public Optional<Product> getCheapestProduct() {
+        return byPrice.isEmpty() ? Optional.empty() : Optional.of(byPrice.first().getProduct());
+    }
+
+    /**
+     * Finds all products priced strictly below the given amount, ordered by ascending price.
+     * A product held with a quantity above one appears once per unit.
+     * @param price The exclusive upper price bound.
+     * @return A list of the matching products.
+     */
+    public List<Product> getProductsBelowPrice(double price) {
+        return toProductList(belowPrice(price));
+    }
+
+    /**
+     * Finds all products priced strictly above the given amount, ordered by ascending price.
+     * A product held with a quantity above one appears once per unit.
+     * @param price The exclusive lower price bound.
+     * @return A list of the matching products.
+     */
+    public List<Product> getProductsAbovePrice(double price) {
+        return toProductList(abovePrice(price));
+    }
+
+    /**
+     * Finds all products priced within the given range, ordered by ascending price.
+     * A product held with a quantity above one appears once per unit.
+     * @param minPrice The inclusive lower price bound.
+     * @param maxPrice The inclusive upper price bound.
+     * @return A list of the matching products.
+     * @throws IllegalArgumentException if minPrice is greater than maxPrice.
+     */
+    public List<Product> getProductsBetweenPrices(double minPrice, double maxPrice) {
+        return toProductList(betweenPrices(minPrice, maxPrice));
+    }
+
+    /**
+     * Streams the products priced strictly below the given amount, ordered by ascending price.
+     * The stream reads the cart's price index directly without copying it,
+     * so it must be consumed before the cart is modified again.
+     * @param price The exclusive upper price bound.
+     * @return A stream of the matching products.
+     */
+    public Stream<Product> streamProductsBelowPrice(double price) {
+        return belowPrice(price).stream().flatMap(Cart::units);
+    }
+
+    /**
+     * Streams the products priced strictly above the given amount, ordered by ascending price.
+     * The stream reads the cart's price index directly without copying it,
+     * so it must be consumed before the cart is modified again.
+     * @param price The exclusive lower price bound.
+     * @return A stream of the matching products.
+     */
+    public Stream<Product> streamProductsAbovePrice(double price) {
+        return abovePrice(price).stream().flatMap(Cart::units);
+    }
+
+    /**
+     * Streams the products priced within the given range, ordered by ascending price.
+     * The stream reads the cart's price index directly without copying it,
+     * so it must be consumed before the cart is modified again.
+     * @param minPrice The inclusive lower price bound.
+     * @param maxPrice The inclusive upper price bound.
+     * @return A stream of the matching products.
+     * @throws IllegalArgumentException if minPrice is greater than maxPrice.
+     */
+    public Stream<Product> streamProductsBetweenPrices(double minPrice, double maxPrice) {
+        return betweenPrices(minPrice, maxPrice).stream().flatMap(Cart::units);
     }
- 
+
     /**
-     * Applies a discount to all products in the cart.
+     * Applies a discount to all products in the cart, once per distinct product whatever its quantity.
+     * Frozen catalog products, and lines that already hold a price override, are discounted through
+     * the cart's override so shared products are never changed; other products are discounted in place.
      * @param discountRate Discount rate in percentage (0-100).
+     * @throws IllegalArgumentException if the rate is outside 0-100; nothing is discounted then.
      */
     public void applyDiscountToAll(double discountRate) {
-        products.forEach(product -> product.applyDiscount(discountRate));
+        requireRate(discountRate);
+        products.forEach(entry -> {
+            if (entry.isOverridden() || entry.getProduct().isFrozen()) {
+                overridePrice(entry, Money.discountByPercent(entry.getIndexedPrice(), discountRate));
+            } else {
+                entry.getProduct().applyDiscount(discountRate);
+            }
+        });
     }
- 
+
+    /**
+     * Discounts the price this cart charges for a product, leaving the product itself unchanged.
+     * The discounted price is kept as the line's price override.
+     * @param product The Product object whose line to discount.
+     * @param discountRate Discount rate in percentage (0-100).
+     * @throws IllegalArgumentException if the product is not in the cart or the rate is outside 0-100.
+     */
+    public void applyLineDiscount(Product product, double discountRate) {
+        requireRate(discountRate);
+        CartEntry entry = requireEntry(product);
+        overridePrice(entry, Money.discountByPercent(entry.getIndexedPrice(), discountRate));
+    }
+
+    /**
+     * Sets the price this cart charges for a product, independently of the product's own price.
+     * This is how a cart reprices a shared catalog product. Later changes to the product's price
+     * do not affect the line until the override is cleared.
+     * @param product The Product object whose line to reprice.
+     * @param priceMinor The unit price to charge, in cents.
+     * @throws IllegalArgumentException if the product is not in the cart or the price is negative.
+     */
+    public void setPriceOverride(Product product, long priceMinor) {
+        if (priceMinor < 0) {
+            throw new IllegalArgumentException("Price cannot be negative");
+        }
+        overridePrice(requireEntry(product), priceMinor);
+    }
+
+    /**
+     * Removes a price override, charging the product's own current price again.
+     * @param product The Product object whose override to clear.
+     * @throws IllegalArgumentException if the product is not in the cart.
+     */
+    public void clearPriceOverride(Product product) {
+        CartEntry entry = requireEntry(product);
+        entry.setOverridden(false);
+        reprice(entry, entry.getProduct().getPriceMinor());
+    }
+
+    /**
+     * Checks whether the cart holds a price override for a product.
+     * @param product The Product object to look up.
+     * @return true if the product is in the cart with an overridden price.
+     */
+    public boolean hasPriceOverride(Product product) {
+        CartEntry entry = product == null || product.getId() == null ? null : products.find(product);
+        return entry != null && entry.isOverridden();
+    }
+
+    /**
+     * Gets the unit price this cart charges for a product: its override if it has one, else the product's price.
+     * @param product The Product object to look up.
+     * @return The unit price in cents.
+     * @throws IllegalArgumentException if the product is not in the cart.
+     */
+    public long getUnitPriceMinor(Product product) {
+        return requireEntry(product).getIndexedPrice();
+    }
+
     /**
      * Clears all products from the cart.
      */
     public void clear() {
+        products.forEach(entry -> {
+            entry.getProduct().removePriceListener(entry);
+            entry.setDetached();
+        });
         products.clear();
+        byPrice.clear();
+        total = 0;
+        units = 0;
+        fireCartCleared();
+    }
+
+    /**
+     * Registers a listener notified of every line change.
+     * @param listener The listener to add.
+     */
+    public void addLineListener(LineListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        LineListener[] current = lineListeners();
+        LineListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        lineListeners = updated;
     }
- 
+
     /**
-     * Gets the number of products in the cart.
+     * Unregisters a previously added line listener.
+     * @param listener The listener to remove.
+     */
+    public void removeLineListener(LineListener listener) {
+        LineListener[] current = lineListeners();
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                LineListener[] updated = new LineListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                lineListeners = updated.length == 0 ? NO_LINE_LISTENERS : updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the modification version of the cart, which increases with every change to its lines,
+     * so results computed from the cart can be cached until it changes.
+     * Versions are only comparable between readings of the same cart object.
+     * @return The current version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of product units in the cart, counting every unit of every line.
      * @return The count of products in the cart.
      */
     public int getProductCount() {
+        return units;
+    }
+
+    /**
+     * Gets the number of lines in the cart, i.e. the number of distinct products.
+     * @return The count of lines in the cart.
+     */
+    public int getLineCount() {
         return products.size();
     }
- 
+
     /**
      * Provides a string representation of all products in the cart.
      * @return A string listing all products.
      */
     @Override
     public String toString() {
-        return products.stream()
-                .map(Product::toString)
-                .collect(Collectors.joining(", ", "Cart{products=[", "]}"));
+        StringJoiner joiner = new StringJoiner(", ", "Cart{products=[", "]}");
+        forEachProduct(product -> joiner.add(product.toString()));
+        return joiner.toString();
+    }
+
+    /**
+     * Re-indexes an entry whose product price has changed.
+     * The product's current price is re-read rather than trusting the notified value,
+     * so interleaved notifications still converge on the latest price.
+     * A notification for a line removed since it was sent is ignored.
+     * @param entry The entry whose product was repriced.
+     */
+    void onPriceChanged(CartEntry entry) {
+        if (!entry.isOverridden() && !entry.isDetached()) {
+            reprice(entry, entry.getProduct().getPriceMinor());
+        }
+    }
+
+    // Probe keys sort before or after every real entry at the same price,
+    // so the bounds below are exact without scanning equal prices.
+    // Bounds between two whole cents are rounded inwards, since no price can fall between them,
+    // and bounds beyond the range of cents saturate.
+    private NavigableSet<CartEntry> belowPrice(double price) {
+        long bound = Money.ofMajorSaturating(price, RoundingMode.CEILING);
+        return byPrice.headSet(CartEntry.priceKey(bound, Long.MIN_VALUE), false);
+    }
+
+    private NavigableSet<CartEntry> abovePrice(double price) {
+        long bound = Money.ofMajorSaturating(price, RoundingMode.FLOOR);
+        return byPrice.tailSet(CartEntry.priceKey(bound, Long.MAX_VALUE), false);
+    }
+
+    private NavigableSet<CartEntry> betweenPrices(double minPrice, double maxPrice) {
+        if (Double.compare(minPrice, maxPrice) > 0) {
+            throw new IllegalArgumentException("Minimum price cannot exceed maximum price");
+        }
+        long min = Money.ofMajorSaturating(minPrice, RoundingMode.CEILING);
+        long max = Money.ofMajorSaturating(maxPrice, RoundingMode.FLOOR);
+        if (min > max) {
+            return Collections.emptyNavigableSet();
+        }
+        return byPrice.subSet(CartEntry.priceKey(min, Long.MIN_VALUE), true,
+                              CartEntry.priceKey(max, Long.MAX_VALUE), true);
+    }
+
+    private static List<Product> toProductList(Collection<CartEntry> entries) {
+        List<Product> list = new ArrayList<>(entries.size());
+        for (CartEntry entry : entries) {
+            for (int unit = entry.getQuantity(); unit > 0; unit--) {
+                list.add(entry.getProduct());
+            }
+        }
+        return list;
+    }
+
+    private static Stream<Product> units(CartEntry entry) {
+        return entry.getQuantity() == 1 ? Stream.of(entry.getProduct())
+                                        : Collections.nCopies(entry.getQuantity(), entry.getProduct()).stream();
+    }
+
+    // Every change to the lines passes through one of these two, so they also advance the version
+    void fireLineChanged(Product product, int quantity, long unitPriceMinor) {
+        if (batch != null) {
+            batch.add(new LineChange(product, quantity, unitPriceMinor));
+            return;
+        }
+        version++;
+        for (LineListener listener : lineListeners()) {
+            listener.lineChanged(this, product, quantity, unitPriceMinor);
+        }
+    }
+
+    void fireCartCleared() {
+        version++;
+        for (LineListener listener : lineListeners()) {
+            listener.cartCleared(this);
+        }
+    }
+
+    /**
+     * Runs changes to several lines as one batch: their line changes are announced in a single
+     * {@link LineListener#linesChanged} call once the changes are done, and the version advances once.
+     * @param changes The changes to run.
+     */
+    void inBatch(Runnable changes) {
+        if (batch != null) {
+            changes.run();
+            return;
+        }
+        batch = new ArrayList<>();
+        List<LineChange> done;
+        try {
+            changes.run();
+        } finally {
+            done = batch;
+            batch = null;
+        }
+        if (done.isEmpty()) {
+            return;
+        }
+        version++;
+        List<LineChange> announced = Collections.unmodifiableList(done);
+        for (LineListener listener : lineListeners()) {
+            listener.linesChanged(this, announced);
+        }
+    }
+
+    // Listeners are transient, so a deserialized cart starts with none
+    private LineListener[] lineListeners() {
+        return lineListeners == null ? NO_LINE_LISTENERS : lineListeners;
+    }
+
+    private void overridePrice(CartEntry entry, long priceMinor) {
+        entry.setOverridden(true);
+        reprice(entry, priceMinor);
+    }
+
+    private void reprice(CartEntry entry, long newPrice) {
+        byPrice.remove(entry);
+        total += (newPrice - entry.getIndexedPrice()) * entry.getQuantity();
+        entry.setIndexedPrice(newPrice);
+        byPrice.add(entry);
+        fireLineChanged(entry.getProduct(), entry.getQuantity(), newPrice);
+    }
+
+    private CartEntry requireEntry(Product product) {
+        CartEntry entry = product == null || product.getId() == null ? null : products.find(product);
+        if (entry == null) {
+            throw new IllegalArgumentException("Product is not in the cart");
+        }
+        return entry;
+    }
+
+    static void requireRate(double discountRate) {
+        if (!(discountRate >= 0 && discountRate <= 100)) {
+            throw new IllegalArgumentException("Discount rate must be between 0 and 100");
+        }
+    }
+
+    static void requireProduct(Product product) {
+        if (product == null) {
+            throw new IllegalArgumentException("Product cannot be null");
+        }
+        if (product.getId() == null) {
+            throw new IllegalArgumentException("Product ID cannot be null");
+        }
+    }
+
+    private int removeUnit(CartEntry entry) {
+        int remaining = entry.getQuantity() - 1;
+        if (remaining == 0) {
+            products.remove(entry);
+            detach(entry);
+        } else {
+            changeQuantity(entry, remaining);
+        }
+        return remaining;
+    }
+
+    private void changeQuantity(CartEntry entry, int quantity) {
+        int newUnits = Math.addExact(units, quantity - entry.getQuantity());
+        total += entry.getIndexedPrice() * (quantity - entry.getQuantity());
+        units = newUnits;
+        entry.setQuantity(quantity);
+        fireLineChanged(entry.getProduct(), quantity, entry.getIndexedPrice());
+    }
+
+    private void attach(Product product, int quantity) {
+        attach(product, quantity, product.getPriceMinor(), false);
+    }
+
+    // Indexes the line at its final price, so an overridden line is added and announced once
+    private void attach(Product product, int quantity, long priceMinor, boolean overridden) {
+        int newUnits = Math.addExact(units, quantity);
+        CartEntry entry = new CartEntry(product, this, nextSequence++, quantity);
+        entry.setIndexedPrice(priceMinor);
+        entry.setOverridden(overridden);
+        products.add(entry);
+        byPrice.add(entry);
+        total += entry.getIndexedPrice() * quantity;
+        units = newUnits;
+        product.addPriceListener(entry);
+        fireLineChanged(product, quantity, entry.getIndexedPrice());
+    }
+
+    // Merges a line into a staging index, whose entries belong to no cart
+    private static void stage(ProductIndex staged, Product product, int quantity, long priceMinor,
+                              boolean overridden) {
+        CartEntry line = staged.find(product);
+        if (line == null) {
+            line = new CartEntry(product, null, staged.size(), quantity);
+            line.setIndexedPrice(priceMinor);
+            line.setOverridden(overridden);
+            staged.add(line);
+        } else {
+            line.setQuantity(Math.addExact(line.getQuantity(), quantity));
+        }
+    }
+
+    // Validates the lines and merges them by product; the units they add are returned through the array
+    private static ProductIndex stageLines(Collection<CartLine> lines, long[] addedUnits) {
+        if (lines == null) {
+            throw new IllegalArgumentException("Lines cannot be null");
+        }
+        ProductIndex staged = new ProductIndex(lines.size());
+        for (CartLine line : lines) {
+            if (line == null) {
+                throw new IllegalArgumentException("Line cannot be null");
+            }
+            Product product = line.getProduct();
+            requireProduct(product);
+            stage(staged, product, line.getQuantity(), line.getUnitPriceMinor(),
+                  line.getUnitPriceMinor() != product.getPriceMinor());
+            addedUnits[0] += line.getQuantity();
+        }
+        return staged;
+    }
+
+    // Every check is made before the first change, so a failing batch leaves the cart as it was
+    private int addStaged(ProductIndex staged, long addedUnits) {
+        if (units + addedUnits > Integer.MAX_VALUE) {
+            throw new ArithmeticException("integer overflow");
+        }
+        products.ensureCapacity(products.size() + staged.size());
+        inBatch(() -> staged.forEach(line -> {
+            CartEntry entry = products.find(line.getProduct());
+            if (entry == null) {
+                attach(line.getProduct(), line.getQuantity(), line.getIndexedPrice(), line.isOverridden());
+            } else {
+                changeQuantity(entry, entry.getQuantity() + line.getQuantity());
+            }
+        }));
+        return (int) addedUnits;
+    }
+
+    private void detach(CartEntry entry) {
+        entry.setDetached();
+        entry.getProduct().removePriceListener(entry);
+        byPrice.remove(entry);
+        total -= entry.getIndexedPrice() * entry.getQuantity();
+        units -= entry.getQuantity();
+        fireLineChanged(entry.getProduct(), 0, entry.getIndexedPrice());
+    }
+
+    /**
+     * Serializes the cart as its list of products, one element per unit, so the index itself is never written
+     * and carts saved before quantities existed still read back.
+     * A line with a price override is written as a copy of its product at the overridden price.
+     * @param out The stream to write to.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(toSerialForm());
+    }
+
+    /**
+     * Builds the product list the cart is serialized as, one element per unit.
+     * @return The products, overridden lines as copies at their overridden price.
+     */
+    List<Product> toSerialForm() {
+        List<Product> saved = new ArrayList<>(units);
+        products.forEach(entry -> {
+            Product product = entry.getProduct();
+            if (entry.isOverridden()) {
+                product = Product.ofMinorUnits(product.getId(), product.getName(), entry.getIndexedPrice());
+            }
+            for (int unit = entry.getQuantity(); unit > 0; unit--) {
+                saved.add(product);
+            }
+        });
+        return saved;
+    }
+
+    /**
+     * Rebuilds the product index and aggregates from the serialized product list,
+     * merging equal products back into single lines.
+     * @param in The stream to read from.
+     * @throws IOException if an I/O error occurs.
+     * @throws ClassNotFoundException if a serialized class cannot be found.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        List<Product> saved = (List<Product>) in.readObject();
+        products = new ProductIndex(saved.size());
+        byPrice = new TreeSet<>(CartEntry::compareByPrice);
+        for (Product product : saved) {
+            CartEntry entry = products.find(product);
+            if (entry == null) {
+                attach(product, 1);
+            } else {
+                changeQuantity(entry, entry.getQuantity() + 1);
+            }
+        }
     }
 }
@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares three ways of evaluating totals and discounts over a population of carts, as an analytics replay does:
+ * streaming each cart's products and summing their prices, asking each cart for its running total,
+ * and a columnar CartBatch. Each round evaluates a percentage, a flat and a composed discount for every cart.
+ * The time to build the batch is reported separately, since a replay builds it once and evaluates many scenarios.
+ *
+ * Usage: java CartBatchBenchmark [carts] [linesPerCart]
+ */
+public class CartBatchBenchmark {
+
+    public static void main(String[] args) {
+        int cartCount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int linesPerCart = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Random random = new Random(19);
+        List<Cart> carts = new ArrayList<>(cartCount);
+        for (int c = 0; c < cartCount; c++) {
+            Cart cart = new Cart();
+            for (int l = 0; l < linesPerCart; l++) {
+                cart.addProduct(Product.ofMinorUnits((long) l, "Product " + l, 100 + random.nextInt(20_000)),
+                                1 + random.nextInt(3));
+            }
+            carts.add(cart);
+        }
+        DiscountStrategy[] strategies = {
+            new PercentageDiscount(12.5),
+            new FlatDiscount(15),
+            new PercentageDiscount(10).combineWith(new FlatDiscount(5)).withMaxDiscount(40)
+        };
+        System.out.println(cartCount + " carts of " + linesPerCart + " lines, " + strategies.length + " discounts per cart");
+
+        double stream = BenchmarkRunner.nanosPerOperation(3, 5, cartCount, () -> {
+            long sum = 0;
+            for (Cart cart : carts) {
+                double total = cart.getProducts().stream().mapToDouble(Product::getPrice).sum();
+                for (DiscountStrategy strategy : strategies) {
+                    sum += Money.ofMajor(strategy.applyDiscount(total));
+                }
+            }
+            return sum;
+        });
+        BenchmarkRunner.report("  stream of products, per cart", stream, "ns/cart");
+
+        double running = BenchmarkRunner.nanosPerOperation(3, 5, cartCount, () -> {
+            long sum = 0;
+            for (Cart cart : carts) {
+                long total = cart.calculateTotalMinor();
+                for (DiscountStrategy strategy : strategies) {
+                    sum += strategy.applyDiscountMinor(total);
+                }
+            }
+            return sum;
+        });
+        BenchmarkRunner.report("  running total, per cart", running, "ns/cart");
+
+        double build = BenchmarkRunner.nanosPerOperation(1, 3, cartCount, () -> CartBatch.of(carts).getLineCount());
+        BenchmarkRunner.report("  building the batch (once)", build, "ns/cart");
+
+        CartBatch batch = CartBatch.of(carts);
+        double columnar = BenchmarkRunner.nanosPerOperation(5, 10, cartCount, () -> {
+            long sum = 0;
+            for (DiscountStrategy strategy : strategies) {
+                sum += batch.discountedGrandTotalMinor(strategy);
+            }
+            return sum;
+        });
+        BenchmarkRunner.report("  columnar batch", columnar, String.format("ns/cart (%.1fx stream, %.1fx running)",
+                                                                            stream / columnar, running / columnar));
+    }
+}
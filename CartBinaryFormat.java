@@ -0,0 +1,586 @@
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Compact, versioned binary encoding of cart contents.
+ *
+ * A cart file starts with a 10-byte header: the magic number, a format version byte,
+ * a flags byte reserved for optional features, and the line count as a 4-byte int.
+ * Each line record follows as:
+ * <ul>
+ *   <li>the id as a zig-zag varint,</li>
+ *   <li>the UTF-8 name length plus one as a varint (zero marks a null name), then the name bytes,</li>
+ *   <li>the price in cents as a varint,</li>
+ *   <li>the quantity as a varint.</li>
+ * </ul>
+ * When the {@link #FLAG_CHECKSUM} flag is set, the records are followed by a 4-byte CRC32 of the record bytes,
+ * so a file damaged after it was written is detected when read rather than loaded as a different cart.
+ * All multi-byte fixed-width values are big-endian.
+ * Older files are still read: version 2 records have no quantity and hold one unit each,
+ * and version 1 records also stored the price as an 8-byte IEEE 754 double.
+ */
+public final class CartBinaryFormat {
+    /** The first four bytes of every binary cart file ("CRTB"). */
+    public static final int MAGIC = 0x43525442;
+    /** The format version written by this class. */
+    public static final byte VERSION = 3;
+    // The first version, with prices stored as doubles
+    static final byte VERSION_DOUBLE_PRICES = 1;
+    // The first version with a quantity on every record
+    static final byte VERSION_QUANTITIES = 3;
+    /** The size of the file header in bytes. */
+    public static final int HEADER_SIZE = 10;
+    /** Byte offset of the record count within the header. */
+    public static final int COUNT_OFFSET = 6;
+    /** Header flag marking a file whose records are followed by a checksum footer. */
+    public static final byte FLAG_CHECKSUM = 1;
+    /** The size of the checksum footer in bytes. */
+    public static final int FOOTER_SIZE = 4;
+    // Byte offset of the flags within the header
+    private static final int FLAGS_OFFSET = 5;
+
+    // Largest encoding of the fixed parts of a record: a 10-byte id varint, a 5-byte length varint and a price varint
+    private static final int MAX_RECORD_OVERHEAD = 10 + 5 + 10;
+    private static final int MAX_QUANTITY_SIZE = 5;
+
+    private CartBinaryFormat() {
+    }
+
+    /**
+     * Writes a header for the given number of records.
+     *
+     * @param buffer the buffer to write to
+     * @param count the number of line records that will follow
+     */
+    public static void writeHeader(ByteBuffer buffer, int count) {
+        writeHeader(buffer, count, (byte) 0);
+    }
+
+    /**
+     * Writes a header for the given number of records with the given flags.
+     *
+     * @param buffer the buffer to write to
+     * @param count the number of line records that will follow
+     * @param flags the header flags, such as {@link #FLAG_CHECKSUM}
+     */
+    public static void writeHeader(ByteBuffer buffer, int count, byte flags) {
+        buffer.putInt(MAGIC).put(VERSION).put(flags).putInt(count);
+    }
+
+    /**
+     * Reads and validates a header, leaving the buffer positioned at the first record.
+     *
+     * @param buffer the buffer to read from
+     * @return the number of line records that follow
+     * @throws StreamCorruptedException if the header is not a supported binary cart header
+     */
+    public static int readHeader(ByteBuffer buffer) throws StreamCorruptedException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new StreamCorruptedException("Not a binary cart file.");
+        }
+        byte version = buffer.get();
+        if (version < VERSION_DOUBLE_PRICES || version > VERSION) {
+            throw new StreamCorruptedException("Unsupported cart file version " + version + ".");
+        }
+        byte flags = buffer.get();
+        if ((flags & ~FLAG_CHECKSUM) != 0) {
+            throw new StreamCorruptedException("Unsupported cart file flags " + flags + ".");
+        }
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("Negative record count " + count + ".");
+        }
+        return count;
+    }
+
+    /**
+     * Gets the format version of the header at the buffer position, without moving the position.
+     * Call it before {@link #readHeader(ByteBuffer)}, which validates it.
+     *
+     * @param buffer the buffer holding a header
+     * @return the version byte, or zero if the buffer is too short to hold one
+     */
+    public static byte peekVersion(ByteBuffer buffer) {
+        return buffer.remaining() < HEADER_SIZE ? 0 : buffer.get(buffer.position() + 4);
+    }
+
+    /**
+     * Gets the flags of the header at the buffer position, without moving the position.
+     *
+     * @param buffer the buffer holding a header
+     * @return the flags byte, or zero if the buffer is too short to hold one
+     */
+    public static byte peekFlags(ByteBuffer buffer) {
+        return buffer.remaining() < HEADER_SIZE ? 0 : buffer.get(buffer.position() + FLAGS_OFFSET);
+    }
+
+    /**
+     * Checks whether a buffer starts with the binary cart magic number, without moving its position.
+     *
+     * @param buffer the buffer to inspect
+     * @return true if the buffer holds a binary cart file
+     */
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Encodes a product.
+     *
+     * @param buffer the buffer to write to
+     * @param product the product to encode
+     * @throws BufferOverflowException if the buffer has too little space left
+     */
+    public static void writeProduct(ByteBuffer buffer, Product product) {
+        writeProduct(buffer, product, product.getPriceMinor());
+    }
+
+    private static void writeProduct(ByteBuffer buffer, Product product, long priceMinor) {
+        writeVarLong(buffer, zigZag(product.getId()));
+        String name = product.getName();
+        if (name == null) {
+            writeVarLong(buffer, 0);
+        } else {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(buffer, bytes.length + 1L);
+            buffer.put(bytes);
+        }
+        writeVarLong(buffer, priceMinor);
+    }
+
+    /**
+     * Encodes a cart line: the product followed by its quantity.
+     *
+     * @param buffer the buffer to write to
+     * @param product the product to encode
+     * @param quantity the number of units, at least one
+     * @throws BufferOverflowException if the buffer has too little space left
+     */
+    public static void writeLine(ByteBuffer buffer, Product product, int quantity) {
+        writeProduct(buffer, product);
+        writeVarLong(buffer, quantity);
+    }
+
+    /**
+     * Encodes a cart line at the unit price it was charged, which may be a per-cart override
+     * of the product's own price.
+     *
+     * @param buffer the buffer to write to
+     * @param line the line to encode
+     * @throws BufferOverflowException if the buffer has too little space left
+     */
+    public static void writeLine(ByteBuffer buffer, CartLine line) {
+        writeProduct(buffer, line.getProduct(), line.getUnitPriceMinor());
+        writeVarLong(buffer, line.getQuantity());
+    }
+
+    /**
+     * Decodes a cart line written by the given version of the format.
+     * Records from versions without quantities decode as a single unit.
+     *
+     * @param buffer the buffer to read from
+     * @param version the format version the record was written with
+     * @return the decoded line
+     * @throws StreamCorruptedException if the record is malformed or truncated
+     */
+    public static CartLine readLine(ByteBuffer buffer, byte version) throws StreamCorruptedException {
+        Product product = readProduct(buffer, version);
+        return new CartLine(product, version >= VERSION_QUANTITIES ? readQuantity(buffer) : 1);
+    }
+
+    /**
+     * Decodes a product written by this version of the format.
+     *
+     * @param buffer the buffer to read from
+     * @return the decoded product
+     * @throws StreamCorruptedException if the record is malformed or truncated
+     */
+    public static Product readProduct(ByteBuffer buffer) throws StreamCorruptedException {
+        return readProduct(buffer, VERSION);
+    }
+
+    /**
+     * Decodes a product written by the given version of the format.
+     *
+     * @param buffer the buffer to read from
+     * @param version the format version the record was written with
+     * @return the decoded product
+     * @throws StreamCorruptedException if the record is malformed or truncated
+     */
+    public static Product readProduct(ByteBuffer buffer, byte version) throws StreamCorruptedException {
+        try {
+            long id = unZigZag(readVarLong(buffer));
+            long nameLength = readVarLong(buffer) - 1;
+            String name = null;
+            if (nameLength >= 0) {
+                if (nameLength > buffer.remaining()) {
+                    throw new StreamCorruptedException("Product name runs past the end of the data.");
+                }
+                name = decodeUtf8(buffer, (int) nameLength);
+            }
+            if (version == VERSION_DOUBLE_PRICES) {
+                return new Product(id, name, buffer.getDouble());
+            }
+            return Product.ofMinorUnits(id, name, readVarLong(buffer));
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Product record is truncated.");
+        } catch (IllegalArgumentException e) {
+            throw new StreamCorruptedException("Invalid product record: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets an upper bound on the encoded size of a product record.
+     *
+     * @param product the product
+     * @return the maximum number of bytes {@link #writeProduct} may write
+     */
+    public static int maxRecordSize(Product product) {
+        String name = product.getName();
+        return MAX_RECORD_OVERHEAD + (name == null ? 0 : name.length() * 3);
+    }
+
+    /**
+     * Gets an upper bound on the encoded size of a line record.
+     *
+     * @param product the product on the line
+     * @return the maximum number of bytes {@link #writeLine} may write
+     */
+    public static int maxLineSize(Product product) {
+        return maxRecordSize(product) + MAX_QUANTITY_SIZE;
+    }
+
+    /**
+     * Writes a complete cart file to a channel, one single-unit record per product.
+     *
+     * @param channel the channel to write to, positioned where the file should start
+     * @param products the products to write
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(FileChannel channel, List<Product> products) throws IOException {
+        write(channel, products.iterator());
+    }
+
+    /**
+     * Writes a complete cart file to a channel, consuming the products one at a time,
+     * each as a single-unit record.
+     *
+     * @param channel the channel to write to, positioned where the file should start
+     * @param products the products to write
+     * @return the number of products written
+     * @throws IOException if an I/O error occurs, or there are more products than a cart file can hold
+     */
+    public static int write(FileChannel channel, Iterator<Product> products) throws IOException {
+        return write(channel, products, false);
+    }
+
+    /**
+     * Writes a complete cart file to a channel, consuming the products one at a time,
+     * each as a single-unit record, optionally followed by a checksum footer.
+     *
+     * @param channel the channel to write to, positioned where the file should start
+     * @param products the products to write
+     * @param checksummed whether to set {@link #FLAG_CHECKSUM} and write the footer
+     * @return the number of products written
+     * @throws IOException if an I/O error occurs, or there are more products than a cart file can hold
+     */
+    public static int write(FileChannel channel, Iterator<Product> products, boolean checksummed)
+            throws IOException {
+        return writeLines(channel, new Iterator<CartLine>() {
+            @Override
+            public boolean hasNext() {
+                return products.hasNext();
+            }
+
+            @Override
+            public CartLine next() {
+                return new CartLine(products.next(), 1);
+            }
+        }, checksummed);
+    }
+
+    /**
+     * Writes a complete cart file to a channel, consuming the lines one at a time.
+     * Each line is written at its unit price, so a reloaded line's product carries any price override.
+     * Only one buffer of encoded records is held in memory, whatever the number of lines;
+     * the record count in the header is filled in once the iterator is exhausted.
+     *
+     * @param channel the channel to write to, positioned where the file should start
+     * @param lines the lines to write
+     * @return the number of lines written
+     * @throws IOException if an I/O error occurs, or there are more lines than a cart file can hold
+     */
+    public static int writeLines(FileChannel channel, Iterator<CartLine> lines) throws IOException {
+        return writeLines(channel, lines, false);
+    }
+
+    /**
+     * Writes a complete cart file to a channel, consuming the lines one at a time as
+     * {@link #writeLines(FileChannel, Iterator)} does, optionally followed by a checksum footer.
+     * The checksum is computed as the records are written, so it costs no second pass over the file.
+     *
+     * @param channel the channel to write to, positioned where the file should start
+     * @param lines the lines to write
+     * @param checksummed whether to set {@link #FLAG_CHECKSUM} and write the footer
+     * @return the number of lines written
+     * @throws IOException if an I/O error occurs, or there are more lines than a cart file can hold
+     */
+    public static int writeLines(FileChannel channel, Iterator<CartLine> lines, boolean checksummed)
+            throws IOException {
+        long start = channel.position();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        writeHeader(buffer, 0, checksummed ? FLAG_CHECKSUM : 0);
+        CRC32 crc = checksummed ? new CRC32() : null;
+        int recordsFrom = HEADER_SIZE;
+        int count = 0;
+        while (lines.hasNext()) {
+            if (count == Integer.MAX_VALUE) {
+                throw new IOException("Too many lines for one cart file.");
+            }
+            CartLine line = lines.next();
+            int needed = maxLineSize(line.getProduct());
+            if (buffer.remaining() < needed) {
+                update(crc, buffer, recordsFrom);
+                recordsFrom = 0;
+                drain(channel, buffer);
+                if (buffer.capacity() < needed) {
+                    buffer = ByteBuffer.allocate(needed);
+                }
+            }
+            writeLine(buffer, line);
+            count++;
+        }
+        update(crc, buffer, recordsFrom);
+        if (crc != null) {
+            if (buffer.remaining() < FOOTER_SIZE) {
+                drain(channel, buffer);
+            }
+            buffer.putInt((int) crc.getValue());
+        }
+        drain(channel, buffer);
+        ByteBuffer countBytes = ByteBuffer.allocate(4).putInt(0, count);
+        while (countBytes.hasRemaining()) {
+            channel.write(countBytes, start + COUNT_OFFSET + countBytes.position());
+        }
+        return count;
+    }
+
+    /**
+     * Creates a lazy spliterator over the products of a complete cart file,
+     * producing each product once per unit of its line.
+     * Records are decoded only as they are consumed, so the file can be much larger than the heap
+     * when the buffer is memory-mapped. A file with a checksum footer is checksummed as its records are decoded,
+     * and the checksum is verified when the spliterator reaches the end of the file, so a consumer that stops
+     * early has seen products that were not verified.
+     *
+     * @param buffer the buffer holding the file, positioned at the header
+     * @return a spliterator producing the products in file order; it is sized only for files without quantities
+     * @throws StreamCorruptedException if the header is invalid or the file too short for its footer; corrupt
+     *         records, a checksum mismatch or data after the last record surface later as an
+     *         {@link UncheckedIOException}
+     */
+    public static Spliterator<Product> spliterator(ByteBuffer buffer) throws StreamCorruptedException {
+        byte version = peekVersion(buffer);
+        boolean checksummed = (peekFlags(buffer) & FLAG_CHECKSUM) != 0;
+        int expectedChecksum = 0;
+        if (checksummed) {
+            if (buffer.remaining() < HEADER_SIZE + FOOTER_SIZE) {
+                throw new StreamCorruptedException("Cart file is truncated.");
+            }
+            expectedChecksum = buffer.getInt(buffer.limit() - FOOTER_SIZE);
+            buffer.limit(buffer.limit() - FOOTER_SIZE);
+        }
+        int footerChecksum = expectedChecksum;
+        int count = readHeader(buffer);
+        int characteristics = Spliterator.ORDERED | Spliterator.NONNULL
+                              | (version < VERSION_QUANTITIES ? Spliterator.SIZED : 0);
+        return new Spliterators.AbstractSpliterator<Product>(count, characteristics) {
+            private int remaining = count;
+            private Product current;
+            private int unitsLeft;
+            private CRC32 crc = checksummed ? new CRC32() : null;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Product> action) {
+                if (unitsLeft == 0) {
+                    if (remaining == 0) {
+                        verifyStreamed();
+                        return false;
+                    }
+                    int start = buffer.position();
+                    try {
+                        CartLine line = readLine(buffer, version);
+                        current = line.getProduct();
+                        unitsLeft = line.getQuantity();
+                    } catch (StreamCorruptedException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    update(crc, buffer, start);
+                    remaining--;
+                }
+                unitsLeft--;
+                action.accept(current);
+                return true;
+            }
+
+            // Checks the records read against the footer, once
+            private void verifyStreamed() {
+                if (crc == null) {
+                    return;
+                }
+                int actual = (int) crc.getValue();
+                crc = null;
+                if (buffer.hasRemaining()) {
+                    throw new UncheckedIOException(
+                            new StreamCorruptedException("Cart file has data after its last record."));
+                }
+                if (actual != footerChecksum) {
+                    throw new UncheckedIOException(new StreamCorruptedException("Cart file checksum does not match."));
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads every product from a buffer holding a complete cart file,
+     * repeating each product once per unit of its line.
+     *
+     * @param buffer the buffer to read, positioned at the header
+     * @return the decoded products
+     * @throws StreamCorruptedException if the data is malformed or truncated
+     */
+    public static List<Product> read(ByteBuffer buffer) throws StreamCorruptedException {
+        List<CartLine> lines = readLines(buffer);
+        List<Product> products = new ArrayList<>(lines.size());
+        for (CartLine line : lines) {
+            for (int unit = line.getQuantity(); unit > 0; unit--) {
+                products.add(line.getProduct());
+            }
+        }
+        return products;
+    }
+
+    /**
+     * Reads every line from a buffer holding a complete cart file.
+     * Files written before quantities existed give one single-unit line per record.
+     * A file with a checksum footer is verified first, and its records must end exactly at the footer.
+     *
+     * @param buffer the buffer to read, positioned at the header
+     * @return the decoded lines
+     * @throws StreamCorruptedException if the data is malformed or truncated, or does not match its checksum
+     */
+    public static List<CartLine> readLines(ByteBuffer buffer) throws StreamCorruptedException {
+        byte version = peekVersion(buffer);
+        boolean checksummed = (peekFlags(buffer) & FLAG_CHECKSUM) != 0;
+        if (checksummed) {
+            verifyChecksum(buffer);
+        }
+        int count = readHeader(buffer);
+        // The count comes from the file, so cap the pre-sizing in case it is corrupt
+        List<CartLine> lines = new ArrayList<>(Math.min(count, buffer.remaining() / 10 + 1));
+        for (int i = 0; i < count; i++) {
+            lines.add(readLine(buffer, version));
+        }
+        if (checksummed && buffer.hasRemaining()) {
+            throw new StreamCorruptedException("Cart file has data after its last record.");
+        }
+        return lines;
+    }
+
+    // Checks the footer against the records and leaves the footer outside the buffer's limit
+    private static void verifyChecksum(ByteBuffer buffer) throws StreamCorruptedException {
+        if (buffer.remaining() < HEADER_SIZE + FOOTER_SIZE) {
+            throw new StreamCorruptedException("Cart file is truncated.");
+        }
+        int footer = buffer.limit() - FOOTER_SIZE;
+        ByteBuffer records = buffer.duplicate();
+        records.position(buffer.position() + HEADER_SIZE).limit(footer);
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        if ((int) crc.getValue() != buffer.getInt(footer)) {
+            throw new StreamCorruptedException("Cart file checksum does not match.");
+        }
+        buffer.limit(footer);
+    }
+
+    // Adds the bytes written to the buffer since the given offset to a running checksum, if there is one
+    private static void update(CRC32 crc, ByteBuffer buffer, int from) {
+        if (crc != null) {
+            ByteBuffer written = buffer.duplicate();
+            written.limit(written.position()).position(from);
+            crc.update(written);
+        }
+    }
+
+    static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarLong(ByteBuffer buffer) throws StreamCorruptedException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint is too long.");
+    }
+
+    static int readQuantity(ByteBuffer buffer) throws StreamCorruptedException {
+        try {
+            long quantity = readVarLong(buffer);
+            if (quantity <= 0 || quantity > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Invalid quantity " + quantity + ".");
+            }
+            return (int) quantity;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Line record is truncated.");
+        }
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String decodeUtf8(ByteBuffer buffer, int length) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            return new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
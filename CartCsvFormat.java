@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Comma-separated cart import and export, as used by bulk procurement uploads.
+ *
+ * Each line holds {@code id,name,price}. An optional header line is skipped, names containing commas,
+ * quotes or line breaks are wrapped in double quotes with embedded quotes doubled, and blank lines are ignored.
+ *
+ * The reader parses directly from a byte buffer, typically a memory-mapped file: ids and prices are
+ * decoded from the bytes without creating intermediate strings, so the only allocations per line are
+ * the product name and the Product itself. Prices are read straight into cents; one with more than two
+ * decimals is rounded to the nearest cent, ties to even.
+ */
+public final class CartCsvFormat {
+    /** The header line written by {@link #write(Iterator, Writer)}. */
+    public static final String HEADER = "id,name,price";
+
+    // Cents per unit of the parsed digits, indexed by the number of decimal places plus one (no point at all is -1)
+    private static final long[] CENTS_PER_DIGIT = {100, 100, 10, 1};
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private CartCsvFormat() {
+    }
+
+    /**
+     * Creates a lazy, sequential spliterator over the products in a CSV buffer.
+     * Malformed lines surface as an {@link UncheckedIOException} when they are reached.
+     *
+     * @param buffer the CSV data, read from its position to its limit
+     * @return a spliterator producing one product per line
+     */
+    public static Spliterator<Product> spliterator(ByteBuffer buffer) {
+        return new Reader(buffer);
+    }
+
+    /**
+     * Writes products as CSV, starting with a header line.
+     *
+     * @param products the products to write, consumed once
+     * @param out the writer to write to; the caller is responsible for buffering and closing it
+     * @return the number of products written
+     * @throws IOException if an I/O error occurs
+     */
+    public static long write(Iterator<Product> products, Writer out) throws IOException {
+        out.write(HEADER);
+        out.write('\n');
+        long count = 0;
+        StringBuilder line = new StringBuilder(64);
+        while (products.hasNext()) {
+            Product product = products.next();
+            line.setLength(0);
+            line.append(product.getId()).append(',');
+            appendName(line, product.getName());
+            line.append(',');
+            Money.appendTo(line, product.getPriceMinor()).append('\n');
+            out.append(line);
+            count++;
+        }
+        return count;
+    }
+
+    private static void appendName(StringBuilder line, String name) {
+        if (name == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < name.length() && !quote; i++) {
+            char c = name.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(name);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private static final class Reader extends Spliterators.AbstractSpliterator<Product> {
+        private final ByteBuffer buffer;
+        private byte[] scratch = new byte[64];
+        private long line;
+
+        Reader(ByteBuffer buffer) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Product> action) {
+            try {
+                Product product = next();
+                if (product == null) {
+                    return false;
+                }
+                action.accept(product);
+                return true;
+            } catch (StreamCorruptedException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Product next() throws StreamCorruptedException {
+            while (buffer.hasRemaining()) {
+                byte first = buffer.get(buffer.position());
+                if (first == '\r') {
+                    buffer.get();
+                    continue;
+                }
+                line++;
+                if (first == '\n') {
+                    buffer.get();
+                    continue;
+                }
+                if (line == 1 && first != '-' && (first < '0' || first > '9')) {
+                    skipLine();
+                    continue;
+                }
+                long id = parseId();
+                String name = parseName();
+                long priceMinor = parsePrice();
+                endLine();
+                try {
+                    return Product.ofMinorUnits(id, name, priceMinor);
+                } catch (IllegalArgumentException e) {
+                    throw corrupt(e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        private long parseId() throws StreamCorruptedException {
+            boolean negative = buffer.get(buffer.position()) == '-';
+            if (negative) {
+                buffer.get();
+            }
+            long value = 0;
+            int digits = 0;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == ',') {
+                    if (digits == 0) {
+                        break;
+                    }
+                    return negative ? -value : value;
+                }
+                if (b < '0' || b > '9' || value > (Long.MAX_VALUE - (b - '0')) / 10) {
+                    break;
+                }
+                value = value * 10 + (b - '0');
+                digits++;
+            }
+            throw corrupt("invalid product id");
+        }
+
+        private String parseName() throws StreamCorruptedException {
+            int length = 0;
+            if (buffer.hasRemaining() && buffer.get(buffer.position()) == '"') {
+                buffer.get();
+                while (true) {
+                    if (!buffer.hasRemaining()) {
+                        throw corrupt("unterminated quoted name");
+                    }
+                    byte b = buffer.get();
+                    if (b == '"') {
+                        if (!buffer.hasRemaining() || buffer.get(buffer.position()) != '"') {
+                            break;
+                        }
+                        buffer.get();
+                    }
+                    length = append(length, b);
+                }
+                if (!buffer.hasRemaining() || buffer.get() != ',') {
+                    throw corrupt("expected a comma after the quoted name");
+                }
+            } else {
+                while (true) {
+                    if (!buffer.hasRemaining()) {
+                        throw corrupt("missing price");
+                    }
+                    byte b = buffer.get();
+                    if (b == ',') {
+                        break;
+                    }
+                    if (b == '\n' || b == '\r') {
+                        throw corrupt("missing price");
+                    }
+                    length = append(length, b);
+                }
+            }
+            return length == 0 ? null : new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // A plain decimal with at most two places converts to cents exactly from its digits;
+        // anything else is parsed as a double and rounded to the nearest cent
+        private long parsePrice() throws StreamCorruptedException {
+            int start = buffer.position();
+            long mantissa = 0;
+            int scale = -1;
+            boolean simple = true;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get(buffer.position());
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                buffer.get();
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    simple &= mantissa < MAX_EXACT_MANTISSA;
+                    if (scale >= 0) {
+                        scale++;
+                    }
+                } else if (b == '.' && scale < 0) {
+                    scale = 0;
+                } else {
+                    simple = false;
+                }
+            }
+            int length = buffer.position() - start;
+            if (length == 0) {
+                throw corrupt("missing price");
+            }
+            if (simple && scale <= Money.SCALE) {
+                return mantissa * CENTS_PER_DIGIT[scale + 1];
+            }
+            int end = buffer.position();
+            buffer.position(start);
+            int copied = 0;
+            while (buffer.position() < end) {
+                copied = append(copied, buffer.get());
+            }
+            try {
+                return Money.ofMajor(Double.parseDouble(new String(scratch, 0, copied, StandardCharsets.US_ASCII)));
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                throw corrupt("invalid price");
+            }
+        }
+
+        private void endLine() {
+            if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\r') {
+                buffer.get();
+            }
+            if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+                buffer.get();
+            }
+        }
+
+        private void skipLine() {
+            while (buffer.hasRemaining() && buffer.get() != '\n') {
+                // Skip to the end of the line
+            }
+        }
+
+        private int append(int length, byte b) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, length * 2);
+            }
+            scratch[length] = b;
+            return length + 1;
+        }
+
+        private StreamCorruptedException corrupt(String reason) {
+            return new StreamCorruptedException("Line " + line + " of the CSV cart: " + reason + ".");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * A line held by a cart: a product and the number of units of it.
+ * Each entry remembers the price it is currently ordered under in the cart's price index,
+ * and listens to its product so price changes made outside the cart keep the cart's aggregates current.
+ */
+class CartEntry implements Product.PriceListener {
+    private final Product product;
+    private final Cart cart;
+    private final long sequence;
+    private long indexedPrice; // In cents; the price the cart charges, which an override may set
+    private int quantity;
+    private boolean overridden;
+    private boolean detached; // Set once the entry has left its cart; a later price notification is stale
+
+    /**
+     * Creates an entry for a product added to a cart.
+     *
+     * @param product the product held by this entry
+     * @param cart the cart owning this entry, notified of price changes
+     * @param sequence the insertion sequence number, unique within the cart
+     * @param quantity the number of units
+     */
+    CartEntry(Product product, Cart cart, long sequence, int quantity) {
+        this.product = product;
+        this.cart = cart;
+        this.sequence = sequence;
+        this.quantity = quantity;
+        this.indexedPrice = product == null ? 0 : product.getPriceMinor();
+    }
+
+    /**
+     * Creates a search key positioned at the given price, used to probe the cart's price index.
+     *
+     * @param price the price in cents to position the key at
+     * @param sequence the sequence number breaking ties between equal prices
+     * @return an entry that holds no product
+     */
+    static CartEntry priceKey(long price, long sequence) {
+        CartEntry key = new CartEntry(null, null, sequence, 0);
+        key.indexedPrice = price;
+        return key;
+    }
+
+    Product getProduct() {
+        return product;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    int getQuantity() {
+        return quantity;
+    }
+
+    void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    boolean isOverridden() {
+        return overridden;
+    }
+
+    void setOverridden(boolean overridden) {
+        this.overridden = overridden;
+    }
+
+    boolean isDetached() {
+        return detached;
+    }
+
+    void setDetached() {
+        this.detached = true;
+    }
+
+    long getIndexedPrice() {
+        return indexedPrice;
+    }
+
+    void setIndexedPrice(long indexedPrice) {
+        this.indexedPrice = indexedPrice;
+    }
+
+    @Override
+    public void priceChanged(Product changed, long oldPriceMinor, long newPriceMinor) {
+        cart.onPriceChanged(this);
+    }
+
+    /**
+     * Orders entries by indexed price, then by insertion order.
+     *
+     * @param a the first entry
+     * @param b the second entry
+     * @return a negative number, zero, or a positive number as {@code a} sorts before, with, or after {@code b}
+     */
+    static int compareByPrice(CartEntry a, CartEntry b) {
+        int byPrice = Long.compare(a.indexedPrice, b.indexedPrice);
+        return byPrice != 0 ? byPrice : Long.compare(a.sequence, b.sequence);
+    }
+}
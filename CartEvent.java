@@ -0,0 +1,136 @@
+/**
+ * A change made to a cart through a {@link CartService}, as published to its {@link CartEventSink}.
+ * Events are immutable, so they can be handed to other threads and kept by listeners.
+ */
+public final class CartEvent {
+
+    /**
+     * The kinds of change.
+     */
+    public enum Type {
+        /** Units of a product were added; the quantity is the number added. */
+        PRODUCT_ADDED,
+        /** One unit of a product was removed; the quantity is the number left. */
+        PRODUCT_REMOVED,
+        /** The quantity of a product was set; the quantity is the new one. */
+        QUANTITY_CHANGED,
+        /** Every product was removed; there is no product and the quantity is 0. */
+        CART_CLEARED,
+        /** The contents were replaced by those of a file; there is no product and the quantity is the new count. */
+        CART_LOADED,
+        /** Several products were added at once; there is no product and the quantity is the number of units added. */
+        PRODUCTS_ADDED,
+        /** Products were removed by ID at once; there is no product and the quantity is the number of units removed. */
+        PRODUCTS_REMOVED,
+        /** Another cart was merged in; there is no product and the quantity is the number of units added. */
+        CART_MERGED
+    }
+
+    private final Type type;
+    private final Cart cart;
+    private final Product product;
+    private final int quantity;
+    private final long timestampMillis;
+
+    private CartEvent(Type type, Cart cart, Product product, int quantity) {
+        this.type = type;
+        this.cart = cart;
+        this.product = product;
+        this.quantity = quantity;
+        this.timestampMillis = System.currentTimeMillis();
+    }
+
+    public static CartEvent productAdded(Cart cart, Product product, int quantity) {
+        return new CartEvent(Type.PRODUCT_ADDED, cart, product, quantity);
+    }
+
+    public static CartEvent productRemoved(Cart cart, Product product, int quantityLeft) {
+        return new CartEvent(Type.PRODUCT_REMOVED, cart, product, quantityLeft);
+    }
+
+    public static CartEvent quantityChanged(Cart cart, Product product, int quantity) {
+        return new CartEvent(Type.QUANTITY_CHANGED, cart, product, quantity);
+    }
+
+    public static CartEvent cartCleared(Cart cart) {
+        return new CartEvent(Type.CART_CLEARED, cart, null, 0);
+    }
+
+    public static CartEvent cartLoaded(Cart cart, int productCount) {
+        return new CartEvent(Type.CART_LOADED, cart, null, productCount);
+    }
+
+    public static CartEvent productsAdded(Cart cart, int quantityAdded) {
+        return new CartEvent(Type.PRODUCTS_ADDED, cart, null, quantityAdded);
+    }
+
+    public static CartEvent productsRemoved(Cart cart, int quantityRemoved) {
+        return new CartEvent(Type.PRODUCTS_REMOVED, cart, null, quantityRemoved);
+    }
+
+    public static CartEvent cartMerged(Cart cart, int quantityAdded) {
+        return new CartEvent(Type.CART_MERGED, cart, null, quantityAdded);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Cart getCart() {
+        return cart;
+    }
+
+    /**
+     * Gets the product the change was about.
+     *
+     * @return the product, or null for events about the whole cart
+     */
+    public Product getProduct() {
+        return product;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Gets when the change was made.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * Describes the change in the words CartService used to print to the console.
+     *
+     * @return a one-line description for people
+     */
+    public String describe() {
+        switch (type) {
+            case PRODUCT_ADDED:
+                return "Added product: " + product.getName() + (quantity == 1 ? "" : " x " + quantity);
+            case PRODUCT_REMOVED:
+                return "Removed product: " + product.getName() + ", " + quantity + " left";
+            case QUANTITY_CHANGED:
+                return "Set quantity of " + product.getName() + " to " + quantity;
+            case CART_CLEARED:
+                return "The cart has been cleared.";
+            case PRODUCTS_ADDED:
+                return "Added " + quantity + " products to the cart.";
+            case PRODUCTS_REMOVED:
+                return "Removed " + quantity + " products from the cart.";
+            case CART_MERGED:
+                return "Merged " + quantity + " products into the cart.";
+            default:
+                return "Loaded " + quantity + " products into the cart.";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CartEvent{type=" + type + ", product=" + product + ", quantity=" + quantity
+               + ", timestampMillis=" + timestampMillis + '}';
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Subscribes to the cart events delivered by an {@link AsyncCartEventSink}, such as for auditing,
+ * recommendations or analytics. Listeners are called one at a time on the sink's dispatcher thread.
+ */
+@FunctionalInterface
+public interface CartEventListener {
+
+    /**
+     * Handles one event. An exception thrown here is counted by the sink and does not stop delivery.
+     *
+     * @param event the change that was made
+     */
+    void onCartEvent(CartEvent event);
+}
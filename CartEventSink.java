@@ -0,0 +1,50 @@
+/**
+ * Receives the events a {@link CartService} publishes as it changes its cart.
+ * A sink is called on the thread making the change, so one that does slow work, such as writing to the
+ * console or a network, should hand events off to another thread the way {@link AsyncCartEventSink} does.
+ */
+@FunctionalInterface
+public interface CartEventSink {
+
+    /**
+     * Takes one event.
+     *
+     * @param event the change that was made
+     */
+    void publish(CartEvent event);
+
+    /**
+     * Tells publishers whether to create events at all. When this is false they skip building them,
+     * so a disabled sink costs a single check per change.
+     *
+     * @return true if published events are used
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Provides a sink that discards every event. This is what a CartService uses until it is given another.
+     *
+     * @return the disabled sink
+     */
+    static CartEventSink noop() {
+        return Noop.INSTANCE;
+    }
+
+    /**
+     * The sink behind {@link #noop()}.
+     */
+    enum Noop implements CartEventSink {
+        INSTANCE;
+
+        @Override
+        public void publish(CartEvent event) {
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    }
+}
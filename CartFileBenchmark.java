@@ -0,0 +1,78 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the binary cart format written by CartFileHandler with the Java serialization it replaced,
+ * reporting file size and save/load time for carts of several sizes.
+ *
+ * Usage: java CartFileBenchmark [size...]
+ */
+public class CartFileBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length == 0 ? new int[] {1_000, 100_000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+        Path directory = Files.createTempDirectory("cart-bench");
+        for (int size : sizes) {
+            Cart cart = new Cart();
+            for (long id = 0; id < size; id++) {
+                cart.addProduct(new Product(id, "Catalog item " + id, 1 + (id % 5000) / 100.0));
+            }
+            String binaryFile = directory.resolve("binary-" + size + ".dat").toString();
+            String legacyFile = directory.resolve("legacy-" + size + ".dat").toString();
+            int rounds = Math.max(5, 2_000_000 / size);
+
+            double binarySave = BenchmarkRunner.nanosPerOperation(rounds, rounds, 1, () -> {
+                try {
+                    CartFileHandler.saveCart(cart, binaryFile);
+                    return 1;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            double legacySave = BenchmarkRunner.nanosPerOperation(rounds, rounds, 1, () -> {
+                try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+                    oos.writeObject(new ArrayList<>(cart.getProducts()));
+                    return 1;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            double binaryLoad = BenchmarkRunner.nanosPerOperation(rounds, rounds, 1, () -> {
+                try {
+                    return CartFileHandler.loadCart(binaryFile).size();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            double legacyLoad = BenchmarkRunner.nanosPerOperation(rounds, rounds, 1, () -> {
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacyFile))) {
+                    return ((List<?>) ois.readObject()).size();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            System.out.println(size + " products");
+            BenchmarkRunner.report("  binary file size", CartFileHandler.getCartFileSize(binaryFile), "bytes");
+            BenchmarkRunner.report("  serialized file size", CartFileHandler.getCartFileSize(legacyFile), "bytes");
+            BenchmarkRunner.report("  binary save", binarySave / 1e6, "ms");
+            BenchmarkRunner.report("  serialized save", legacySave / 1e6, "ms");
+            BenchmarkRunner.report("  binary load", binaryLoad / 1e6, "ms");
+            BenchmarkRunner.report("  serialized load", legacyLoad / 1e6, "ms");
+            CartFileHandler.deleteCartFile(binaryFile);
+            CartFileHandler.deleteCartFile(legacyFile);
+        }
+        Files.deleteIfExists(directory);
+    }
+}
@@ -1,19 +1,47 @@
 import java.io.*;
+import java.nio.ByteBuffer; // For binary cart encoding
+import java.nio.MappedByteBuffer; // For streaming large cart files without loading them
+import java.nio.channels.FileChannel; // For reading and writing cart files in bulk
+import java.nio.file.AtomicMoveNotSupportedException; // For falling back where a rename cannot be atomic
+import java.nio.file.FileAlreadyExistsException; // For retrying a temporary file name already taken
 import java.nio.file.Files; // For advanced file handling
+import java.nio.file.Path; // For resolving temporary files beside the target
 import java.nio.file.Paths; // For checking if the file exists
+import java.nio.file.StandardCopyOption; // For moving a finished file into place
+import java.nio.file.StandardOpenOption; // For choosing how cart and log files are opened
 import java.nio.charset.StandardCharsets; // For standard charset when writing logs or text files
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.time.LocalDateTime;
  
+/**
+ * Reads and writes cart files.
+ *
+ * Cart files are saved atomically: the new contents are written to a temporary file in the same directory,
+ * forced to disk and then renamed over the target. A crash mid-save leaves the previous file intact, at worst
+ * with a stray {@code .tmp} file beside it, and a reader that opened the file before the rename keeps reading
+ * the previous complete version, so loads never see a half-written cart and never block a save. Saved binary
+ * files carry a checksum footer, which loading verifies.
+ */
 public class CartFileHandler {
  
+    // Legacy cart files may only contain a list of products; anything else is rejected before it is instantiated
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=5;java.util.ArrayList;java.lang.Object;java.util.Collections$UnmodifiableRandomAccessList;"
+            + "java.util.Collections$UnmodifiableList;java.util.Collections$UnmodifiableCollection;"
+            + "java.lang.Long;java.lang.Number;Product;!*");
+
     /**
-     * Saves the cart's products to a file using serialization.
+     * Saves the cart's lines to a file in the compact binary cart format, one record per distinct product.
+     * The file is replaced atomically and carries a checksum footer.
      *
      * @param cart the Cart object containing the products
      * @param filename the name of the file where the cart will be saved
-     * @throws IOException if an I/O error occurs during file writing
+     * @throws IOException if an I/O error occurs during file writing; the previous file is then left unchanged
      */
     public static void saveCart(Cart cart, String filename) throws IOException {
         // Check if cart is null
@@ -21,19 +49,19 @@ public class CartFileHandler {
             throw new IllegalArgumentException("Cart cannot be null.");
         }
  
-        // Write cart products to file using ObjectOutputStream
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
-            oos.writeObject(cart.getProducts());
-        }
+        List<CartLine> lines = cart.getLines();
+        writeAtomically(filename, channel -> CartBinaryFormat.writeLines(channel, lines.iterator(), true));
     }
  
     /**
-     * Loads the cart's products from a file using deserialization.
+     * Loads the cart's products from a file.
+     * Files in the binary cart format are decoded directly, after verifying their checksum if they have one;
+     * older files written with Java serialization are still read, but only a list of products is accepted from them.
      *
      * @param filename the name of the file from which the cart will be loaded
-     * @return the list of products deserialized from the file
-     * @throws IOException if an I/O error occurs during file reading
-     * @throws ClassNotFoundException if the class of the serialized object cannot be found
+     * @return the list of products read from the file
+     * @throws IOException if an I/O error occurs during file reading, or the file is malformed or fails its checksum
+     * @throws ClassNotFoundException if the class of a legacy serialized object cannot be found
      */
     public static List<Product> loadCart(String filename) throws IOException, ClassNotFoundException {
         // Check if file exists before attempting to load
@@ -41,12 +69,256 @@ public class CartFileHandler {
             throw new FileNotFoundException("The file " + filename + " does not exist.");
         }
  
-        // Read cart products from file using ObjectInputStream
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename))) {
-            return (List<Product>) ois.readObject();
+        ByteBuffer contents = readFully(filename);
+        if (CartBinaryFormat.isBinary(contents)) {
+            return CartBinaryFormat.read(contents);
+        }
+        return readLegacyCart(contents);
+    }
+
+    /**
+     * Loads the cart's lines from a file, keeping each line's quantity instead of repeating its product.
+     * Files written before quantities existed give one single-unit line per saved product.
+     * A checksum footer is verified as by {@link #loadCart(String)}.
+     *
+     * @param filename the name of the file from which the cart will be loaded
+     * @return the list of lines read from the file
+     * @throws IOException if an I/O error occurs during file reading, or the file is malformed or fails its checksum
+     * @throws ClassNotFoundException if the class of a legacy serialized object cannot be found
+     */
+    public static List<CartLine> loadCartLines(String filename) throws IOException, ClassNotFoundException {
+        if (!Files.exists(Paths.get(filename))) {
+            throw new FileNotFoundException("The file " + filename + " does not exist.");
+        }
+
+        ByteBuffer contents = readFully(filename);
+        if (CartBinaryFormat.isBinary(contents)) {
+            return CartBinaryFormat.readLines(contents);
+        }
+        List<Product> products = readLegacyCart(contents);
+        List<CartLine> lines = new ArrayList<>(products.size());
+        for (Product product : products) {
+            lines.add(new CartLine(product, 1));
+        }
+        return lines;
+    }
+
+    /**
+     * Reads a cart saved with Java serialization by earlier versions of this class.
+     *
+     * @param contents the file contents
+     * @return the list of products deserialized from the file
+     * @throws IOException if the contents are not a serialized product list
+     * @throws ClassNotFoundException if the class of a serialized object cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Product> readLegacyCart(ByteBuffer contents) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(contents.array(), contents.position(), contents.remaining()))) {
+            ois.setObjectInputFilter(LEGACY_FILTER);
+            Object saved = ois.readObject();
+            if (!(saved instanceof List)) {
+                throw new StreamCorruptedException("Legacy cart file does not contain a product list.");
+            }
+            return new ArrayList<>((List<Product>) saved);
+        }
+    }
+
+    private static ByteBuffer readFully(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The file " + filename + " is too large to load.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full or the file ends
+            }
+            buffer.flip();
+            return buffer;
         }
     }
  
+    /**
+     * Saves products to a file in the binary cart format, consuming them one at a time.
+     * Memory use stays bounded however many products the iterator yields, but a cart file holds at most
+     * Integer.MAX_VALUE records. The file is replaced atomically and carries a checksum footer.
+     *
+     * @param products the products to save
+     * @param filename the name of the file where the products will be saved
+     * @return the number of products written
+     * @throws IOException if an I/O error occurs during file writing, or the iterator yields more products than
+     *         a cart file can hold; the previous file is then left unchanged
+     */
+    public static int saveCart(Iterator<Product> products, String filename) throws IOException {
+        if (products == null) {
+            throw new IllegalArgumentException("Products cannot be null.");
+        }
+        return writeAtomically(filename, channel -> CartBinaryFormat.write(channel, products, true));
+    }
+
+    // Writes one file's contents to a channel
+    private interface ChannelWriter {
+        int write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Writes a file through a uniquely named temporary file in the same directory, so concurrent saves of
+     * the same cart never share one, then forces it to disk and renames it over the target.
+     * The directory is synced afterwards where the platform allows, so the rename itself survives a crash.
+     * The new file keeps the POSIX permissions of the file it replaces, and a new target gets the permissions
+     * any newly created file would.
+     *
+     * @param filename the file to replace
+     * @param writer writes the new contents
+     * @return what the writer returned
+     * @throws IOException if the file cannot be written or moved into place; the temporary file is removed then
+     */
+    private static int writeAtomically(String filename, ChannelWriter writer) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path directory = target.getParent();
+        Path temp = createTempFor(target);
+        boolean moved = false;
+        try {
+            copyPermissions(target, temp);
+            int written;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                written = writer.write(channel);
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            syncDirectory(directory);
+            return written;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // Unlike Files.createTempFile, which restricts the file to its owner, creates it as any new file is created
+    private static Path createTempFor(Path target) throws IOException {
+        while (true) {
+            String suffix = Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36);
+            Path temp = target.resolveSibling(target.getFileName() + "." + suffix + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // Taken by another save; try another name
+            }
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the new file inherits the directory's defaults
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms cannot open or sync a directory; the file itself is already on disk
+        }
+    }
+
+    /**
+     * Streams the products of a saved cart lazily from a memory-mapped view of the file.
+     * Products are decoded as the stream is consumed, so only the products still referenced are on the heap.
+     * Legacy serialized cart files cannot be read incrementally and are loaded in full.
+     * A corrupt record surfaces as an {@link UncheckedIOException} when the stream reaches it, and so does
+     * a checksum footer that does not match once the stream has read the last record.
+     *
+     * @param filename the name of the cart file
+     * @return a sequential stream of the products in file order
+     * @throws IOException if the file cannot be opened or is not a cart file
+     */
+    public static Stream<Product> streamCart(String filename) throws IOException {
+        MappedByteBuffer buffer = map(filename);
+        if (CartBinaryFormat.isBinary(buffer)) {
+            return StreamSupport.stream(CartBinaryFormat.spliterator(buffer), false);
+        }
+        try {
+            return loadCart(filename).stream();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The file " + filename + " is not a readable cart file.", e);
+        }
+    }
+
+    /**
+     * Streams products from a CSV file of {@code id,name,price} lines, such as a bulk order upload.
+     * The file is memory-mapped and parsed as the stream is consumed.
+     * A malformed line surfaces as an {@link UncheckedIOException} when the stream reaches it.
+     *
+     * @param filename the name of the CSV file
+     * @return a sequential stream of the products in file order
+     * @throws IOException if the file cannot be opened
+     */
+    public static Stream<Product> streamCsv(String filename) throws IOException {
+        return StreamSupport.stream(CartCsvFormat.spliterator(map(filename)), false);
+    }
+
+    /**
+     * Exports products to a CSV file of {@code id,name,price} lines, consuming them one at a time.
+     *
+     * @param products the products to export
+     * @param filename the name of the CSV file to write
+     * @return the number of products written
+     * @throws IOException if an I/O error occurs during file writing
+     */
+    public static long exportCsv(Iterator<Product> products, String filename) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8)) {
+            return CartCsvFormat.write(products, writer);
+        }
+    }
+
+    private static MappedByteBuffer map(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file " + filename + " is too large to map.");
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Opens the append-only journal of a cart, creating it if needed.
+     * Recording each change in the journal avoids rewriting the whole cart file on every autosave.
+     *
+     * @param basename the path prefix of the journal and snapshot files
+     * @param compactionThreshold the journal size in bytes above which an attached journal compacts itself
+     *                            and {@link CartJournal#maybeCompact(Cart)} compacts
+     * @return the open journal
+     * @throws IOException if the journal cannot be opened
+     */
+    public static CartJournal openJournal(String basename, long compactionThreshold) throws IOException {
+        return new CartJournal(basename, compactionThreshold);
+    }
+
+    /**
+     * Rebuilds a cart from its journal snapshot and the changes recorded after it.
+     * A torn or corrupt record at the end of the journal is dropped.
+     *
+     * @param basename the path prefix of the journal and snapshot files
+     * @return the recovered cart
+     * @throws IOException if an I/O error occurs or the snapshot is corrupt
+     */
+    public static Cart recoverCart(String basename) throws IOException {
+        return CartJournal.recover(basename);
+    }
+
     /**
      * Deletes the cart file if it exists.
      *
@@ -64,6 +336,8 @@ public class CartFileHandler {
     /**
      * Appends a custom log message to a text file for tracking cart operations.
      * The log file will be created if it doesn't exist.
+     * Each call opens, writes and closes the file; for logging on a request path use {@link AsyncCartLogger},
+     * which batches messages on a background thread.
      *
      * @param logMessage the message to append to the log file
      * @param logFilename the name of the log file
@@ -72,8 +346,8 @@ public class CartFileHandler {
     public static void logCartOperation(String logMessage, String logFilename) throws IOException {
         // Append log message to file
         try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(logFilename), StandardCharsets.UTF_8, 
-                                                             java.nio.file.StandardOpenOption.CREATE, 
-                                                             java.nio.file.StandardOpenOption.APPEND)) {
+                                                             StandardOpenOption.CREATE, 
+                                                             StandardOpenOption.APPEND)) {
             writer.write(LocalDateTime.now() + ": " + logMessage);
             writer.newLine();
         }
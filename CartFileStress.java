@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stress test for CartFileHandler's atomic saves: writer threads keep replacing one cart file while reader
+ * threads keep loading it, and every load must give a complete cart as some writer saved it.
+ *
+ * Each saved cart is self-describing: generation g holds lines for the ids 0 to g % 500, each with quantity
+ * g + 1, so a reader can tell a whole cart from a torn or mixed one. A failed load, a checksum error or a cart
+ * that breaks this pattern is counted as a corruption, as is a temporary file left behind once the writers
+ * stop, and the program exits with status 1 if there was any, so a release script can stop on it.
+ *
+ * Usage: java CartFileStress [seconds] [writers] [readers]
+ */
+public class CartFileStress {
+    private static final int MAX_LINES = 500;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        Path directory = Files.createTempDirectory("cart-stress");
+        String file = directory.resolve("cart.dat").toString();
+        CartFileHandler.saveCart(cartOf(0), file);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder saves = new LongAdder();
+        LongAdder loads = new LongAdder();
+        LongAdder corruptions = new LongAdder();
+        Thread[] threads = new Thread[writers + readers];
+        for (int t = 0; t < writers; t++) {
+            threads[t] = new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        CartFileHandler.saveCart(cartOf(ThreadLocalRandom.current().nextInt(100_000)), file);
+                        saves.increment();
+                    } catch (IOException e) {
+                        System.out.println("save failed: " + e);
+                        corruptions.increment();
+                    }
+                }
+            }, "cart-stress-writer-" + t);
+        }
+        for (int t = writers; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        String problem = check(CartFileHandler.loadCartLines(file));
+                        if (problem != null) {
+                            System.out.println("inconsistent cart: " + problem);
+                            corruptions.increment();
+                        }
+                        loads.increment();
+                    } catch (IOException | ClassNotFoundException e) {
+                        System.out.println("load failed: " + e);
+                        corruptions.increment();
+                    }
+                }
+            }, "cart-stress-reader-" + t);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long leftovers = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                if (!path.getFileName().toString().equals("cart.dat")) {
+                    System.out.println("temporary file left behind: " + path.getFileName());
+                    leftovers++;
+                }
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+
+        BenchmarkRunner.report("saves", saves.sum(), "");
+        BenchmarkRunner.report("loads", loads.sum(), "");
+        BenchmarkRunner.report("corrupt loads", corruptions.sum(), "");
+        BenchmarkRunner.report("leftover files", leftovers, "");
+        if (corruptions.sum() > 0 || leftovers > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static Cart cartOf(int generation) {
+        Cart cart = new Cart();
+        for (long id = 0; id <= generation % MAX_LINES; id++) {
+            cart.addProduct(new Product(id, "Item " + id, 1 + id % 100), generation + 1);
+        }
+        return cart;
+    }
+
+    // Returns what is wrong with a loaded cart, or null if it is one a writer saved
+    private static String check(List<CartLine> lines) {
+        if (lines.isEmpty()) {
+            return "no lines";
+        }
+        int quantity = lines.get(0).getQuantity();
+        int expectedLines = (quantity - 1) % MAX_LINES + 1;
+        if (lines.size() != expectedLines) {
+            return lines.size() + " lines for quantity " + quantity;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            CartLine line = lines.get(i);
+            if (line.getProduct().getId() != i || line.getQuantity() != quantity
+                    || line.getUnitPriceMinor() != Money.ofMajor(1 + i % 100)) {
+                return "line " + i + " is " + line;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps an immutable {@link CartSnapshot} of one cart current as the cart changes, and the snapshots before it
+ * for undo.
+ *
+ * The history listens to the cart's line changes and derives each new snapshot from the last in O(log n),
+ * sharing everything but the changed line, so {@link #snapshot()} costs a volatile read and readers never copy
+ * or lock the cart. Up to {@code undoDepth} earlier snapshots are kept; {@link #undo()} puts the cart back to the
+ * most recent of them.
+ *
+ * The history is thread-safe, so a ConcurrentCart may be tracked while other threads change it.
+ * Close the history to stop listening; the cart otherwise keeps it reachable.
+ */
+public final class CartHistory implements AutoCloseable {
+    private static final int DEFAULT_UNDO_DEPTH = 16;
+
+    private final Cart cart;
+    private final int undoDepth;
+    private final Cart.LineListener listener = new Listener();
+    private final Deque<CartSnapshot> undoStack = new ArrayDeque<>();
+    // Held while a restore changes the cart, never while the history's own monitor is held
+    private final ReentrantLock restoreLock = new ReentrantLock();
+    private volatile CartSnapshot current = CartSnapshot.empty();
+    private Thread restoringThread;
+    // Lines changed while the initial snapshot was taken, whose copied state may be older than the events
+    private IdentityHashMap<Product, Boolean> changedWhileStarting = new IdentityHashMap<>();
+    private boolean clearedWhileStarting;
+
+    /**
+     * Starts tracking a cart, keeping the default 16 snapshots for undo.
+     *
+     * @param cart the cart to track
+     * @throws IllegalArgumentException if the cart is null
+     */
+    public CartHistory(Cart cart) {
+        this(cart, DEFAULT_UNDO_DEPTH);
+    }
+
+    /**
+     * Starts tracking a cart.
+     *
+     * @param cart the cart to track
+     * @param undoDepth the number of earlier snapshots to keep for undo, zero for none
+     * @throws IllegalArgumentException if the cart is null or the depth negative
+     */
+    public CartHistory(Cart cart, int undoDepth) {
+        if (cart == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        if (undoDepth < 0) {
+            throw new IllegalArgumentException("Undo depth cannot be negative");
+        }
+        this.cart = cart;
+        this.undoDepth = undoDepth;
+        // Listen first, then copy the lines, so no change can fall between the two
+        cart.addLineListener(listener);
+        List<CartLine> lines = cart.getLines();
+        synchronized (this) {
+            // Changes that raced with the copy are already in current; after a clear, every line is
+            CartSnapshot snapshot = current;
+            if (!clearedWhileStarting) {
+                for (CartLine line : lines) {
+                    Product product = line.getProduct();
+                    if (!changedWhileStarting.containsKey(product)) {
+                        snapshot = snapshot.withLine(product, line.getQuantity(), line.getUnitPriceMinor(),
+                                                     cart.hasPriceOverride(product));
+                    }
+                }
+            }
+            current = snapshot;
+            changedWhileStarting = null;
+        }
+    }
+
+    public Cart getCart() {
+        return cart;
+    }
+
+    /**
+     * Gets the snapshot of the cart as of its last completed change.
+     *
+     * @return the current snapshot, which never changes
+     */
+    public CartSnapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Gets the snapshots kept for undo, most recent first.
+     *
+     * @return a copy of the undo stack
+     */
+    public synchronized List<CartSnapshot> getUndoSnapshots() {
+        return List.copyOf(undoStack);
+    }
+
+    /**
+     * Puts the cart back as it was before its most recent change, or before the most recent restore.
+     *
+     * @return true if there was a change to undo
+     */
+    public boolean undo() {
+        restoreLock.lock();
+        try {
+            CartSnapshot target;
+            synchronized (this) {
+                target = undoStack.pollFirst();
+            }
+            if (target == null) {
+                return false;
+            }
+            apply(target);
+            return true;
+        } finally {
+            restoreLock.unlock();
+        }
+    }
+
+    /**
+     * Puts the cart back to the lines, quantities and price overrides of a snapshot. The restore is recorded
+     * as a single change, so one undo reverses it. Other threads changing the cart at the same time may see or
+     * interleave with the partly restored cart.
+     *
+     * @param snapshot a snapshot taken from this history
+     * @throws IllegalArgumentException if the snapshot is null
+     */
+    public void restore(CartSnapshot snapshot) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("Snapshot cannot be null");
+        }
+        restoreLock.lock();
+        try {
+            synchronized (this) {
+                push(current);
+            }
+            apply(snapshot);
+        } finally {
+            restoreLock.unlock();
+        }
+    }
+
+    /**
+     * Stops listening to the cart. The last snapshot stays readable.
+     */
+    @Override
+    public void close() {
+        cart.removeLineListener(listener);
+    }
+
+    // Called with the restore lock held; changes made by this thread meanwhile are not pushed for undo
+    private void apply(CartSnapshot target) {
+        synchronized (this) {
+            restoringThread = Thread.currentThread();
+        }
+        try {
+            cart.clear();
+            for (CartLine line : target.getLines()) {
+                Product product = line.getProduct();
+                cart.addProduct(product, line.getQuantity());
+                if (target.hasPriceOverride(product)) {
+                    cart.setPriceOverride(product, line.getUnitPriceMinor());
+                }
+            }
+        } finally {
+            synchronized (this) {
+                restoringThread = null;
+            }
+        }
+    }
+
+    private void push(CartSnapshot snapshot) {
+        if (undoDepth == 0) {
+            return;
+        }
+        undoStack.addFirst(snapshot);
+        if (undoStack.size() > undoDepth) {
+            undoStack.removeLast();
+        }
+    }
+
+    private final class Listener implements Cart.LineListener {
+        @Override
+        public void lineChanged(Cart changed, Product product, int quantity, long unitPriceMinor) {
+            boolean overridden = quantity > 0 && changed.hasPriceOverride(product);
+            synchronized (CartHistory.this) {
+                if (changedWhileStarting != null) {
+                    changedWhileStarting.put(product, Boolean.TRUE);
+                }
+                CartSnapshot previous = current;
+                if (restoringThread != Thread.currentThread() && changedWhileStarting == null) {
+                    push(previous);
+                }
+                current = previous.withLine(product, quantity, unitPriceMinor, overridden);
+            }
+        }
+
+        // A batch operation is one change, so one undo reverses all of its lines
+        @Override
+        public void linesChanged(Cart changed, List<Cart.LineChange> changes) {
+            boolean[] overridden = new boolean[changes.size()];
+            for (int i = 0; i < overridden.length; i++) {
+                Cart.LineChange change = changes.get(i);
+                overridden[i] = change.getQuantity() > 0 && changed.hasPriceOverride(change.getProduct());
+            }
+            synchronized (CartHistory.this) {
+                CartSnapshot previous = current;
+                if (restoringThread != Thread.currentThread() && changedWhileStarting == null) {
+                    push(previous);
+                }
+                CartSnapshot next = previous;
+                for (int i = 0; i < overridden.length; i++) {
+                    Cart.LineChange change = changes.get(i);
+                    Product product = change.getProduct();
+                    if (changedWhileStarting != null) {
+                        changedWhileStarting.put(product, Boolean.TRUE);
+                    }
+                    next = next.withLine(product, change.getQuantity(), change.getUnitPriceMinor(), overridden[i]);
+                }
+                current = next;
+            }
+        }
+
+        @Override
+        public void cartCleared(Cart changed) {
+            synchronized (CartHistory.this) {
+                if (changedWhileStarting != null) {
+                    clearedWhileStarting = true;
+                }
+                CartSnapshot previous = current;
+                if (restoringThread != Thread.currentThread() && changedWhileStarting == null) {
+                    push(previous);
+                }
+                current = previous.cleared();
+            }
+        }
+    }
+}
@@ -0,0 +1,581 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of cart changes with snapshot compaction.
+ *
+ * Instead of rewriting the whole cart on every save, each add, remove, price change or clear
+ * is appended to {@code <base>.journal} as a small checksummed record. {@link #compact(Cart)} writes
+ * the full cart to {@code <base>.snapshot} and starts an empty journal, so the journal stays short.
+ * Recovery loads the snapshot and replays the journal records written after it.
+ *
+ * Every record is laid out as a 4-byte payload length, a CRC32 of the type and payload,
+ * a 1-byte type and the payload. A record whose length or checksum does not match,
+ * such as one torn by a crash mid-write, ends the journal: it and anything after it are discarded.
+ *
+ * The journal header also records the {@link CartBinaryFormat} version its products are encoded with;
+ * a journal written by an older version is replayed and compacted when it is opened, so new records never mix
+ * with old ones.
+ *
+ * The journal header and the snapshot both carry a generation number. A journal whose generation is
+ * older than the snapshot was already folded into it, which covers a crash between writing the snapshot
+ * and resetting the journal.
+ *
+ * Appended records reach the operating system as soon as they are written, so they survive a process crash;
+ * call {@link #sync()} to force them to the storage device as well.
+ *
+ * A journal {@link #attach(Cart) attached} to a cart records every change of its lines as it happens,
+ * as the line's new state, so no caller has to remember to record a change. Such records name their line by
+ * a number the journal gives it, counting the snapshot's lines in order and then each new line, because a cart
+ * may hold several lines of products with the same id and the product's price, part of its equality, changes.
+ */
+public class CartJournal implements Closeable {
+    private static final int MAGIC = 0x43525444; // "CRTD"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int END_MARKER_SIZE = 4;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte PRICE_CHANGE = 3;
+    private static final byte CLEAR = 4;
+    private static final byte LINE = 5;
+
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final long compactionThreshold;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private final Cart.LineListener listener = new Listener();
+    // The number of each line of the attached cart, by the identity of the line's product
+    private final Map<Product, Long> lineNumbers = new IdentityHashMap<>();
+    // The attached cart's lines as last recorded, by number, from which the journal compacts itself
+    private final Map<Long, CartLine> attachedLines = new LinkedHashMap<>();
+    private Cart attachedCart;
+    private long nextLineNumber;
+    private MappedByteBuffer map;
+    private byte recordVersion;
+    private long generation;
+    private int recordCount;
+
+    /**
+     * Opens or creates the journal for a cart, discarding any torn record at its end.
+     *
+     * @param basename the path prefix of the journal and snapshot files
+     * @param compactionThreshold the journal size in bytes above which an attached journal compacts itself
+     *                            and {@link #maybeCompact(Cart)} compacts
+     * @throws IOException if the files cannot be opened or the snapshot is unreadable
+     */
+    public CartJournal(String basename, long compactionThreshold) throws IOException {
+        this.journalPath = Paths.get(basename + ".journal");
+        this.snapshotPath = Paths.get(basename + ".snapshot");
+        this.compactionThreshold = compactionThreshold;
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+
+        long snapshotGeneration = readSnapshotGeneration();
+        if (map.getInt(0) != MAGIC || map.getLong(8) < snapshotGeneration) {
+            reset(snapshotGeneration);
+        } else {
+            generation = map.getLong(8);
+            // Journals from before the version field have zeroes there
+            int version = map.getInt(4);
+            recordVersion = version == 0 ? CartBinaryFormat.VERSION_DOUBLE_PRICES : (byte) version;
+            map.position(HEADER_SIZE);
+            scanToEnd();
+            if (recordVersion != CartBinaryFormat.VERSION) {
+                compact(replay());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a cart from its snapshot and journal.
+     *
+     * @param basename the path prefix of the journal and snapshot files
+     * @return the recovered cart, empty if neither file exists
+     * @throws IOException if the files cannot be read or the snapshot is corrupt
+     */
+    public static Cart recover(String basename) throws IOException {
+        try (CartJournal journal = new CartJournal(basename, Long.MAX_VALUE)) {
+            return journal.replay();
+        }
+    }
+
+    /**
+     * Records that one unit of a product was added to the cart.
+     *
+     * @param product the added product
+     * @throws IOException if the journal cannot grow
+     */
+    public void recordAdd(Product product) throws IOException {
+        recordAdd(product, 1);
+    }
+
+    /**
+     * Records that units of a product were added to the cart.
+     *
+     * @param product the added product
+     * @param quantity the number of units added, at least one
+     * @throws IOException if the journal cannot grow
+     */
+    public synchronized void recordAdd(Product product, int quantity) throws IOException {
+        recordLine(ADD, product, quantity);
+    }
+
+    /**
+     * Records that one unit of a product was removed from the cart.
+     *
+     * @param product the removed product
+     * @throws IOException if the journal cannot grow
+     */
+    public void recordRemove(Product product) throws IOException {
+        recordRemove(product, 1);
+    }
+
+    /**
+     * Records that units of a product were removed from the cart.
+     *
+     * @param product the removed product
+     * @param quantity the number of units removed, at least one
+     * @throws IOException if the journal cannot grow
+     */
+    public synchronized void recordRemove(Product product, int quantity) throws IOException {
+        recordLine(REMOVE, product, quantity);
+    }
+
+    /**
+     * Records that the price of a product in the cart changed.
+     *
+     * @param id the product id
+     * @param newPriceMinor the new price in cents
+     * @throws IOException if the journal cannot grow
+     */
+    public synchronized void recordPriceChange(long id, long newPriceMinor) throws IOException {
+        ensureCapacity(20);
+        int start = beginRecord(PRICE_CHANGE);
+        CartBinaryFormat.writeVarLong(map, CartBinaryFormat.zigZag(id));
+        CartBinaryFormat.writeVarLong(map, newPriceMinor);
+        endRecord(start);
+    }
+
+    /**
+     * Records that the cart was cleared.
+     *
+     * @throws IOException if the journal cannot grow
+     */
+    public synchronized void recordClear() throws IOException {
+        ensureCapacity(0);
+        endRecord(beginRecord(CLEAR));
+        lineNumbers.clear();
+        attachedLines.clear();
+        compactIfAttachedAndFull();
+    }
+
+    /**
+     * Records the new state of a line of the cart, as reported to a {@link Cart.LineListener}.
+     * The line is known by the identity of its product, which must be the instance the cart holds,
+     * so lines of products with the same id are kept apart. While a cart is {@link #attach(Cart) attached},
+     * a record that takes the journal past its compaction threshold compacts it from the recorded lines.
+     *
+     * @param product the product of the line, at its own current price
+     * @param quantity the new quantity, zero if the line was removed
+     * @param unitPriceMinor the unit price the cart now charges, in cents
+     * @param overridden whether that price is a price override held by the cart
+     * @throws IOException if the journal cannot grow or cannot be compacted
+     */
+    public synchronized void recordLine(Product product, int quantity, long unitPriceMinor, boolean overridden)
+            throws IOException {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Quantity cannot be negative");
+        }
+        Long number = quantity == 0 ? lineNumbers.remove(product) : lineNumbers.get(product);
+        if (number == null) {
+            if (quantity == 0) {
+                return; // A line the journal never knew, removed again
+            }
+            number = nextLineNumber++;
+            lineNumbers.put(product, number);
+        }
+        ensureCapacity(CartBinaryFormat.maxLineSize(product) + 20);
+        int start = beginRecord(LINE);
+        CartBinaryFormat.writeVarLong(map, number);
+        CartBinaryFormat.writeProduct(map, product);
+        CartBinaryFormat.writeVarLong(map, quantity);
+        // Zero when the line is charged the product's own price, else the override plus one
+        CartBinaryFormat.writeVarLong(map, overridden ? unitPriceMinor + 1 : 0);
+        endRecord(start);
+        if (quantity == 0) {
+            attachedLines.remove(number);
+        } else {
+            attachedLines.put(number, new CartLine(product, quantity, unitPriceMinor));
+        }
+        compactIfAttachedAndFull();
+    }
+
+    /**
+     * Starts recording every later change of a cart's lines in this journal. The cart is compacted into a new
+     * snapshot first, so the journal describes it from then on; no other thread may change the cart meanwhile.
+     * Once the journal grows past its compaction threshold it compacts itself as a change is recorded,
+     * so it never grows without bound. A journal follows one cart at a time.
+     * A change that cannot be recorded fails the cart operation that made it with an UncheckedIOException,
+     * after the cart has changed.
+     *
+     * @param cart the cart to journal
+     * @throws IOException if the snapshot cannot be written
+     * @throws IllegalStateException if another cart is attached
+     */
+    public void attach(Cart cart) throws IOException {
+        synchronized (this) {
+            if (attachedCart != null) {
+                throw new IllegalStateException("The journal is already attached to a cart");
+            }
+            compact(cart);
+            attachedCart = cart;
+        }
+        cart.addLineListener(listener);
+    }
+
+    /**
+     * Stops recording the changes of a cart.
+     *
+     * @param cart the cart passed to {@link #attach(Cart)}
+     */
+    public void detach(Cart cart) {
+        cart.removeLineListener(listener);
+        synchronized (this) {
+            if (attachedCart == cart) {
+                attachedCart = null;
+                attachedLines.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the cart as a new snapshot and empties the journal.
+     * The snapshot is written to a temporary file and moved into place, so a crash leaves the old one intact.
+     * The attached cart is written from the lines the journal recorded, without reading the cart,
+     * which another thread may be changing.
+     *
+     * @param cart the cart whose current contents the journal describes
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void compact(Cart cart) throws IOException {
+        writeSnapshot(cart == attachedCart ? new ArrayList<>(attachedLines.values()) : cart.getLines());
+    }
+
+    /**
+     * Gets the generation of the current snapshot, which each compaction advances.
+     *
+     * @return the generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    // Runs as a change of the attached cart is recorded, so it must not call back into the cart
+    private void compactIfAttachedAndFull() throws IOException {
+        if (attachedCart != null && map.position() - HEADER_SIZE >= compactionThreshold) {
+            writeSnapshot(new ArrayList<>(attachedLines.values()));
+        }
+    }
+
+    private void writeSnapshot(List<CartLine> lines) throws IOException {
+        long next = generation + 1;
+        Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer prefix = ByteBuffer.allocate(8).putLong(next);
+            prefix.flip();
+            out.write(prefix);
+            CartBinaryFormat.writeLines(out, lines.iterator());
+            out.force(true);
+            lineNumbers.clear();
+            attachedLines.clear();
+            for (CartLine line : lines) {
+                long number = lineNumbers.size();
+                lineNumbers.put(line.getProduct(), number);
+                attachedLines.put(number, line);
+            }
+            nextLineNumber = lineNumbers.size();
+        }
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        reset(next);
+    }
+
+    /**
+     * Compacts the journal if it has grown past the compaction threshold.
+     *
+     * @param cart the cart whose current contents the journal describes
+     * @return true if the journal was compacted
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized boolean maybeCompact(Cart cart) throws IOException {
+        if (map.position() - HEADER_SIZE < compactionThreshold) {
+            return false;
+        }
+        compact(cart);
+        return true;
+    }
+
+    /**
+     * Loads the snapshot and applies every journal record to it.
+     *
+     * @return the cart described by the snapshot and journal
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public synchronized Cart replay() throws IOException {
+        Cart cart = new Cart();
+        // The product of each line, by the number line records know it by
+        Map<Long, Product> lines = new HashMap<>();
+        if (Files.exists(snapshotPath)) {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+            snapshot.getLong();
+            for (CartLine line : CartBinaryFormat.readLines(snapshot)) {
+                cart.addProduct(line.getProduct(), line.getQuantity());
+                lines.put((long) lines.size(), line.getProduct());
+            }
+        }
+        ByteBuffer records = map.duplicate();
+        records.position(HEADER_SIZE).limit(map.position());
+        while (records.hasRemaining()) {
+            int length = records.getInt();
+            records.getInt(); // Checksum, verified when the journal was opened
+            byte type = records.get();
+            ByteBuffer payload = records.slice();
+            payload.limit(length - 1);
+            records.position(records.position() + length - 1);
+            apply(cart, lines, type, payload, recordVersion);
+        }
+        return cart;
+    }
+
+    /**
+     * Gets the number of records appended since the last compaction.
+     *
+     * @return the record count
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Forces appended records to the storage device.
+     */
+    public synchronized void sync() {
+        map.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    private static void apply(Cart cart, Map<Long, Product> lines, byte type, ByteBuffer payload, byte version)
+            throws StreamCorruptedException {
+        switch (type) {
+            case ADD:
+                CartLine added = CartBinaryFormat.readLine(payload, version);
+                cart.addProduct(added.getProduct(), added.getQuantity());
+                break;
+            case REMOVE:
+                // Units already absent, e.g. removed again after a clear, have nothing to undo
+                CartLine removed = CartBinaryFormat.readLine(payload, version);
+                int held = cart.getQuantity(removed.getProduct());
+                if (held > 0) {
+                    cart.setQuantity(removed.getProduct(), Math.max(0, held - removed.getQuantity()));
+                }
+                break;
+            case PRICE_CHANGE:
+                long id = CartBinaryFormat.unZigZag(CartBinaryFormat.readVarLong(payload));
+                if (version == CartBinaryFormat.VERSION_DOUBLE_PRICES) {
+                    double price = payload.getDouble();
+                    cart.findProductById(id).ifPresent(product -> product.setPrice(price));
+                } else {
+                    long priceMinor = CartBinaryFormat.readVarLong(payload);
+                    cart.findProductById(id).ifPresent(product -> product.setPriceMinor(priceMinor));
+                }
+                break;
+            case CLEAR:
+                cart.clear();
+                lines.clear();
+                break;
+            case LINE:
+                applyLine(cart, lines, payload);
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown journal record type " + type + ".");
+        }
+    }
+
+    private static void applyLine(Cart cart, Map<Long, Product> lines, ByteBuffer payload)
+            throws StreamCorruptedException {
+        long number = CartBinaryFormat.readVarLong(payload);
+        Product product = CartBinaryFormat.readProduct(payload);
+        int quantity = (int) Math.min(CartBinaryFormat.readVarLong(payload), Integer.MAX_VALUE);
+        long override = CartBinaryFormat.readVarLong(payload) - 1;
+        Product line = lines.get(number);
+        if (line == null) {
+            if (quantity > 0) {
+                long price = override >= 0 ? override : product.getPriceMinor();
+                cart.addLines(Collections.singletonList(new CartLine(product, quantity, price)));
+                lines.put(number, product);
+            }
+            return;
+        }
+        // The line's own instance, so an equal product on another line is never touched
+        cart.setQuantity(line, quantity);
+        if (quantity == 0) {
+            lines.remove(number);
+            return;
+        }
+        if (line.getPriceMinor() != product.getPriceMinor()) {
+            line.setPriceMinor(product.getPriceMinor());
+        }
+        if (override >= 0) {
+            cart.setPriceOverride(line, override);
+        } else if (cart.hasPriceOverride(line)) {
+            cart.clearPriceOverride(line);
+        }
+    }
+
+    private void recordLine(byte type, Product product, int quantity) throws IOException {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive");
+        }
+        ensureCapacity(CartBinaryFormat.maxLineSize(product));
+        int start = beginRecord(type);
+        CartBinaryFormat.writeLine(map, product, quantity);
+        endRecord(start);
+    }
+
+    private int beginRecord(byte type) {
+        int start = map.position();
+        map.position(start + 8);
+        map.put(type);
+        return start;
+    }
+
+    // Marks the end before publishing the length, so the scan never runs on into bytes left by an older record
+    private void endRecord(int start) {
+        int end = map.position();
+        int length = end - start - 8;
+        map.putInt(end, 0);
+        map.putInt(start + 4, checksum(start + 8, length));
+        map.putInt(start, length);
+        recordCount++;
+    }
+
+    private int checksum(int offset, int length) {
+        ByteBuffer body = map.duplicate();
+        body.position(offset).limit(offset + length);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    // Walks the valid records, stopping at the first empty, oversized or corrupt one
+    private void scanToEnd() {
+        recordCount = 0;
+        while (map.remaining() >= RECORD_HEADER_SIZE) {
+            int start = map.position();
+            int length = map.getInt(start);
+            if (length < 1 || length > map.capacity() - start - 8
+                    || checksum(start + 8, length) != map.getInt(start + 4)) {
+                break;
+            }
+            map.position(start + 8 + length);
+            recordCount++;
+        }
+        if (map.remaining() >= END_MARKER_SIZE) {
+            map.putInt(map.position(), 0);
+        }
+    }
+
+    // Only the header and an end marker are written; the older records behind the marker are never read again
+    private void reset(long newGeneration) {
+        map.putInt(HEADER_SIZE, 0);
+        map.putInt(0, MAGIC);
+        map.putInt(4, CartBinaryFormat.VERSION);
+        map.putLong(8, newGeneration);
+        recordVersion = CartBinaryFormat.VERSION;
+        map.position(HEADER_SIZE);
+        generation = newGeneration;
+        recordCount = 0;
+    }
+
+    private void ensureCapacity(int payloadSize) throws IOException {
+        long needed = (long) map.position() + RECORD_HEADER_SIZE + payloadSize + END_MARKER_SIZE;
+        if (needed <= map.capacity()) {
+            return;
+        }
+        long capacity = map.capacity();
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + journalPath + " is full; compact it.");
+        }
+        int position = map.position();
+        map.force();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        map.position(position);
+    }
+
+    private final class Listener implements Cart.LineListener {
+        @Override
+        public void lineChanged(Cart cart, Product product, int quantity, long unitPriceMinor) {
+            try {
+                recordLine(product, quantity, unitPriceMinor, quantity > 0 && cart.hasPriceOverride(product));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void cartCleared(Cart cart) {
+            try {
+                recordClear();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private long readSnapshotGeneration() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            ByteBuffer prefix = ByteBuffer.allocate(8);
+            while (prefix.hasRemaining() && in.read(prefix) >= 0) {
+                // Read the generation prefix
+            }
+            if (prefix.hasRemaining()) {
+                throw new StreamCorruptedException("Snapshot " + snapshotPath + " is truncated.");
+            }
+            return prefix.getLong(0);
+        }
+    }
+}
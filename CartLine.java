@@ -0,0 +1,100 @@
+import java.util.Objects;
+
+/**
+ * One line of a cart: a product, how many units of it the cart holds and the unit price the cart charges,
+ * which differs from the product's price when the cart holds a price override.
+ * Lines returned by a cart are snapshots; changing the cart afterwards does not change them.
+ */
+public final class CartLine {
+    private final Product product;
+    private final int quantity;
+    private final long unitPriceMinor;
+
+    /**
+     * Creates a line charged at the product's current price.
+     *
+     * @param product the product on this line
+     * @param quantity the number of units, at least one
+     * @throws IllegalArgumentException if the product is null or the quantity is not positive
+     */
+    public CartLine(Product product, int quantity) {
+        this(product, quantity, product == null ? 0 : product.getPriceMinor());
+    }
+
+    /**
+     * Creates a line charged at the given unit price.
+     *
+     * @param product the product on this line
+     * @param quantity the number of units, at least one
+     * @param unitPriceMinor the price charged per unit in cents
+     * @throws IllegalArgumentException if the product is null, the quantity is not positive or the price negative
+     */
+    public CartLine(Product product, int quantity, long unitPriceMinor) {
+        if (product == null) {
+            throw new IllegalArgumentException("Product cannot be null");
+        }
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive");
+        }
+        if (unitPriceMinor < 0) {
+            throw new IllegalArgumentException("Price cannot be negative");
+        }
+        this.product = product;
+        this.quantity = quantity;
+        this.unitPriceMinor = unitPriceMinor;
+    }
+
+    public Product getProduct() {
+        return product;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Gets the price charged per unit when the line was taken.
+     *
+     * @return the unit price in cents
+     */
+    public long getUnitPriceMinor() {
+        return unitPriceMinor;
+    }
+
+    /**
+     * Gets the price of all units on this line.
+     *
+     * @return the line total in cents
+     */
+    public long getLineTotalMinor() {
+        return unitPriceMinor * quantity;
+    }
+
+    /**
+     * Gets the price of all units on this line.
+     *
+     * @return the line total
+     */
+    public double getLineTotal() {
+        return Money.toMajor(getLineTotalMinor());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CartLine that = (CartLine) o;
+        return quantity == that.quantity && unitPriceMinor == that.unitPriceMinor && product.equals(that.product);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(product, quantity, unitPriceMinor);
+    }
+
+    @Override
+    public String toString() {
+        return "CartLine{product=" + product + ", quantity=" + quantity
+               + ", unitPrice=" + Money.format(unitPriceMinor) + '}';
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Receives timings of cart operations from a {@link CartService}, for counters, latency histograms and
+ * cart-size distributions. Implementations are called on the thread doing the operation, so they must be
+ * thread-safe and cheap; {@link CartMetricsRecorder} records without locking or allocating.
+ */
+@FunctionalInterface
+public interface CartMetrics {
+
+    /**
+     * The instrumented operations.
+     */
+    enum Operation {
+        ADD, REMOVE, TOTAL, DISCOUNT, SAVE, LOAD, SET_QUANTITY, CLEAR
+    }
+
+    /**
+     * Records one completed operation.
+     *
+     * @param operation what was done
+     * @param nanos how long it took, in nanoseconds
+     * @param cartSize the number of products in the cart afterwards
+     */
+    void record(Operation operation, long nanos, int cartSize);
+
+    /**
+     * Tells callers whether to measure operations at all. When this is false they skip reading the clock,
+     * so disabled metrics cost a single check per operation.
+     *
+     * @return true if recorded operations are kept
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Provides metrics that discard everything. This is what a CartService uses until it is given others.
+     *
+     * @return the disabled metrics
+     */
+    static CartMetrics noop() {
+        return Noop.INSTANCE;
+    }
+
+    /**
+     * The metrics behind {@link #noop()}.
+     */
+    enum Noop implements CartMetrics {
+        INSTANCE;
+
+        @Override
+        public void record(Operation operation, long nanos, int cartSize) {
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps, for every cart operation, a count, a latency histogram and a histogram of the cart sizes it ran on.
+ * One recorder can be shared by every CartService in the process.
+ *
+ * Each recording thread gets a stripe of bucket counts that only it writes, so recording is a few plain
+ * stores with no locked instructions and no contention between threads; after a thread's first recording
+ * it does not allocate. Snapshots add the stripes up into {@link Histogram}s.
+ *
+ * Snapshots can be taken at any time, or exported periodically from a background thread to a consumer that
+ * forwards them to a monitoring system or a log. Values are cumulative since the recorder was created.
+ */
+public class CartMetricsRecorder implements CartMetrics, AutoCloseable {
+    private static final CartMetrics.Operation[] OPERATIONS = CartMetrics.Operation.values();
+    // Every operation has two histograms in a stripe: its latencies at 2 * ordinal, its cart sizes just after
+    private static final int HISTOGRAMS = OPERATIONS.length * 2;
+
+    private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Stripe> stripe = ThreadLocal.withInitial(() -> {
+        Stripe created = new Stripe();
+        stripes.add(created);
+        return created;
+    });
+    private final LongAdder exportFailures = new LongAdder();
+    private ScheduledExecutorService exporter;
+
+    @Override
+    public void record(CartMetrics.Operation operation, long nanos, int cartSize) {
+        Stripe own = stripe.get();
+        own.record(operation.ordinal() * 2, nanos);
+        own.record(operation.ordinal() * 2 + 1, cartSize);
+    }
+
+    /**
+     * Copies the current state of every histogram.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        Map<CartMetrics.Operation, Histogram> latencyCopies = new EnumMap<>(CartMetrics.Operation.class);
+        Map<CartMetrics.Operation, Histogram> sizeCopies = new EnumMap<>(CartMetrics.Operation.class);
+        for (CartMetrics.Operation operation : OPERATIONS) {
+            latencyCopies.put(operation, sum(operation.ordinal() * 2));
+            sizeCopies.put(operation, sum(operation.ordinal() * 2 + 1));
+        }
+        return new Snapshot(Instant.now(), latencyCopies, sizeCopies);
+    }
+
+    private Histogram sum(int histogram) {
+        Histogram total = new Histogram();
+        for (Stripe each : stripes) {
+            total.add(each.counts, histogram * Histogram.BUCKETS, each.sums.get(histogram),
+                      each.maxima.get(histogram));
+        }
+        return total;
+    }
+
+    /**
+     * Starts passing a snapshot to the given consumer at a fixed rate, on a daemon thread.
+     * An exception thrown by the consumer is counted and does not stop later exports.
+     *
+     * @param period the time between exports
+     * @param unit the unit of the period
+     * @param consumer what to do with each snapshot
+     * @throws IllegalArgumentException if the period is not positive or the unit or consumer is null
+     * @throws IllegalStateException if exporting has already been started
+     */
+    public synchronized void exportEvery(long period, TimeUnit unit, Consumer<? super Snapshot> consumer) {
+        if (period <= 0 || unit == null || consumer == null) {
+            throw new IllegalArgumentException("Export needs a positive period, a unit and a consumer");
+        }
+        if (exporter != null) {
+            throw new IllegalStateException("Metrics are already being exported");
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cart-metrics-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exporter.scheduleAtFixedRate(() -> {
+            try {
+                consumer.accept(snapshot());
+            } catch (RuntimeException e) {
+                exportFailures.increment();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Gets how many exports failed because the consumer threw.
+     *
+     * @return the number of failed exports
+     */
+    public long getExportFailures() {
+        return exportFailures.sum();
+    }
+
+    /**
+     * Stops periodic exporting, if it was started. Recording still works afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+    }
+
+    /**
+     * The histograms recorded by one thread. Only that thread writes them, so each update is a plain read
+     * followed by an ordered store, which snapshot threads see without the cost of an atomic increment.
+     */
+    private static final class Stripe {
+        final AtomicLongArray counts = new AtomicLongArray(HISTOGRAMS * Histogram.BUCKETS);
+        final AtomicLongArray sums = new AtomicLongArray(HISTOGRAMS);
+        final AtomicLongArray maxima = new AtomicLongArray(HISTOGRAMS);
+
+        void record(int histogram, long value) {
+            long recorded = Math.max(value, 0);
+            int bucket = histogram * Histogram.BUCKETS + Histogram.bucketOf(recorded);
+            counts.lazySet(bucket, counts.get(bucket) + 1);
+            sums.lazySet(histogram, sums.get(histogram) + recorded);
+            if (recorded > maxima.get(histogram)) {
+                maxima.lazySet(histogram, recorded);
+            }
+        }
+    }
+
+    /**
+     * The metrics of every operation at one moment.
+     */
+    public static final class Snapshot {
+        private final Instant takenAt;
+        private final Map<CartMetrics.Operation, Histogram> latencies;
+        private final Map<CartMetrics.Operation, Histogram> cartSizes;
+
+        private Snapshot(Instant takenAt, Map<CartMetrics.Operation, Histogram> latencies,
+                         Map<CartMetrics.Operation, Histogram> cartSizes) {
+            this.takenAt = takenAt;
+            this.latencies = latencies;
+            this.cartSizes = cartSizes;
+        }
+
+        public Instant getTakenAt() {
+            return takenAt;
+        }
+
+        /**
+         * Gets how many times an operation was recorded.
+         *
+         * @param operation the operation
+         * @return the count
+         */
+        public long getCount(CartMetrics.Operation operation) {
+            return latencies.get(operation).getCount();
+        }
+
+        /**
+         * Gets the latencies of an operation, in nanoseconds.
+         *
+         * @param operation the operation
+         * @return a histogram that is not updated any more
+         */
+        public Histogram getLatencies(CartMetrics.Operation operation) {
+            return latencies.get(operation);
+        }
+
+        /**
+         * Gets the numbers of products in the cart after each run of an operation.
+         *
+         * @param operation the operation
+         * @return a histogram that is not updated any more
+         */
+        public Histogram getCartSizes(CartMetrics.Operation operation) {
+            return cartSizes.get(operation);
+        }
+
+        /**
+         * Describes every operation that was recorded at least once, one line each.
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("Cart metrics at ").append(takenAt);
+            for (CartMetrics.Operation operation : OPERATIONS) {
+                Histogram latency = latencies.get(operation);
+                if (latency.getCount() == 0) {
+                    continue;
+                }
+                Histogram sizes = cartSizes.get(operation);
+                text.append(System.lineSeparator())
+                    .append(String.format("  %-8s count=%d, ns p50=%d p99=%d max=%d, cart size p50=%d max=%d",
+                                          operation, latency.getCount(), latency.getValueAtPercentile(50),
+                                          latency.getValueAtPercentile(99), latency.getMax(),
+                                          sizes.getValueAtPercentile(50), sizes.getMax()));
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,670 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the live carts of many customers, keyed by customer or session id.
+ *
+ * Carts are spread over independently locked shards, so requests for different customers rarely contend.
+ * Each shard keeps its carts in least-recently-used order and enforces its share of a cap on resident cart lines,
+ * which stands in for memory: a line costs the same however many units of its product it holds.
+ * When a shard goes over the cap, its least recently used carts are saved through {@link CartFileHandler}
+ * and dropped from memory. A later request for the same id restores the cart from disk, reading the file
+ * outside the shard's lock; other requests for that cart wait for the restore, and the rest of the shard does not.
+ * Carts left untouched for longer than the idle timeout are written out the same way by {@link #expireIdle()}.
+ *
+ * Callers take a {@link Lease} on a cart with {@link #acquire(String)} for as long as they use it, typically
+ * one request. A leased cart is pinned: it is never evicted or expired, so no change made through the lease can
+ * be lost to an eviction. Evicted carts are chosen under the shard's lock but written to disk outside it, so a
+ * slow save never stalls other lookups; a request for a cart that is still being written takes it back.
+ */
+public class CartRegistry {
+    private final Shard[] shards;
+    private final Path directory;
+    private final long maxLinesPerShard;
+    private final long idleTimeoutNanos;
+
+    /**
+     * Creates a registry.
+     *
+     * @param directory the directory evicted carts are written to
+     * @param shardCount the number of independently locked shards
+     * @param maxResidentLines the line cap: the total number of cart lines (distinct products of a cart) kept in
+     *        memory across all carts; extra units of a product already in a cart take no extra memory
+     * @param idleTimeoutMillis how long a cart may go unused before {@link #expireIdle()} writes it out
+     * @throws IllegalArgumentException if a size or timeout is not positive
+     */
+    public CartRegistry(String directory, int shardCount, long maxResidentLines, long idleTimeoutMillis) {
+        if (shardCount <= 0 || maxResidentLines <= 0 || idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Shard count, line cap and idle timeout must be positive.");
+        }
+        this.directory = Paths.get(directory);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+        this.maxLinesPerShard = Math.max(1, maxResidentLines / shardCount);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * Leases the cart of a customer, restoring it from disk or creating an empty one if it is not in memory.
+     * The cart stays pinned in memory until the lease is closed; a cart leased several times at once
+     * is released when the last lease closes.
+     *
+     * @param customerId the customer or session id
+     * @return an open lease on the customer's cart
+     * @throws CartException if an evicted cart exists on disk but cannot be read
+     */
+    public Lease acquire(String customerId) throws CartException {
+        if (customerId == null || customerId.isEmpty()) {
+            throw new IllegalArgumentException("Customer ID cannot be null or empty.");
+        }
+        Shard shard = shardFor(customerId);
+        return new Lease(shard, customerId, shard.acquire(customerId));
+    }
+
+    /**
+     * Gets the cart of a customer without leasing it.
+     *
+     * @param customerId the customer or session id
+     * @return the customer's cart
+     * @throws CartException if an evicted cart exists on disk but cannot be read
+     * @deprecated the cart may be evicted as soon as this returns, losing later changes; use {@link #acquire(String)}
+     */
+    @Deprecated
+    public Cart getOrCreate(String customerId) throws CartException {
+        try (Lease lease = acquire(customerId)) {
+            return lease.getCart();
+        }
+    }
+
+    /**
+     * Gets a CartService operating on a customer's cart, without leasing it.
+     *
+     * @param customerId the customer or session id
+     * @return a service bound to the customer's cart
+     * @throws CartException if an evicted cart exists on disk but cannot be read
+     * @deprecated the cart may be evicted as soon as this returns, losing later changes; use
+     *             {@link #acquire(String)} and {@link Lease#getService()}
+     */
+    @Deprecated
+    public CartService serviceFor(String customerId) throws CartException {
+        return new CartService(getOrCreate(customerId));
+    }
+
+    /**
+     * Removes a customer's cart from memory and from disk, for example after checkout.
+     *
+     * @param customerId the customer or session id
+     * @throws CartException if the saved cart file cannot be deleted
+     */
+    public void remove(String customerId) throws CartException {
+        shardFor(customerId).remove(customerId);
+    }
+
+    /**
+     * Writes out and drops every cart that has not been used within the idle timeout.
+     * Empty carts are dropped without being written. Intended to be called periodically by a scheduler.
+     *
+     * @return the number of carts expired
+     */
+    public int expireIdle() {
+        long cutoff = System.nanoTime() - idleTimeoutNanos;
+        int expired = 0;
+        for (Shard shard : shards) {
+            expired += shard.expireOlderThan(cutoff);
+        }
+        return expired;
+    }
+
+    /**
+     * Writes every resident non-empty cart to disk, for example before shutdown.
+     *
+     * @throws CartException if any cart could not be written; the remaining carts are still attempted
+     */
+    public void flush() throws CartException {
+        CartException failure = null;
+        for (Shard shard : shards) {
+            try {
+                shard.flush();
+            } catch (CartException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the number of carts currently held in memory.
+     *
+     * @return the resident cart count
+     */
+    public int getResidentCartCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.size();
+        }
+        return count;
+    }
+
+    /**
+     * Takes a snapshot of the counters of every shard.
+     *
+     * @return one stats entry per shard
+     */
+    public List<ShardStats> getShardStats() {
+        List<ShardStats> stats = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            stats.add(shard.stats());
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    private Shard shardFor(String customerId) {
+        int h = customerId.hashCode();
+        h ^= h >>> 16;
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    // Ids are hex-encoded unless they are already safe to use as a file name
+    private String fileFor(String customerId) {
+        if (customerId.matches("[A-Za-z0-9_-]{1,100}")) {
+            return directory.resolve("cart-" + customerId + ".dat").toString();
+        }
+        StringBuilder hex = new StringBuilder("cart-x");
+        for (byte b : customerId.getBytes(StandardCharsets.UTF_8)) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(hex.append(".dat").toString()).toString();
+    }
+
+    /**
+     * A customer's cart pinned in memory for as long as the lease is open.
+     * Close the lease, for example with try-with-resources, once the request is done with the cart.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Shard shard;
+        private final String customerId;
+        private final Resident resident;
+        private boolean closed;
+
+        private Lease(Shard shard, String customerId, Resident resident) {
+            this.shard = shard;
+            this.customerId = customerId;
+            this.resident = resident;
+        }
+
+        public String getCustomerId() {
+            return customerId;
+        }
+
+        public Cart getCart() {
+            return resident.cart;
+        }
+
+        /**
+         * Gets a CartService operating on the leased cart.
+         *
+         * @return a new service bound to the cart
+         */
+        public CartService getService() {
+            return new CartService(resident.cart);
+        }
+
+        /**
+         * Unpins the cart, letting it be evicted again once no other lease holds it. Closing twice has no effect.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                shard.release(customerId, resident);
+            }
+        }
+    }
+
+    /**
+     * Counters of one shard at the time the snapshot was taken.
+     */
+    public static final class ShardStats {
+        private final int shard;
+        private final int residentCarts;
+        private final long residentLines;
+        private final long hits;
+        private final long misses;
+        private final long restores;
+        private final long evictions;
+        private final long expirations;
+        private final long persistFailures;
+
+        ShardStats(int shard, int residentCarts, long residentLines, long hits, long misses,
+                   long restores, long evictions, long expirations, long persistFailures) {
+            this.shard = shard;
+            this.residentCarts = residentCarts;
+            this.residentLines = residentLines;
+            this.hits = hits;
+            this.misses = misses;
+            this.restores = restores;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.persistFailures = persistFailures;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public int getResidentCarts() {
+            return residentCarts;
+        }
+
+        /**
+         * Gets the number of cart lines the shard holds in memory, the quantity its share of the line cap limits.
+         *
+         * @return the resident line count
+         */
+        public long getResidentLines() {
+            return residentLines;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getRestores() {
+            return restores;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        public long getPersistFailures() {
+            return persistFailures;
+        }
+
+        /**
+         * Gets the fraction of lookups served from memory.
+         *
+         * @return the hit rate between 0 and 1, or 0 if there have been no lookups
+         */
+        public double getHitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "ShardStats{shard=" + shard + ", residentCarts=" + residentCarts
+                    + ", residentLines=" + residentLines + ", hitRate=" + getHitRate()
+                    + ", misses=" + misses + ", restores=" + restores + ", evictions=" + evictions
+                    + ", expirations=" + expirations + ", persistFailures=" + persistFailures + '}';
+        }
+    }
+
+    // Its monitor is held while the cart is written or its file deleted, so writes of one cart never overlap
+    private static final class Resident {
+        final Cart cart;
+        long lastAccessNanos;
+        int accountedLines;
+        int pins;
+        // Set under the shard's lock once the cart is dropped from memory; a later request gets a new Resident
+        boolean dropped;
+
+        Resident(Cart cart) {
+            this.cart = cart;
+        }
+    }
+
+    // One choice of a cart for eviction; a cart taken back and chosen again gets a new one
+    private static final class Eviction {
+        final String customerId;
+        final Resident resident;
+
+        Eviction(String customerId, Resident resident) {
+            this.customerId = customerId;
+            this.resident = resident;
+        }
+    }
+
+    private final class Shard {
+        private final int index;
+        // Access-ordered, so iteration starts at the least recently used cart
+        private final LinkedHashMap<String, Resident> carts = new LinkedHashMap<>(16, 0.75f, true);
+        // Carts chosen for eviction or expiry whose files are being written outside the lock
+        private final Map<String, Eviction> writing = new HashMap<>();
+        // Carts being read back from disk outside the lock, each completed once its cart is resident
+        private final Map<String, CompletableFuture<Void>> restoring = new HashMap<>();
+        private long residentLines;
+        private long hits;
+        private long misses;
+        private long restores;
+        private long evictions;
+        private long expirations;
+        private long persistFailures;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        Resident acquire(String customerId) throws CartException {
+            while (true) {
+                Resident resident;
+                CompletableFuture<Void> restore = null;
+                boolean registered = false;
+                List<Eviction> victims = null;
+                synchronized (this) {
+                    resident = carts.get(customerId);
+                    if (resident != null) {
+                        hits++;
+                    } else {
+                        resident = takeBack(customerId);
+                        if (resident != null) {
+                            hits++; // Taken back before its eviction finished
+                        } else {
+                            restore = restoring.get(customerId);
+                            if (restore == null) {
+                                misses++;
+                                restore = new CompletableFuture<>();
+                                restoring.put(customerId, restore);
+                                registered = true;
+                            }
+                        }
+                    }
+                    if (resident != null) {
+                        victims = pin(resident);
+                    }
+                }
+                if (resident != null) {
+                    writeOut(victims, false);
+                    return resident;
+                }
+                if (registered) {
+                    return restore(customerId, restore);
+                }
+                // Another request is restoring the cart; once it is resident, look it up again
+                try {
+                    restore.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof CartException) {
+                        throw (CartException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        // Called without the lock by the request that registered the restore, which it always completes
+        private Resident restore(String customerId, CompletableFuture<Void> restore) throws CartException {
+            Cart cart;
+            try {
+                cart = load(customerId);
+            } catch (CartException | RuntimeException e) {
+                synchronized (this) {
+                    restoring.remove(customerId, restore);
+                }
+                restore.completeExceptionally(e);
+                throw e;
+            }
+            Resident resident;
+            List<Eviction> victims;
+            synchronized (this) {
+                resident = carts.get(customerId);
+                if (resident == null) {
+                    resident = takeBack(customerId);
+                }
+                if (resident == null) {
+                    // The cart was removed while it was read if the restore is no longer registered
+                    boolean current = restoring.get(customerId) == restore;
+                    resident = new Resident(current && cart != null ? cart : new ConcurrentCart());
+                    carts.put(customerId, resident);
+                    if (current && cart != null) {
+                        restores++;
+                    }
+                }
+                restoring.remove(customerId, restore);
+                victims = pin(resident);
+            }
+            restore.complete(null);
+            writeOut(victims, false);
+            return resident;
+        }
+
+        // Called with the lock held; makes a cart whose eviction is still being written resident again
+        private Resident takeBack(String customerId) {
+            Eviction pending = writing.remove(customerId);
+            if (pending == null) {
+                return null;
+            }
+            carts.put(customerId, pending.resident);
+            residentLines += pending.resident.accountedLines;
+            return pending.resident;
+        }
+
+        // Called with the lock held
+        private List<Eviction> pin(Resident resident) {
+            resident.pins++;
+            resident.lastAccessNanos = System.nanoTime();
+            account(resident);
+            return pickVictims();
+        }
+
+        void release(String customerId, Resident resident) {
+            List<Eviction> victims;
+            synchronized (this) {
+                resident.pins--;
+                resident.lastAccessNanos = System.nanoTime();
+                if (carts.get(customerId) == resident) {
+                    account(resident);
+                }
+                victims = pickVictims();
+            }
+            writeOut(victims, false);
+        }
+
+        void remove(String customerId) throws CartException {
+            Resident resident;
+            synchronized (this) {
+                resident = carts.remove(customerId);
+                if (resident != null) {
+                    residentLines -= resident.accountedLines;
+                } else {
+                    Eviction pending = writing.remove(customerId);
+                    resident = pending == null ? null : pending.resident;
+                }
+                if (resident != null) {
+                    resident.dropped = true;
+                }
+                // A restore still reading the old file finds itself unregistered and starts an empty cart
+                restoring.remove(customerId);
+            }
+            try {
+                if (resident == null) {
+                    CartFileHandler.deleteCartFile(fileFor(customerId));
+                } else {
+                    // Waits for a write of the cart in progress, which would otherwise recreate the file
+                    synchronized (resident) {
+                        CartFileHandler.deleteCartFile(fileFor(customerId));
+                    }
+                }
+            } catch (IOException e) {
+                throw new CartException("Could not delete saved cart of " + customerId, e);
+            }
+        }
+
+        int expireOlderThan(long cutoffNanos) {
+            List<Eviction> victims = new ArrayList<>();
+            synchronized (this) {
+                Iterator<Map.Entry<String, Resident>> it = carts.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Resident> entry = it.next();
+                    Resident resident = entry.getValue();
+                    if (resident.lastAccessNanos - cutoffNanos > 0) {
+                        break; // Later entries were used more recently
+                    }
+                    if (resident.pins == 0) {
+                        it.remove();
+                        victims.add(detach(entry.getKey(), resident));
+                    }
+                }
+            }
+            return writeOut(victims, true);
+        }
+
+        void flush() throws CartException {
+            List<Map.Entry<String, Resident>> resident;
+            synchronized (this) {
+                resident = new ArrayList<>(carts.entrySet());
+            }
+            for (Map.Entry<String, Resident> entry : resident) {
+                synchronized (entry.getValue()) {
+                    synchronized (this) {
+                        if (entry.getValue().dropped) {
+                            continue; // Written when it was evicted; a newer copy may be on disk since
+                        }
+                    }
+                    if (!persist(entry.getKey(), entry.getValue())) {
+                        synchronized (this) {
+                            persistFailures++;
+                        }
+                        throw new CartException("Could not save cart of " + entry.getKey());
+                    }
+                }
+            }
+        }
+
+        synchronized int size() {
+            return carts.size();
+        }
+
+        synchronized ShardStats stats() {
+            return new ShardStats(index, carts.size(), residentLines, hits, misses,
+                                  restores, evictions, expirations, persistFailures);
+        }
+
+        // Called without the lock; null if the customer has no saved cart
+        private Cart load(String customerId) throws CartException {
+            String file = fileFor(customerId);
+            if (!Files.exists(Paths.get(file))) {
+                return null;
+            }
+            Cart cart = new ConcurrentCart();
+            try {
+                cart.addLines(CartFileHandler.loadCartLines(file));
+            } catch (IOException | ClassNotFoundException e) {
+                throw new CartException("Could not restore cart of " + customerId, e);
+            }
+            return cart;
+        }
+
+        // Cart sizes change between lookups, so the shard's line count is corrected on each access
+        private void account(Resident resident) {
+            int current = resident.cart.getLineCount();
+            residentLines += current - resident.accountedLines;
+            resident.accountedLines = current;
+        }
+
+        // Called with the lock held; takes unpinned carts, least recently used first, until the shard fits its cap
+        private List<Eviction> pickVictims() {
+            List<Eviction> victims = new ArrayList<>();
+            Iterator<Map.Entry<String, Resident>> it = carts.entrySet().iterator();
+            while (residentLines > maxLinesPerShard && it.hasNext()) {
+                Map.Entry<String, Resident> entry = it.next();
+                Resident resident = entry.getValue();
+                if (resident.pins > 0) {
+                    continue;
+                }
+                account(resident);
+                it.remove();
+                victims.add(detach(entry.getKey(), resident));
+            }
+            return victims;
+        }
+
+        private Eviction detach(String customerId, Resident resident) {
+            residentLines -= resident.accountedLines;
+            Eviction eviction = new Eviction(customerId, resident);
+            writing.put(customerId, eviction);
+            return eviction;
+        }
+
+        // Called without the lock; a cart that cannot be written, or was taken back meanwhile, stays resident
+        private int writeOut(List<Eviction> victims, boolean expiring) {
+            int written = 0;
+            for (Eviction eviction : victims) {
+                // Taken before the shard's lock: while it is held no other write of this cart can start,
+                // and a still-current eviction means no newer copy has been restored from disk
+                synchronized (eviction.resident) {
+                    synchronized (this) {
+                        if (writing.get(eviction.customerId) != eviction) {
+                            continue; // Taken back, and perhaps chosen again, or removed; nothing to write
+                        }
+                    }
+                    written += finishEviction(eviction, persist(eviction.customerId, eviction.resident), expiring);
+                }
+            }
+            return written;
+        }
+
+        private synchronized int finishEviction(Eviction eviction, boolean saved, boolean expiring) {
+            if (!saved) {
+                persistFailures++;
+            }
+            if (writing.get(eviction.customerId) != eviction) {
+                return 0; // Taken back while it was written
+            }
+            writing.remove(eviction.customerId);
+            if (!saved) {
+                carts.put(eviction.customerId, eviction.resident);
+                residentLines += eviction.resident.accountedLines;
+                return 0;
+            }
+            eviction.resident.dropped = true;
+            if (expiring) {
+                expirations++;
+            } else {
+                evictions++;
+            }
+            return 1;
+        }
+
+        // Called with the cart's monitor held and the shard's lock not held, so writes of one cart never overlap
+        private boolean persist(String customerId, Resident resident) {
+            String file = fileFor(customerId);
+            try {
+                if (resident.cart.getProductCount() == 0) {
+                    CartFileHandler.deleteCartFile(file);
+                } else {
+                    Files.createDirectories(directory);
+                    CartFileHandler.saveCart(resident.cart, file);
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Regression check for price changes of products a cart holds on several lines with the same id.
+ *
+ * A cart keeps products with the same id but a different name or price on separate lines. When one of them is
+ * repriced to equal another line's product, its own line must still follow the change, and a line removed before
+ * its product is repriced must not. Both an ordinary Cart and a ConcurrentCart are checked; the program exits
+ * with status 1 if any check fails.
+ *
+ * Usage: java CartRepriceCheck
+ */
+public class CartRepriceCheck {
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (Cart cart : new Cart[] {new Cart(), new ConcurrentCart()}) {
+            String kind = cart.getClass().getSimpleName();
+            Product first = new Product(1L, "A", 10.0);
+            Product second = new Product(1L, "A", 20.0);
+            cart.addProduct(first);
+            cart.addProduct(second);
+            second.setPrice(10.0); // Now equal to the first line's product
+            failures += expect(kind + " total after repricing to an equal product", cart.calculateTotalMinor(), 2_000);
+            failures += expect(kind + " most expensive after repricing",
+                               cart.getMostExpensiveProduct().get().getPriceMinor(), 1_000);
+
+            Product removed = new Product(2L, "B", 5.0);
+            cart.addProduct(removed);
+            cart.removeProduct(removed);
+            removed.setPrice(50.0);
+            failures += expect(kind + " total after repricing a removed product", cart.calculateTotalMinor(), 2_000);
+
+            Product cleared = new Product(3L, "C", 5.0);
+            cart.clear();
+            cart.addProduct(cleared);
+            cart.clear();
+            cleared.setPrice(7.0);
+            failures += expect(kind + " total after repricing a cleared product", cart.calculateTotalMinor(), 0);
+        }
+
+        BenchmarkRunner.report("failures", failures, "");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int expect(String check, long actual, long expected) {
+        if (actual == expected) {
+            return 0;
+        }
+        System.out.println(check + ": expected " + expected + ", got " + actual);
+        return 1;
+    }
+}
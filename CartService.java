@@ -1,23 +1,135 @@
-import java.util.Comparator;
-import java.util.Optional;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
 
  
 /**
  * Service class to manage the operations on a shopping cart.
  */
 public class CartService {
-    private Cart cart = new Cart();
+    private static final int DISCOUNT_CACHE_SIZE = 64;
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private Cart cart;
+    private final DiscountResultCache discountCache = new DiscountResultCache(DISCOUNT_CACHE_SIZE);
+    private volatile CartMetrics metrics = CartMetrics.noop();
+    private volatile CartEventSink events = CartEventSink.noop();
+
+    /**
+     * Creates a service managing a new, empty cart.
+     */
+    public CartService() {
+        this(new Cart());
+    }
+
+    /**
+     * Creates a service managing an existing cart, such as one handed out by a CartRegistry.
+     * 
+     * @param cart The cart to manage.
+     * @throws IllegalArgumentException if the cart is null.
+     */
+    public CartService(Cart cart) {
+        if (cart == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        this.cart = cart;
+    }
  
     /**
-     * Adds a product to the cart and prints a confirmation.
+     * Adds a product to the cart and publishes a PRODUCT_ADDED event.
      * 
      * @param product The product to be added.
      */
     public void addProduct(Product product) {
-        cart.addProduct(product);
-        System.out.println("Added product: " + product.getName());
+        addProduct(product, 1);
+    }
+
+    /**
+     * Adds several units of a product to the cart and publishes a PRODUCT_ADDED event.
+     * 
+     * @param product The product to be added.
+     * @param quantity The number of units to add.
+     */
+    public void addProduct(Product product, int quantity) {
+        long start = startTimer();
+        cart.addProduct(product, quantity);
+        stopTimer(CartMetrics.Operation.ADD, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.productAdded(cart, product, quantity));
+        }
+    }
+
+    /**
+     * Adds one unit of each of several products in a single pass, such as the products of an imported list,
+     * and publishes one PRODUCTS_ADDED event for the whole batch.
+     * 
+     * @param products The products to add; nothing is added if any is invalid.
+     * @return The number of units added.
+     */
+    public int addAll(Collection<? extends Product> products) {
+        long start = startTimer();
+        int added = cart.addAll(products);
+        stopTimer(CartMetrics.Operation.ADD, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.productsAdded(cart, added));
+        }
+        return added;
+    }
+
+    /**
+     * Merges another cart into this one, such as a guest cart into the cart of the customer who just logged in,
+     * and publishes one CART_MERGED event. Products in both carts have their quantities summed at this cart's
+     * price; the other cart is left unchanged.
+     * 
+     * @param other The cart to merge in.
+     * @return The number of units added.
+     */
+    public int merge(Cart other) {
+        long start = startTimer();
+        int added = cart.merge(other);
+        stopTimer(CartMetrics.Operation.ADD, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.cartMerged(cart, added));
+        }
+        return added;
+    }
+
+    /**
+     * Sets how many units of a product the cart holds; zero removes the product.
+     * Publishes a QUANTITY_CHANGED event.
+     * 
+     * @param product The product whose quantity to set.
+     * @param quantity The new number of units.
+     */
+    public void setQuantity(Product product, int quantity) {
+        long start = startTimer();
+        cart.setQuantity(product, quantity);
+        stopTimer(CartMetrics.Operation.SET_QUANTITY, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.quantityChanged(cart, product, quantity));
+        }
+    }
+
+    /**
+     * Removes one unit of a product from the cart and publishes a PRODUCT_REMOVED event.
+     * 
+     * @param product The product to decrement.
+     * @return The number of units left in the cart.
+     */
+    public int decrement(Product product) {
+        long start = startTimer();
+        int left = cart.decrement(product);
+        stopTimer(CartMetrics.Operation.REMOVE, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.productRemoved(cart, product, left));
+        }
+        return left;
     }
     
     
@@ -27,29 +139,72 @@ public class CartService {
     }
     
     /**
-     * Removes a product from the cart by its ID if found.
+     * Removes a product from the cart by its ID if found, publishing a PRODUCT_REMOVED event.
      * 
      * @param id The ID of the product to remove.
      */
     public void removeProductById(Long id) {
-        Optional<Product> product = cart.getProducts().stream()
-                .filter(p -> p.getId().equals(id))
-                .findFirst();
-        product.ifPresent(cart::removeProduct);
+        long start = startTimer();
+        Product removed = cart.removeProductById(id).orElse(null);
+        stopTimer(CartMetrics.Operation.REMOVE, start);
+        CartEventSink sink = events;
+        if (removed != null && sink.isEnabled()) {
+            sink.publish(CartEvent.productRemoved(cart, removed, cart.getQuantity(removed)));
+        }
     }
     
     
  
     /**
-     * Displays the products in the cart by printing each product's details.
+     * Removes every unit of the products with the given IDs in a single pass,
+     * publishing one PRODUCTS_REMOVED event if anything was removed.
+     * 
+     * @param ids The IDs of the products to remove.
+     * @return The number of units removed.
+     */
+    public int removeAllById(Collection<Long> ids) {
+        long start = startTimer();
+        int removed = cart.removeAllById(ids);
+        stopTimer(CartMetrics.Operation.REMOVE, start);
+        CartEventSink sink = events;
+        if (removed > 0 && sink.isEnabled()) {
+            sink.publish(CartEvent.productsRemoved(cart, removed));
+        }
+        return removed;
+    }
+    
+    /**
+     * Displays the lines in the cart by printing each product's details, its quantity
+     * and the price charged when the cart overrides the product's own price.
+     * The whole listing is printed with one call, so the console is locked once rather than once per line.
      */
     public void displayCart() {
-        List<Product> products = cart.getProducts();
-        if (products.isEmpty()) {
-            System.out.println("The cart is empty.");
-        } else {
-            products.forEach(System.out::println);
+        System.out.println(formatCart());
+    }
+
+    /**
+     * Describes the lines in the cart as {@link #displayCart()} prints them, one per line.
+     * 
+     * @return The listing, without a trailing line separator.
+     */
+    public String formatCart() {
+        if (cart.getProductCount() == 0) {
+            return "The cart is empty.";
+        }
+        StringBuilder text = new StringBuilder();
+        for (CartLine line : cart.getLines()) {
+            if (text.length() > 0) {
+                text.append(System.lineSeparator());
+            }
+            text.append(line.getProduct());
+            if (line.getQuantity() != 1) {
+                text.append(" x ").append(line.getQuantity());
+            }
+            if (line.getUnitPriceMinor() != line.getProduct().getPriceMinor()) {
+                Money.appendTo(text.append(" at "), line.getUnitPriceMinor());
+            }
         }
+        return text.toString();
     }
  
     /**
@@ -58,7 +213,102 @@ public class CartService {
      * @return The total price of products in the cart.
      */
     public double calculateTotal() {
-        return cart.calculateTotal();
+        long start = startTimer();
+        double total = cart.calculateTotal();
+        stopTimer(CartMetrics.Operation.TOTAL, start);
+        return total;
+    }
+
+    /**
+     * Calculates the total cost of the cart after a discount.
+     * The result is cached until the cart changes, so rendering an unchanged cart again is a single lookup.
+     * 
+     * @param discountStrategy The discount to apply to the total.
+     * @return The discounted total.
+     */
+    public double calculateDiscountedTotal(DiscountStrategy discountStrategy) {
+        long start = startTimer();
+        double total = discountCache.discountedTotal(cart, discountStrategy);
+        stopTimer(CartMetrics.Operation.DISCOUNT, start);
+        return total;
+    }
+
+    /**
+     * Saves the cart to a file in the binary cart format.
+     * 
+     * @param filename The file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void saveCart(String filename) throws IOException {
+        long start = startTimer();
+        CartFileHandler.saveCart(cart, filename);
+        stopTimer(CartMetrics.Operation.SAVE, start);
+    }
+
+    /**
+     * Replaces the contents of the cart with those saved in a file, keeping quantities and the prices charged.
+     * Publishes a CART_LOADED event.
+     * 
+     * @param filename The file to read.
+     * @throws IOException if the file cannot be read or is malformed.
+     * @throws ClassNotFoundException if the class of a legacy serialized object cannot be found.
+     */
+    public void loadCart(String filename) throws IOException, ClassNotFoundException {
+        long start = startTimer();
+        List<CartLine> lines = CartFileHandler.loadCartLines(filename);
+        cart.replaceLines(lines);
+        stopTimer(CartMetrics.Operation.LOAD, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.cartLoaded(cart, cart.getProductCount()));
+        }
+    }
+
+    /**
+     * Sends timings of this service's operations to the given metrics, such as a shared CartMetricsRecorder.
+     * 
+     * @param metrics The metrics to record to, or {@link CartMetrics#noop()} to stop recording.
+     * @throws IllegalArgumentException if the metrics are null.
+     */
+    public void setMetrics(CartMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics cannot be null");
+        }
+        this.metrics = metrics;
+    }
+
+    public CartMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publishes this service's changes to the cart to the given sink, such as an AsyncCartEventSink
+     * with listeners subscribed.
+     * 
+     * @param events The sink to publish to, or {@link CartEventSink#noop()} to stop publishing.
+     * @throws IllegalArgumentException if the sink is null.
+     */
+    public void setEventSink(CartEventSink events) {
+        if (events == null) {
+            throw new IllegalArgumentException("Event sink cannot be null");
+        }
+        this.events = events;
+    }
+
+    public CartEventSink getEventSink() {
+        return events;
+    }
+
+    // Reads the clock only when metrics are enabled, so disabled metrics cost one check per operation
+    private long startTimer() {
+        return metrics.isEnabled() ? System.nanoTime() : NOT_TIMED;
+    }
+
+    private void stopTimer(CartMetrics.Operation operation, long start) {
+        CartMetrics current = metrics;
+        if (start != NOT_TIMED && current.isEnabled()) {
+            current.record(operation, System.nanoTime() - start, cart.getProductCount());
+        }
     }
  
     /**
@@ -67,9 +317,7 @@ public class CartService {
      * @return The most expensive product, or null if the cart is empty.
      */
     public Product getMostExpensiveProduct() {
-        return cart.getProducts().stream()
-                .max(Comparator.comparingDouble(Product::getPrice))
-                .orElse(null);
+        return cart.getMostExpensiveProduct().orElse(null);
     }
  
     /**
@@ -78,38 +326,71 @@ public class CartService {
      * @return The least expensive product, or null if the cart is empty.
      */
     public Product getCheapestProduct() {
-        return cart.getProducts().stream()
-                .min(Comparator.comparingDouble(Product::getPrice))
-                .orElse(null);
+        return cart.getCheapestProduct().orElse(null);
     }
     
     
     /**
-     * Clears all products from the cart.
+     * Clears all products from the cart and publishes a CART_CLEARED event.
      */
     public void clearCart() {
+        long start = startTimer();
         cart.clear();
-        System.out.println("The cart has been cleared.");
+        stopTimer(CartMetrics.Operation.CLEAR, start);
+        CartEventSink sink = events;
+        if (sink.isEnabled()) {
+            sink.publish(CartEvent.cartCleared(cart));
+        }
     }
  
     /**
      * Finds all products in the cart that are below a certain price.
+     * The cart's price index answers this without scanning products above the threshold.
      * 
      * @param price The threshold price.
-     * @return List of products priced below the given amount.
+     * @return List of products priced below the given amount, ordered by ascending price.
      */
     public List<Product> findProductsBelowPrice(double price) {
-        return cart.getProducts().stream()
-                .filter(p -> p.getPrice() < price)
-                .collect(Collectors.toList());
+        return cart.getProductsBelowPrice(price);
+    }
+
+    /**
+     * Finds all products in the cart that are above a certain price.
+     * 
+     * @param price The threshold price.
+     * @return List of products priced above the given amount, ordered by ascending price.
+     */
+    public List<Product> findProductsAbovePrice(double price) {
+        return cart.getProductsAbovePrice(price);
+    }
+
+    /**
+     * Finds all products in the cart priced within a range, bounds included.
+     * 
+     * @param minPrice The lowest matching price.
+     * @param maxPrice The highest matching price.
+     * @return List of products priced within the range, ordered by ascending price.
+     */
+    public List<Product> findProductsBetweenPrices(double minPrice, double maxPrice) {
+        return cart.getProductsBetweenPrices(minPrice, maxPrice);
+    }
+
+    /**
+     * Checks whether the cart total has reached a threshold, such as the minimum for free shipping.
+     * 
+     * @param threshold The total the cart must reach.
+     * @return true if the cart total is at least the threshold.
+     */
+    public boolean meetsTotalThreshold(double threshold) {
+        return cart.calculateTotalMinor() >= Money.ofMajorSaturating(threshold, RoundingMode.CEILING);
     }
  
     /**
-     * Counts the total number of products in the cart.
+     * Counts the total number of product units in the cart.
      * 
      * @return The number of products in the cart.
      */
     public int getTotalProductCount() {
-        return cart.getProducts().size();
+        return cart.getProductCount();
     }
 }
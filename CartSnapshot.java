@@ -0,0 +1,229 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An immutable view of a cart's lines at one moment, as kept by a {@link CartHistory}.
+ *
+ * Readers such as rendering, pricing and persistence can hold a snapshot as long as they like, from any thread,
+ * without copying the cart or locking it. Snapshots are persistent: each change to the cart makes a new one that
+ * shares everything but the changed line with the previous one, in a {@link PersistentIdentityMap}, so keeping
+ * old snapshots for undo costs little.
+ *
+ * The line list and the string form are built on first use and then reused for the life of the snapshot.
+ * Products are held by reference, so a product renamed after the snapshot was rendered keeps its old name in
+ * the cached string.
+ */
+public final class CartSnapshot {
+    private static final CartSnapshot EMPTY = new CartSnapshot(PersistentIdentityMap.empty(), 0, 0, 0, 0);
+
+    private final PersistentIdentityMap<Product, Line> lines;
+    private final long totalMinor;
+    private final int units;
+    private final long revision;
+    private final long nextSequence;
+    private volatile List<CartLine> orderedLines;
+    private volatile String text;
+
+    private CartSnapshot(PersistentIdentityMap<Product, Line> lines, long totalMinor, int units, long revision,
+                         long nextSequence) {
+        this.lines = lines;
+        this.totalMinor = totalMinor;
+        this.units = units;
+        this.revision = revision;
+        this.nextSequence = nextSequence;
+    }
+
+    static CartSnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Makes the snapshot following this one after a line changed.
+     *
+     * @param product the product of the line
+     * @param quantity the new quantity, zero if the line was removed
+     * @param unitPriceMinor the unit price now charged
+     * @param overridden whether that price is an override rather than the product's own price
+     * @return the new snapshot
+     */
+    CartSnapshot withLine(Product product, int quantity, long unitPriceMinor, boolean overridden) {
+        Line previous = lines.get(product);
+        long total = totalMinor;
+        int count = units;
+        if (previous != null) {
+            total -= previous.unitPriceMinor * previous.quantity;
+            count -= previous.quantity;
+        }
+        if (quantity == 0) {
+            return new CartSnapshot(lines.without(product), total, count, revision + 1, nextSequence);
+        }
+        long sequence = previous == null ? nextSequence : previous.sequence;
+        Line line = new Line(product, quantity, unitPriceMinor, overridden, sequence);
+        return new CartSnapshot(lines.with(product, line), total + unitPriceMinor * quantity, count + quantity,
+                                revision + 1, previous == null ? nextSequence + 1 : nextSequence);
+    }
+
+    /**
+     * Makes the snapshot following this one after the cart was cleared.
+     *
+     * @return the new, empty snapshot
+     */
+    CartSnapshot cleared() {
+        return new CartSnapshot(PersistentIdentityMap.empty(), 0, 0, revision + 1, 0);
+    }
+
+    /**
+     * Gets the number of changes between the start of the history and this snapshot.
+     * Only snapshots of the same history are comparable.
+     *
+     * @return the revision
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Gets the lines, one per distinct product, in the order the products were first added.
+     *
+     * @return an unmodifiable list, shared by every caller
+     */
+    public List<CartLine> getLines() {
+        List<CartLine> result = orderedLines;
+        if (result == null) {
+            List<Line> sorted = new ArrayList<>(lines.size());
+            lines.forEach((product, line) -> sorted.add(line));
+            sorted.sort(Comparator.comparingLong(line -> line.sequence));
+            List<CartLine> built = new ArrayList<>(sorted.size());
+            for (Line line : sorted) {
+                built.add(new CartLine(line.product, line.quantity, line.unitPriceMinor));
+            }
+            result = Collections.unmodifiableList(built);
+            orderedLines = result;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the products, in the order they were added, a product held with a quantity above one once per unit.
+     *
+     * @return an unmodifiable list
+     */
+    public List<Product> getProducts() {
+        List<Product> products = new ArrayList<>(units);
+        forEachProduct(products::add);
+        return Collections.unmodifiableList(products);
+    }
+
+    /**
+     * Performs an action for each line, in the order the products were first added.
+     *
+     * @param action the action to perform on each product and its quantity
+     */
+    public void forEachLine(ObjIntConsumer<? super Product> action) {
+        for (CartLine line : getLines()) {
+            action.accept(line.getProduct(), line.getQuantity());
+        }
+    }
+
+    private void forEachProduct(Consumer<? super Product> action) {
+        for (CartLine line : getLines()) {
+            for (int unit = line.getQuantity(); unit > 0; unit--) {
+                action.accept(line.getProduct());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of units of a product, looked up in O(log n) without building the line list.
+     *
+     * @param product the product, matched by identity as the cart reports it
+     * @return the quantity, or zero if the product was not in the cart
+     */
+    public int getQuantity(Product product) {
+        Line line = lines.get(product);
+        return line == null ? 0 : line.quantity;
+    }
+
+    /**
+     * Gets the price charged per unit of a product.
+     *
+     * @param product the product, matched by identity as the cart reports it
+     * @return the unit price in cents
+     * @throws IllegalArgumentException if the product was not in the cart
+     */
+    public long getUnitPriceMinor(Product product) {
+        return require(product).unitPriceMinor;
+    }
+
+    /**
+     * Tells whether the cart held a price override for a product.
+     *
+     * @param product the product, matched by identity as the cart reports it
+     * @return true if the unit price was an override
+     * @throws IllegalArgumentException if the product was not in the cart
+     */
+    public boolean hasPriceOverride(Product product) {
+        return require(product).overridden;
+    }
+
+    public long calculateTotalMinor() {
+        return totalMinor;
+    }
+
+    public double calculateTotal() {
+        return Money.toMajor(totalMinor);
+    }
+
+    public int getProductCount() {
+        return units;
+    }
+
+    public int getLineCount() {
+        return lines.size();
+    }
+
+    /**
+     * Lists every product in the same form as {@link Cart#toString()}, built once per snapshot.
+     */
+    @Override
+    public String toString() {
+        String result = text;
+        if (result == null) {
+            StringJoiner joiner = new StringJoiner(", ", "Cart{products=[", "]}");
+            forEachProduct(product -> joiner.add(product.toString()));
+            result = joiner.toString();
+            text = result;
+        }
+        return result;
+    }
+
+    private Line require(Product product) {
+        Line line = lines.get(product);
+        if (line == null) {
+            throw new IllegalArgumentException("Product is not in the cart");
+        }
+        return line;
+    }
+
+    // A line and the order in which its product was first added
+    private static final class Line {
+        final Product product;
+        final int quantity;
+        final long unitPriceMinor;
+        final boolean overridden;
+        final long sequence;
+
+        Line(Product product, int quantity, long unitPriceMinor, boolean overridden, long sequence) {
+            this.product = product;
+            this.quantity = quantity;
+            this.unitPriceMinor = unitPriceMinor;
+            this.overridden = overridden;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A Cart that can be shared safely between threads.
+ *
+ * Mutations run under a write lock, since the total and the price index they update are cart-wide.
+ * Total and count reads are lock-free: every mutation republishes them through volatile fields.
+ * Lookups and range queries share a read lock, so readers never block one another.
+ * Iteration, {@link #getProducts()} and {@code toString()} work from an immutable snapshot
+ * that is rebuilt lazily after a mutation, so every reader sees one consistent cart state
+ * and repeated reads of an unchanged cart cost nothing.
+ *
+ * Price changes of products held by the cart never wait for its lock. They are queued and applied by the
+ * thread that holds or next releases the lock, so a thread changing shared products while holding one cart's
+ * lock cannot deadlock with another doing the same to a second cart.
+ */
+public class ConcurrentCart extends Cart {
+    private static final long serialVersionUID = 2505980629856855706L;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private transient Queue<CartEntry> pendingPriceChanges = new ConcurrentLinkedQueue<>();
+    private transient volatile List<Product> snapshot;
+    private transient volatile long publishedTotal;
+    private transient volatile int publishedCount;
+
+    /**
+     * Gets an immutable snapshot of the products in the cart, in the order they were added.
+     * The same snapshot is shared by all readers until the cart changes.
+     *
+     * @return an unmodifiable list of products
+     */
+    @Override
+    public List<Product> getProducts() {
+        List<Product> current = snapshot;
+        if (current == null) {
+            current = read(() -> {
+                List<Product> rebuilt = snapshot;
+                if (rebuilt == null) {
+                    rebuilt = super.getProducts();
+                    snapshot = rebuilt;
+                }
+                return rebuilt;
+            });
+        }
+        return current;
+    }
+
+    /**
+     * Performs an action for each product of a consistent snapshot of the cart.
+     * The action runs without holding any lock, so it may itself modify the cart.
+     *
+     * @param action the action to perform on each product
+     */
+    @Override
+    public void forEachProduct(Consumer<? super Product> action) {
+        getProducts().forEach(action);
+    }
+
+    /**
+     * Gets a snapshot of the lines of the cart, taken under the read lock.
+     *
+     * @return an unmodifiable list of lines
+     */
+    @Override
+    public List<CartLine> getLines() {
+        return read(super::getLines);
+    }
+
+    /**
+     * Performs an action for each line of a consistent snapshot of the cart.
+     * The action runs without holding any lock, so it may itself modify the cart.
+     *
+     * @param action the action to perform on each product and its quantity
+     */
+    @Override
+    public void forEachLine(ObjIntConsumer<? super Product> action) {
+        getLines().forEach(line -> action.accept(line.getProduct(), line.getQuantity()));
+    }
+
+    @Override
+    public void addProduct(Product product) {
+        write(() -> super.addProduct(product));
+    }
+
+    @Override
+    public void addProduct(Product product, int quantity) {
+        write(() -> super.addProduct(product, quantity));
+    }
+
+    @Override
+    public int addAll(Collection<? extends Product> added) {
+        return write(() -> super.addAll(added));
+    }
+
+    @Override
+    public int addLines(Collection<CartLine> lines) {
+        return write(() -> super.addLines(lines));
+    }
+
+    /**
+     * Replaces the cart's contents under one hold of the write lock, so no reader sees the cart cleared
+     * but not yet refilled.
+     *
+     * @param lines the lines the cart should hold, in order
+     */
+    @Override
+    public void replaceLines(Collection<CartLine> lines) {
+        write(() -> super.replaceLines(lines));
+    }
+
+    @Override
+    public void setQuantity(Product product, int quantity) {
+        write(() -> super.setQuantity(product, quantity));
+    }
+
+    @Override
+    public int decrement(Product product) {
+        return write(() -> super.decrement(product));
+    }
+
+    @Override
+    public int getQuantity(Product product) {
+        return read(() -> super.getQuantity(product));
+    }
+
+    @Override
+    public void removeProduct(Product product) {
+        write(() -> super.removeProduct(product));
+    }
+
+    @Override
+    public Optional<Product> removeProductById(Long id) {
+        return write(() -> super.removeProductById(id));
+    }
+
+    @Override
+    public int removeAllById(Collection<Long> ids) {
+        return write(() -> super.removeAllById(ids));
+    }
+
+    @Override
+    public Optional<Product> findProductById(Long id) {
+        return read(() -> super.findProductById(id));
+    }
+
+    /**
+     * Gets the total price of the cart as of the last completed mutation, without locking.
+     *
+     * @return the cart total
+     */
+    @Override
+    public double calculateTotal() {
+        return Money.toMajor(publishedTotal);
+    }
+
+    /**
+     * Gets the exact total price of the cart in minor units as of the last completed mutation, without locking.
+     *
+     * @return the cart total in cents
+     */
+    @Override
+    public long calculateTotalMinor() {
+        return publishedTotal;
+    }
+
+    @Override
+    public Optional<Product> getMostExpensiveProduct() {
+        return read(super::getMostExpensiveProduct);
+    }
+
+    @Override
+    public Optional<Product> getCheapestProduct() {
+        return read(super::getCheapestProduct);
+    }
+
+    @Override
+    public List<Product> getProductsBelowPrice(double price) {
+        return read(() -> super.getProductsBelowPrice(price));
+    }
+
+    @Override
+    public List<Product> getProductsAbovePrice(double price) {
+        return read(() -> super.getProductsAbovePrice(price));
+    }
+
+    @Override
+    public List<Product> getProductsBetweenPrices(double minPrice, double maxPrice) {
+        return read(() -> super.getProductsBetweenPrices(minPrice, maxPrice));
+    }
+
+    /**
+     * Streams a copy of the matching products, since the live price index cannot be read without the lock.
+     *
+     * @param price the exclusive upper price bound
+     * @return a stream of the matching products
+     */
+    @Override
+    public Stream<Product> streamProductsBelowPrice(double price) {
+        return getProductsBelowPrice(price).stream();
+    }
+
+    /**
+     * Streams a copy of the matching products, since the live price index cannot be read without the lock.
+     *
+     * @param price the exclusive lower price bound
+     * @return a stream of the matching products
+     */
+    @Override
+    public Stream<Product> streamProductsAbovePrice(double price) {
+        return getProductsAbovePrice(price).stream();
+    }
+
+    /**
+     * Streams a copy of the matching products, since the live price index cannot be read without the lock.
+     *
+     * @param minPrice the inclusive lower price bound
+     * @param maxPrice the inclusive upper price bound
+     * @return a stream of the matching products
+     */
+    @Override
+    public Stream<Product> streamProductsBetweenPrices(double minPrice, double maxPrice) {
+        return getProductsBetweenPrices(minPrice, maxPrice).stream();
+    }
+
+    /**
+     * Applies a discount to every distinct product in the cart under the write lock, so no line is added or
+     * removed while it runs. Other carts holding a discounted product are updated through their queued
+     * price changes, without this cart waiting for their locks.
+     *
+     * @param discountRate discount rate in percentage (0-100)
+     * @throws IllegalArgumentException if the rate is outside 0-100
+     */
+    @Override
+    public void applyDiscountToAll(double discountRate) {
+        write(() -> super.applyDiscountToAll(discountRate));
+    }
+
+    @Override
+    public void applyLineDiscount(Product product, double discountRate) {
+        write(() -> super.applyLineDiscount(product, discountRate));
+    }
+
+    @Override
+    public void setPriceOverride(Product product, long priceMinor) {
+        write(() -> super.setPriceOverride(product, priceMinor));
+    }
+
+    @Override
+    public void clearPriceOverride(Product product) {
+        write(() -> super.clearPriceOverride(product));
+    }
+
+    @Override
+    public boolean hasPriceOverride(Product product) {
+        return read(() -> super.hasPriceOverride(product));
+    }
+
+    @Override
+    public long getUnitPriceMinor(Product product) {
+        return read(() -> super.getUnitPriceMinor(product));
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+        write(() -> super.addLineListener(listener));
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+        write(() -> super.removeLineListener(listener));
+    }
+
+    @Override
+    public void clear() {
+        write(super::clear);
+    }
+
+    /**
+     * Gets the number of product units as of the last completed mutation, without locking.
+     *
+     * @return the count of products in the cart
+     */
+    @Override
+    public int getProductCount() {
+        return publishedCount;
+    }
+
+    /**
+     * Gets the modification version. It is read under the read lock, so a version read before and after
+     * {@link #calculateTotalMinor()} is unchanged only if no mutation completed or was in progress in between.
+     *
+     * @return the current version
+     */
+    @Override
+    public long getVersion() {
+        return read(super::getVersion);
+    }
+
+    @Override
+    public int getLineCount() {
+        return read(super::getLineCount);
+    }
+
+    /**
+     * Queues a price change and applies it at once if the write lock is free or already held by this thread.
+     *
+     * @param entry the entry whose product was repriced
+     */
+    @Override
+    void onPriceChanged(CartEntry entry) {
+        pendingPriceChanges.add(entry);
+        applyPendingPriceChanges();
+    }
+
+    /**
+     * Serializes the cart as a consistent state, read under the read lock.
+     *
+     * @return the products the cart is serialized as
+     */
+    @Override
+    List<Product> toSerialForm() {
+        return read(super::toSerialForm);
+    }
+
+    private <T> T read(Supplier<T> action) {
+        ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return action.get();
+        } finally {
+            readLock.unlock();
+            applyPendingPriceChanges();
+        }
+    }
+
+    // A change queued while another thread held the lock is applied by that thread once it has released it
+    private void applyPendingPriceChanges() {
+        ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+        while (!pendingPriceChanges.isEmpty() && writeLock.tryLock()) {
+            try {
+                CartEntry entry;
+                while ((entry = pendingPriceChanges.poll()) != null) {
+                    super.onPriceChanged(entry);
+                }
+                publish();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void write(Runnable action) {
+        write(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private <T> T write(Supplier<T> action) {
+        ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            T result = action.get();
+            publish();
+            return result;
+        } finally {
+            writeLock.unlock();
+            applyPendingPriceChanges();
+        }
+    }
+
+    // Called with the write lock held, so the published values always describe a completed mutation
+    private void publish() {
+        snapshot = null;
+        publishedTotal = super.calculateTotalMinor();
+        publishedCount = super.getProductCount();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        pendingPriceChanges = new ConcurrentLinkedQueue<>();
+        publishedTotal = super.calculateTotalMinor();
+        publishedCount = super.getProductCount();
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Contention benchmark comparing ConcurrentCart against a plain Cart guarded by a single monitor.
+ * Several threads share one cart and run a mix of total/count reads, lookups,
+ * snapshot iteration and add/remove pairs.
+ *
+ * Usage: java ConcurrentCartBenchmark [maxThreads] [cartSize] [writePercent]
+ */
+public class ConcurrentCartBenchmark {
+    private static final long WARMUP_MILLIS = 500;
+    private static final long DURATION_MILLIS = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int cartSize = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int writePercent = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.println("cart size " + cartSize + ", " + writePercent + "% writes");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Cart synchronizedCart = populate(new Cart(), cartSize);
+            double monitor = BenchmarkRunner.operationsPerMilli(threads, WARMUP_MILLIS, DURATION_MILLIS,
+                    thread -> {
+                        synchronized (synchronizedCart) {
+                            mixedOperation(synchronizedCart, cartSize, writePercent, thread);
+                        }
+                    });
+            Cart concurrentCart = populate(new ConcurrentCart(), cartSize);
+            double concurrent = BenchmarkRunner.operationsPerMilli(threads, WARMUP_MILLIS, DURATION_MILLIS,
+                    thread -> mixedOperation(concurrentCart, cartSize, writePercent, thread));
+
+            BenchmarkRunner.report("synchronized Cart, " + threads + " threads", monitor, "ops/ms");
+            BenchmarkRunner.report("ConcurrentCart, " + threads + " threads", concurrent, "ops/ms");
+        }
+    }
+
+    private static Cart populate(Cart cart, int size) {
+        for (long id = 0; id < size; id++) {
+            cart.addProduct(new Product(id, "Item " + id, 1 + id % 100));
+        }
+        return cart;
+    }
+
+    // Each thread adds and removes ids from its own range above the initial contents
+    private static void mixedOperation(Cart cart, int cartSize, int writePercent, int thread) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(100);
+        if (roll < writePercent) {
+            long id = cartSize + thread * 1_000_000L + random.nextInt(1_000);
+            if (!cart.removeProductById(id).isPresent()) {
+                cart.addProduct(new Product(id, "Extra", 9.99));
+            }
+        } else if (roll < writePercent + 2) {
+            BenchmarkRunner.consume(cart.getProducts().size());
+        } else if (roll < 60) {
+            BenchmarkRunner.consume(cart.findProductById((long) random.nextInt(cartSize)).isPresent() ? 1 : 0);
+        } else {
+            BenchmarkRunner.consume((long) cart.calculateTotal() + cart.getProductCount());
+        }
+    }
+}
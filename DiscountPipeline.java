@@ -0,0 +1,448 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flattens a composed DiscountStrategy into a single evaluator.
+ *
+ * Chains built with {@link DiscountStrategy#combineWith(DiscountStrategy)} and
+ * {@link DiscountStrategy#withMaxDiscount(double)} evaluate as nested calls, one virtual call per rule.
+ * With promotion stacks of dozens of rules these call sites see many receiver types and the JIT stops inlining them.
+ * {@link #compile(DiscountStrategy)} walks the chain once and turns it into a flat program of opcodes and operands
+ * that a single loop runs, so evaluating a stack of any depth is one call, plus one for each cap nested in it.
+ * Evaluating a single total allocates nothing: the amount a cap is measured from is a local of that call.
+ *
+ * Percentage, flat and fixed-amount discounts and caps become opcodes; percentages with more than two decimals,
+ * which need exact decimal arithmetic, and any other strategy are kept and called as is.
+ * Every opcode performs exactly the arithmetic of the strategy it replaces, in the same order,
+ * so the compiled evaluator returns bit-for-bit the same results as the chain,
+ * both through {@link #applyDiscount(double)} and through the exact {@link #applyDiscountMinor(long)}.
+ *
+ * The amounts of {@link FlatDiscount} and {@link PercentageDiscount} are read when the chain is compiled;
+ * recompile after changing them.
+ */
+public final class DiscountPipeline implements DiscountStrategy {
+    private static final byte MULTIPLY = 0;
+    private static final byte SUBTRACT = 1;
+    private static final byte SUBTRACT_TO_ZERO = 2;
+    private static final byte SAVE = 3;
+    private static final byte CAP = 4;
+    private static final byte CALL = 5;
+    // Totals per block when applying the program to an array; 8 KB, so a block and its saved copies stay in L1
+    private static final int BLOCK_SIZE = 1024;
+
+    private final byte[] opcodes;
+    private final double[] operands;
+    private final long[] minorOperands; // Cents, or basis points for MULTIPLY
+    private final DiscountStrategy[] calls;
+    private final int[] capOf; // For each SAVE, the index of the CAP that closes it
+    private final int maxDepth;
+
+    private DiscountPipeline(byte[] opcodes, double[] operands, long[] minorOperands,
+                             DiscountStrategy[] calls, int maxDepth) {
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.minorOperands = minorOperands;
+        this.calls = calls;
+        this.maxDepth = maxDepth;
+        this.capOf = new int[opcodes.length];
+        int[] open = new int[maxDepth];
+        int depth = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] == SAVE) {
+                open[depth++] = i;
+            } else if (opcodes[i] == CAP) {
+                capOf[open[--depth]] = i;
+            }
+        }
+    }
+
+    /**
+     * Compiles a discount strategy, however deeply composed, into a flat evaluator.
+     *
+     * @param strategy the strategy to compile
+     * @return an evaluator giving the same results as {@code strategy}
+     * @throws IllegalArgumentException if the strategy is null
+     */
+    public static DiscountPipeline compile(DiscountStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("Discount strategy cannot be null.");
+        }
+        if (strategy instanceof DiscountPipeline) {
+            return (DiscountPipeline) strategy;
+        }
+        Compiler compiler = new Compiler();
+        compiler.emit(strategy, 0);
+        return compiler.build();
+    }
+
+    /**
+     * Applies every compiled discount to the total amount.
+     *
+     * @param totalAmount the original total amount before applying the discounts
+     * @return the amount after applying the discounts
+     */
+    @Override
+    public double applyDiscount(double totalAmount) {
+        return run(totalAmount, 0, opcodes.length);
+    }
+
+    // Runs the steps from one index to another; a capped section runs as a nested call, keeping its saved amount
+    private double run(double totalAmount, int from, int to) {
+        double amount = totalAmount;
+        for (int i = from; i < to; i++) {
+            switch (opcodes[i]) {
+                case MULTIPLY:
+                    amount = amount * operands[i];
+                    break;
+                case SUBTRACT:
+                    amount = amount - operands[i];
+                    break;
+                case SUBTRACT_TO_ZERO:
+                    amount = Math.max(amount - operands[i], 0);
+                    break;
+                case SAVE:
+                    int cap = capOf[i];
+                    amount = Math.max(amount - operands[cap], run(amount, i + 1, cap));
+                    i = cap;
+                    break;
+                default:
+                    amount = calls[(int) operands[i]].applyDiscount(amount);
+                    break;
+            }
+        }
+        return amount;
+    }
+
+    /**
+     * Applies every compiled discount to a total held in minor units.
+     *
+     * @param totalMinor the original total in cents
+     * @return the total in cents after applying the discounts
+     */
+    @Override
+    public long applyDiscountMinor(long totalMinor) {
+        return runMinor(totalMinor, 0, opcodes.length);
+    }
+
+    private long runMinor(long totalMinor, int from, int to) {
+        long amount = totalMinor;
+        for (int i = from; i < to; i++) {
+            switch (opcodes[i]) {
+                case MULTIPLY:
+                    amount = Money.discountByBasisPoints(amount, minorOperands[i], Money.DEFAULT_ROUNDING);
+                    break;
+                case SUBTRACT:
+                    amount = amount - minorOperands[i];
+                    break;
+                case SUBTRACT_TO_ZERO:
+                    amount = Math.max(amount - minorOperands[i], 0);
+                    break;
+                case SAVE:
+                    int cap = capOf[i];
+                    amount = Math.max(Money.subtractSaturating(amount, minorOperands[cap]),
+                                      runMinor(amount, i + 1, cap));
+                    i = cap;
+                    break;
+                default:
+                    amount = calls[(int) minorOperands[i]].applyDiscountMinor(amount);
+                    break;
+            }
+        }
+        return amount;
+    }
+
+    /**
+     * Applies every compiled discount to many totals at once. The totals are taken in blocks small enough to stay
+     * in the L1 cache, and the program runs one step at a time over a whole block, so each step is a tight loop
+     * over a long[] rather than one interpreted step per total. The results equal those of
+     * {@link #applyDiscountMinor(long)} on each total.
+     *
+     * @param totalsMinor the original totals in cents; not modified
+     * @return a new array holding the discounted totals in cents
+     */
+    public long[] applyDiscountMinor(long[] totalsMinor) {
+        long[] amounts = totalsMinor.clone();
+        long[][] saved = new long[maxDepth][Math.min(BLOCK_SIZE, amounts.length)];
+        for (int from = 0; from < amounts.length; from += BLOCK_SIZE) {
+            applyToBlock(amounts, from, Math.min(from + BLOCK_SIZE, amounts.length), saved);
+        }
+        return amounts;
+    }
+
+    private void applyToBlock(long[] amounts, int from, int to, long[][] saved) {
+        int depth = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            long operand = minorOperands[i];
+            switch (opcodes[i]) {
+                case MULTIPLY:
+                    Money.discountAllByBasisPoints(amounts, from, to, operand);
+                    break;
+                case SUBTRACT:
+                    for (int j = from; j < to; j++) {
+                        amounts[j] = amounts[j] - operand;
+                    }
+                    break;
+                case SUBTRACT_TO_ZERO:
+                    for (int j = from; j < to; j++) {
+                        amounts[j] = Math.max(amounts[j] - operand, 0);
+                    }
+                    break;
+                case SAVE:
+                    System.arraycopy(amounts, from, saved[depth++], 0, to - from);
+                    break;
+                case CAP:
+                    long[] before = saved[--depth];
+                    for (int j = from; j < to; j++) {
+                        amounts[j] = Math.max(Money.subtractSaturating(before[j - from], operand), amounts[j]);
+                    }
+                    break;
+                default:
+                    DiscountStrategy call = calls[(int) operand];
+                    for (int j = from; j < to; j++) {
+                        amounts[j] = call.applyDiscountMinor(amounts[j]);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of steps in the compiled program.
+     *
+     * @return the program length
+     */
+    public int size() {
+        return opcodes.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("DiscountPipeline{");
+        for (int i = 0; i < opcodes.length; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            switch (opcodes[i]) {
+                case MULTIPLY:
+                    text.append("multiply ").append(operands[i]);
+                    break;
+                case SUBTRACT:
+                    text.append("subtract ").append(operands[i]);
+                    break;
+                case SUBTRACT_TO_ZERO:
+                    text.append("subtract to zero ").append(operands[i]);
+                    break;
+                case SAVE:
+                    text.append("save");
+                    break;
+                case CAP:
+                    text.append("cap ").append(operands[i]);
+                    break;
+                default:
+                    text.append("call ").append(calls[(int) operands[i]]);
+                    break;
+            }
+        }
+        return text.append('}').toString();
+    }
+
+    private static final class Compiler {
+        private byte[] opcodes = new byte[16];
+        private double[] operands = new double[16];
+        private long[] minorOperands = new long[16];
+        private int length;
+        private final List<DiscountStrategy> calls = new ArrayList<>();
+        private int maxDepth;
+
+        // Recurses only as deep as the chain itself is nested
+        void emit(DiscountStrategy strategy, int depth) {
+            if (strategy instanceof Combined) {
+                Combined combined = (Combined) strategy;
+                emit(combined.first, depth);
+                emit(combined.second, depth);
+            } else if (strategy instanceof Capped) {
+                Capped capped = (Capped) strategy;
+                maxDepth = Math.max(maxDepth, depth + 1);
+                append(SAVE, 0, 0);
+                emit(capped.discount, depth + 1);
+                append(CAP, capped.maxDiscount, capped.maxDiscountMinor);
+            } else if (strategy instanceof DiscountPipeline) {
+                inline((DiscountPipeline) strategy, depth);
+            } else if (strategy instanceof Percentage) {
+                emitPercentage((Percentage) strategy);
+            } else if (strategy instanceof FixedAmount) {
+                FixedAmount fixed = (FixedAmount) strategy;
+                append(SUBTRACT, fixed.amount, fixed.amountMinor);
+            } else if (strategy.getClass() == PercentageDiscount.class) {
+                emitPercentage(new Percentage(((PercentageDiscount) strategy).getPercentage()));
+            } else if (strategy.getClass() == FlatDiscount.class) {
+                double amount = ((FlatDiscount) strategy).getDiscountAmount();
+                append(SUBTRACT_TO_ZERO, amount, Money.ofMajorSaturating(amount, Money.DEFAULT_ROUNDING));
+            } else if (strategy instanceof Identity) {
+                // Nothing to do
+            } else {
+                append(CALL, calls.size(), calls.size());
+                calls.add(strategy);
+            }
+        }
+
+        // A percentage finer than basis points is kept as a call, which takes it exactly
+        private void emitPercentage(Percentage percentage) {
+            if (percentage.basisPoints >= 0) {
+                append(MULTIPLY, percentage.factor, percentage.basisPoints);
+            } else {
+                append(CALL, calls.size(), calls.size());
+                calls.add(percentage);
+            }
+        }
+
+        private void inline(DiscountPipeline pipeline, int depth) {
+            maxDepth = Math.max(maxDepth, depth + pipeline.maxDepth);
+            for (int i = 0; i < pipeline.opcodes.length; i++) {
+                if (pipeline.opcodes[i] == CALL) {
+                    append(CALL, calls.size(), calls.size());
+                    calls.add(pipeline.calls[(int) pipeline.operands[i]]);
+                } else {
+                    append(pipeline.opcodes[i], pipeline.operands[i], pipeline.minorOperands[i]);
+                }
+            }
+        }
+
+        private void append(byte opcode, double operand, long minorOperand) {
+            if (length == opcodes.length) {
+                opcodes = Arrays.copyOf(opcodes, length * 2);
+                operands = Arrays.copyOf(operands, length * 2);
+                minorOperands = Arrays.copyOf(minorOperands, length * 2);
+            }
+            opcodes[length] = opcode;
+            operands[length] = operand;
+            minorOperands[length] = minorOperand;
+            length++;
+        }
+
+        DiscountPipeline build() {
+            return new DiscountPipeline(Arrays.copyOf(opcodes, length), Arrays.copyOf(operands, length),
+                                        Arrays.copyOf(minorOperands, length),
+                                        calls.toArray(new DiscountStrategy[0]), maxDepth);
+        }
+    }
+
+    /**
+     * The strategy returned by {@link DiscountStrategy#combineWith(DiscountStrategy)}.
+     */
+    static final class Combined implements DiscountStrategy {
+        final DiscountStrategy first;
+        final DiscountStrategy second;
+
+        Combined(DiscountStrategy first, DiscountStrategy second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public double applyDiscount(double totalAmount) {
+            return second.applyDiscount(first.applyDiscount(totalAmount));
+        }
+
+        @Override
+        public long applyDiscountMinor(long totalMinor) {
+            return second.applyDiscountMinor(first.applyDiscountMinor(totalMinor));
+        }
+    }
+
+    /**
+     * The strategy returned by {@link DiscountStrategy#withMaxDiscount(double)}.
+     */
+    static final class Capped implements DiscountStrategy {
+        final DiscountStrategy discount;
+        final double maxDiscount;
+        final long maxDiscountMinor;
+
+        Capped(DiscountStrategy discount, double maxDiscount) {
+            this.discount = discount;
+            this.maxDiscount = maxDiscount;
+            this.maxDiscountMinor = Money.ofMajorSaturating(maxDiscount, Money.DEFAULT_ROUNDING);
+        }
+
+        @Override
+        public double applyDiscount(double totalAmount) {
+            double discountedAmount = discount.applyDiscount(totalAmount);
+            return Math.max(totalAmount - maxDiscount, discountedAmount);
+        }
+
+        @Override
+        public long applyDiscountMinor(long totalMinor) {
+            long discountedMinor = discount.applyDiscountMinor(totalMinor);
+            return Math.max(Money.subtractSaturating(totalMinor, maxDiscountMinor), discountedMinor);
+        }
+    }
+
+    /**
+     * The strategy returned by {@link DiscountStrategy#percentageDiscount(double)}.
+     */
+    static final class Percentage implements DiscountStrategy {
+        final double percentage;
+        final double factor;
+        final long basisPoints; // -1 if the percentage has more than two decimals
+
+        Percentage(double percentage) {
+            this.percentage = percentage;
+            this.factor = 1 - percentage / 100;
+            this.basisPoints = Money.exactBasisPoints(percentage);
+        }
+
+        @Override
+        public double applyDiscount(double totalAmount) {
+            return totalAmount * factor;
+        }
+
+        @Override
+        public long applyDiscountMinor(long totalMinor) {
+            if (basisPoints < 0) {
+                return Money.discountByPercent(totalMinor, percentage, Money.DEFAULT_ROUNDING);
+            }
+            return Money.discountByBasisPoints(totalMinor, basisPoints, Money.DEFAULT_ROUNDING);
+        }
+    }
+
+    /**
+     * The strategy returned by {@link DiscountStrategy#fixedAmountDiscount(double)}.
+     */
+    static final class FixedAmount implements DiscountStrategy {
+        final double amount;
+        final long amountMinor;
+
+        FixedAmount(double amount) {
+            this.amount = amount;
+            this.amountMinor = Money.ofMajorSaturating(amount, Money.DEFAULT_ROUNDING);
+        }
+
+        @Override
+        public double applyDiscount(double totalAmount) {
+            return totalAmount - amount;
+        }
+
+        @Override
+        public long applyDiscountMinor(long totalMinor) {
+            return totalMinor - amountMinor;
+        }
+    }
+
+    /**
+     * The strategy returned by {@link DiscountStrategy#noDiscount()}.
+     */
+    static final class Identity implements DiscountStrategy {
+        static final Identity INSTANCE = new Identity();
+
+        @Override
+        public double applyDiscount(double totalAmount) {
+            return totalAmount;
+        }
+
+        @Override
+        public long applyDiscountMinor(long totalMinor) {
+            return totalMinor;
+        }
+    }
+}
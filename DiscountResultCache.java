@@ -0,0 +1,137 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches discounted cart totals, so rendering the same unchanged cart again costs one lookup.
+ *
+ * Results are keyed on the cart object, its {@link Cart#getVersion() version} and the strategy.
+ * Any change to a cart advances its version, so a cached result is never returned for a cart that changed
+ * since it was computed; stale results are simply never looked up again and age out.
+ * Strategies are compared with {@code equals}, so two equal {@link PercentageDiscount}s or {@link FlatDiscount}s
+ * share results, while strategies without their own {@code equals}, such as lambdas, are matched by identity.
+ * A strategy must not be changed while results computed with it are cached; call {@link #clear()} after changing one.
+ *
+ * The cache holds at most a fixed number of results, evicting the least recently used, and keeps the carts
+ * of the results it holds reachable. It is thread-safe.
+ */
+public final class DiscountResultCache {
+    private final int maxEntries;
+    private final Map<Key, Long> results;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries the number of results kept before the least recently used is evicted
+     * @throws IllegalArgumentException if the bound is not positive
+     */
+    public DiscountResultCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.results = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > DiscountResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the cart total after the strategy's discount, computing it only if the cart changed
+     * since it was last computed with an equal strategy.
+     *
+     * @param cart the cart
+     * @param strategy the discount to apply to the cart total
+     * @return the discounted total in cents
+     */
+    public long discountedTotalMinor(Cart cart, DiscountStrategy strategy) {
+        if (cart == null || strategy == null) {
+            throw new IllegalArgumentException("Cart and strategy cannot be null");
+        }
+        long version = cart.getVersion();
+        Key key = new Key(cart, version, strategy);
+        synchronized (this) {
+            Long cached = results.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        long result = strategy.applyDiscountMinor(cart.calculateTotalMinor());
+        // Another thread may have changed the cart while the total was read; only cache a result known to be current
+        if (cart.getVersion() == version) {
+            synchronized (this) {
+                results.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the cart total after the strategy's discount, see {@link #discountedTotalMinor(Cart, DiscountStrategy)}.
+     *
+     * @param cart the cart
+     * @param strategy the discount to apply to the cart total
+     * @return the discounted total in major units
+     */
+    public double discountedTotal(Cart cart, DiscountStrategy strategy) {
+        return Money.toMajor(discountedTotalMinor(cart, strategy));
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Drops every cached result.
+     */
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiscountResultCache{size=" + results.size() + ", hits=" + hits + ", misses=" + misses + '}';
+    }
+
+    private static final class Key {
+        private final Cart cart;
+        private final long version;
+        private final DiscountStrategy strategy;
+        private final int hash;
+
+        Key(Cart cart, long version, DiscountStrategy strategy) {
+            this.cart = cart;
+            this.version = version;
+            this.strategy = strategy;
+            this.hash = (System.identityHashCode(cart) * 31 + Long.hashCode(version)) * 31 + strategy.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return cart == key.cart && version == key.version && strategy.equals(key.strategy);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -15,6 +15,18 @@ public interface DiscountStrategy {
      */
     double applyDiscount(double totalAmount);
  
+    /**
+     * Applies the discount to a total held in minor units.
+     * The default converts through {@link #applyDiscount(double)} and rounds the result to the nearest cent;
+     * the built-in strategies override it with exact integer arithmetic.
+     * 
+     * @param totalMinor The original total in cents.
+     * @return The total in cents after applying the discount.
+     */
+    default long applyDiscountMinor(long totalMinor) {
+        return Money.ofMajor(applyDiscount(Money.toMajor(totalMinor)));
+    }
+ 
     /**
      * Combines two discount strategies into one. The result of the first discount is passed to the second.
      * 
@@ -22,7 +34,7 @@ public interface DiscountStrategy {
      * @return A combined discount strategy.
      */
     default DiscountStrategy combineWith(DiscountStrategy other) {
-        return totalAmount -> other.applyDiscount(this.applyDiscount(totalAmount));
+        return new DiscountPipeline.Combined(this, other);
     }
  
     /**
@@ -32,10 +44,17 @@ public interface DiscountStrategy {
      * @return A discount strategy with a cap on the discount value.
      */
     default DiscountStrategy withMaxDiscount(double maxDiscount) {
-        return totalAmount -> {
-            double discountedAmount = this.applyDiscount(totalAmount);
-            return Math.max(totalAmount - maxDiscount, discountedAmount);
-        };
+        return new DiscountPipeline.Capped(this, maxDiscount);
+    }
+ 
+    /**
+     * Flattens this strategy and everything composed into it into a single evaluator,
+     * for chains that are applied many times.
+     *
+     * @return a compiled strategy giving the same results as this one
+     */
+    default DiscountStrategy compile() {
+        return DiscountPipeline.compile(this);
     }
  
     /**
@@ -54,7 +73,7 @@ public interface DiscountStrategy {
      * @return A no-discount DiscountStrategy.
      */
     static DiscountStrategy noDiscount() {
-        return totalAmount -> totalAmount;
+        return DiscountPipeline.Identity.INSTANCE;
     }
  
     /**
@@ -64,7 +83,7 @@ public interface DiscountStrategy {
      * @return A percentage-based DiscountStrategy.
      */
     static DiscountStrategy percentageDiscount(double percentage) {
-        return totalAmount -> totalAmount * (1 - percentage / 100);
+        return new DiscountPipeline.Percentage(percentage);
     }
  
     /**
@@ -74,6 +93,6 @@ public interface DiscountStrategy {
      * @return A fixed amount-based DiscountStrategy.
      */
     static DiscountStrategy fixedAmountDiscount(double amount) {
-        return totalAmount -> totalAmount - amount;
+        return new DiscountPipeline.FixedAmount(amount);
     }
 }
@@ -1,8 +1,8 @@
-import java.text.DecimalFormat; // For formatting output to 2 decimal places
 import java.util.Objects; // For validating input and checking null
  
 public class FlatDiscount implements DiscountStrategy {
     private double discountAmount;
+    private long discountMinor; // The same amount in cents, for exact arithmetic
  
     /**
      * Constructor to initialize the flat discount amount.
@@ -16,6 +16,7 @@ public class FlatDiscount implements DiscountStrategy {
             throw new IllegalArgumentException("Discount amount must be positive.");
         }
         this.discountAmount = discountAmount;
+        this.discountMinor = Money.ofMajorSaturating(discountAmount, Money.DEFAULT_ROUNDING);
     }
  
     /**
@@ -31,16 +32,26 @@ public class FlatDiscount implements DiscountStrategy {
         return Math.max(discountedTotal, 0); // Ensures total doesn't go below zero
     }
  
+    /**
+     * Applies the flat discount in exact cents, never going below zero.
+     *
+     * @param totalMinor the total amount before discount, in cents
+     * @return the total amount after the flat discount is applied, in cents
+     */
+    @Override
+    public long applyDiscountMinor(long totalMinor) {
+        return Math.max(totalMinor - discountMinor, 0);
+    }
+
     /**
      * Applies the flat discount and returns the discounted total formatted as a string.
-     * The result is formatted to two decimal places.
+     * The total is rounded to the nearest cent and formatted to two decimal places.
      *
      * @param totalAmount the total amount before discount
      * @return the discounted total formatted as a string with two decimal points
      */
     public String applyDiscountFormatted(double totalAmount) {
-        DecimalFormat df = new DecimalFormat("#.00");
-        return df.format(applyDiscount(totalAmount));
+        return Money.format(applyDiscountMinor(Money.ofMajor(totalAmount)));
     }
  
     /**
@@ -55,6 +66,7 @@ public class FlatDiscount implements DiscountStrategy {
             throw new IllegalArgumentException("Discount amount must be positive.");
         }
         this.discountAmount = newDiscountAmount;
+        this.discountMinor = Money.ofMajorSaturating(newDiscountAmount, Money.DEFAULT_ROUNDING);
     }
  
     /**
@@ -0,0 +1,167 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative long values, such as latencies in nanoseconds or cart sizes,
+ * with a fixed relative precision in the style of HdrHistogram.
+ *
+ * Values below 32 get a bucket each. Above that, every power of two is split into 16 equal buckets, so any
+ * value is counted in a bucket no wider than 1/16 of it and percentiles are accurate to about 6%, from
+ * nanoseconds up to the full range of a long, in under a thousand buckets. Recording a value finds its bucket
+ * with a few shifts and updates a handful of counters; it never locks, and allocates only the first time
+ * threads contend for the total count.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts one value.
+     *
+     * @param value the value; negative values are counted as zero
+     */
+    public void record(long value) {
+        long recorded = Math.max(value, 0);
+        counts.incrementAndGet(bucketOf(recorded));
+        count.increment();
+        sum.add(recorded);
+        long previous = max.get();
+        while (recorded > previous && !max.compareAndSet(previous, recorded)) {
+            previous = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the average of the recorded values.
+     *
+     * @return the mean, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets the value below which the given percentage of recorded values fall, to within the bucket precision.
+     * The result is the upper end of the bucket holding that value, capped at the largest value recorded.
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the value at the percentile, or 0 if nothing was recorded
+     * @throws IllegalArgumentException if the percentile is outside 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds counts kept elsewhere in this histogram's bucket layout, such as by a per-thread recorder.
+     *
+     * @param bucketCounts holds the counts of every bucket, starting at {@code offset}
+     * @param offset the index of the first bucket's count
+     * @param valueSum the sum of the values counted
+     * @param valueMax the largest value counted
+     */
+    void add(AtomicLongArray bucketCounts, int offset, long valueSum, long valueMax) {
+        long added = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = bucketCounts.get(offset + i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+                added += n;
+            }
+        }
+        count.add(added);
+        sum.add(valueSum);
+        long previous = max.get();
+        while (valueMax > previous && !max.compareAndSet(previous, valueMax)) {
+            previous = max.get();
+        }
+    }
+
+    /**
+     * Copies the current counts, for a snapshot that later recordings do not change.
+     * Values recorded while copying may be partly included.
+     *
+     * @return the copy
+     */
+    public Histogram copy() {
+        Histogram copy = new Histogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            copy.counts.set(i, counts.get(i));
+        }
+        copy.count.add(count.sum());
+        copy.sum.add(sum.sum());
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    /**
+     * Discards every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // Values below SUB_BUCKETS index themselves; larger ones by their power of two and top SUB_BUCKET_BITS bits
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long top = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, max=%d", getCount(), getMean(),
+                             getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+}
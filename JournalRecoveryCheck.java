@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Regression check for recovering a journaled cart that holds several lines of products with the same id.
+ *
+ * Each cart is attached to a fresh journal, changed, and then rebuilt from the journal alone; the rebuilt cart
+ * must charge what the live cart charges. Lines in the snapshot, lines added after it, price overrides and removed
+ * lines are all covered, for both an ordinary Cart and a ConcurrentCart. A journal with a small compaction
+ * threshold must also compact itself as it records, so it stays small and still recovers the cart.
+ * The program exits with status 1 if any check fails.
+ *
+ * Usage: java JournalRecoveryCheck
+ */
+public class JournalRecoveryCheck {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("journal-check");
+        int failures = 0;
+        for (Cart cart : new Cart[] {new Cart(), new ConcurrentCart()}) {
+            String kind = cart.getClass().getSimpleName();
+            String basename = dir.resolve(kind).toString();
+            Product first = new Product(1L, "A", 10.0);
+            Product second = new Product(1L, "A", 20.0);
+            cart.addProduct(first);
+            cart.addProduct(second);
+            try (CartJournal journal = CartFileHandler.openJournal(basename, Long.MAX_VALUE)) {
+                journal.attach(cart);
+                cart.setQuantity(second, 3);
+                failures += expect(kind + " snapshot lines", cart, basename, 7_000);
+
+                Product third = new Product(1L, "A", 30.0);
+                cart.addProduct(third, 2);
+                cart.setQuantity(first, 4);
+                cart.setPriceOverride(third, 2_500);
+                failures += expect(kind + " lines added after the snapshot", cart, basename, 15_000);
+
+                cart.removeProduct(second);
+                third.setPrice(40.0);
+                cart.clearPriceOverride(third);
+                failures += expect(kind + " removed and repriced lines", cart, basename, 16_000);
+
+                cart.clear();
+                cart.addProduct(second, 5);
+                failures += expect(kind + " lines after a clear", cart, basename, 10_000);
+                journal.detach(cart);
+            }
+
+            // A small threshold makes the attached journal roll over to new generations as it records
+            String rolling = dir.resolve(kind + "-rolling").toString();
+            try (CartJournal journal = CartFileHandler.openJournal(rolling, 256)) {
+                journal.attach(cart);
+                long generation = journal.getGeneration();
+                Product fourth = new Product(1L, "A", 10.0);
+                cart.addProduct(fourth);
+                cart.setPriceOverride(fourth, 500);
+                for (int quantity = 1; quantity <= 1_000; quantity++) {
+                    cart.setQuantity(second, quantity);
+                }
+                if (journal.getGeneration() <= generation + 1 || journal.getRecordCount() > 100) {
+                    System.out.println(kind + " journal did not roll over: generation " + journal.getGeneration()
+                                       + ", " + journal.getRecordCount() + " records");
+                    failures++;
+                }
+                failures += expect(kind + " lines after rolling over", cart, rolling, 2_000_500);
+                journal.detach(cart);
+            }
+        }
+
+        BenchmarkRunner.report("failures", failures, "");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int expect(String check, Cart live, String basename, long expected) throws IOException {
+        long liveTotal = live.calculateTotalMinor();
+        long recovered = CartFileHandler.recoverCart(basename).calculateTotalMinor();
+        if (liveTotal == expected && recovered == expected) {
+            return 0;
+        }
+        System.out.println(check + ": expected " + expected + ", live cart " + liveTotal + ", recovered " + recovered);
+        return 1;
+    }
+}
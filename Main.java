@@ -14,6 +14,7 @@ public class Main {
      */
     public static void main() {
         CartService cartService = new CartService();
+        cartService.setEventSink(event -> System.out.println(event.describe()));
  
         // Add products to the cart
         cartService.addProduct(new Product(1L, "Laptop", 1200.00));
@@ -28,7 +29,7 @@ public class Main {
         DiscountStrategy discountStrategy = new PercentageDiscount(10); // 10% discount
         double total = cartService.calculateTotal();
         System.out.println("Total before discount: " + total);
-        System.out.println("Total after discount: " + discountStrategy.applyDiscount(total));
+        System.out.println("Total after discount: " + cartService.calculateDiscountedTotal(discountStrategy));
  
         // Save the cart to a file
         String filename = "cart.dat";
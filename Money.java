@@ -0,0 +1,300 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Arithmetic on amounts of money held as a primitive {@code long} count of minor units (cents).
+ *
+ * Sums and differences of minor units are exact, so totals never drift the way repeated double additions do.
+ * Rounding only happens where it is unavoidable, converting from a double or taking a percentage,
+ * and every such method takes an explicit {@link RoundingMode}; the plain overloads use {@link #DEFAULT_ROUNDING}.
+ * Nothing here boxes or allocates, except the fallbacks for converting doubles with more than two decimals and
+ * for taking off percentages with more than two decimals, and {@link #format(long)}, which returns a new String.
+ *
+ * A percentage is taken exactly as it is written in decimal: 12.345% takes off exactly 12.345% of the amount
+ * before the discount is rounded, just as the double arithmetic of a discount strategy rounds only its result.
+ */
+public final class Money {
+    /** The number of decimal places of a minor unit. */
+    public static final int SCALE = 2;
+    /** The number of minor units in one major unit. */
+    public static final long MINOR_PER_MAJOR = 100;
+    /** The rounding applied when no rounding mode is given: to the nearest cent, ties to even. */
+    public static final RoundingMode DEFAULT_ROUNDING = RoundingMode.HALF_EVEN;
+
+    private static final long BASIS_POINTS_PER_WHOLE = 10_000;
+    // floor(x / 10_000) == multiplyHigh(x, DIVIDE_BY_WHOLE) >> 11 for every x >= 0; the JIT does not do this for longs itself
+    private static final long DIVIDE_BY_WHOLE = 0x346DC5D63886594BL;
+    // Doubles below this, scaled to minor units, still have a fractional part to round
+    private static final double MAX_EXACT_SCALED = 1L << 52;
+
+    private Money() {
+    }
+
+    /**
+     * Converts an amount in major units to minor units, rounding to the nearest cent, ties to even.
+     *
+     * @param amount the amount in major units, e.g. 12.99
+     * @return the amount in minor units, e.g. 1299
+     * @throws IllegalArgumentException if the amount is not finite
+     * @throws ArithmeticException if the amount does not fit in a long count of minor units
+     */
+    public static long ofMajor(double amount) {
+        return ofMajor(amount, DEFAULT_ROUNDING);
+    }
+
+    /**
+     * Converts an amount in major units to minor units.
+     * The double is taken as the decimal it prints as, so 1.005 rounds half up to 1.01 even though
+     * the nearest double is slightly below it.
+     *
+     * @param amount the amount in major units
+     * @param rounding how to round amounts with more than two decimals
+     * @return the amount in minor units
+     * @throws IllegalArgumentException if the amount is not finite
+     * @throws ArithmeticException if rounding is needed but the mode is UNNECESSARY,
+     *         or the amount does not fit in a long count of minor units
+     */
+    public static long ofMajor(double amount, RoundingMode rounding) {
+        if (Double.isNaN(amount) || Double.isInfinite(amount)) {
+            throw new IllegalArgumentException("Amount must be a finite number");
+        }
+        double scaled = amount * MINOR_PER_MAJOR;
+        double whole = Math.rint(scaled);
+        // Prices with at most two decimals land within rounding noise of a whole number of cents
+        if (Math.abs(scaled) < MAX_EXACT_SCALED && Math.abs(scaled - whole) <= 2 * Math.ulp(scaled)) {
+            return (long) whole;
+        }
+        return BigDecimal.valueOf(amount).setScale(SCALE, rounding).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts an amount in major units to minor units, clamping amounts beyond the range of a long
+     * instead of failing. Suited to bounds and caps, where an amount larger than any price is meaningful.
+     *
+     * @param amount the amount in major units, possibly infinite
+     * @param rounding how to round amounts with more than two decimals
+     * @return the amount in minor units, or Long.MIN_VALUE or Long.MAX_VALUE if it is out of range
+     * @throws IllegalArgumentException if the amount is NaN
+     */
+    public static long ofMajorSaturating(double amount, RoundingMode rounding) {
+        if (amount >= Long.MAX_VALUE / (double) MINOR_PER_MAJOR) {
+            return Long.MAX_VALUE;
+        }
+        if (amount <= Long.MIN_VALUE / (double) MINOR_PER_MAJOR) {
+            return Long.MIN_VALUE;
+        }
+        return ofMajor(amount, rounding);
+    }
+
+    /**
+     * Subtracts one amount from another, clamping a difference beyond the range of a long instead of wrapping.
+     *
+     * @param amount the amount in minor units
+     * @param subtrahend the amount to subtract in minor units
+     * @return the difference, or Long.MIN_VALUE or Long.MAX_VALUE if it is out of range
+     */
+    public static long subtractSaturating(long amount, long subtrahend) {
+        long difference = amount - subtrahend;
+        // Overflow only when the operands have different signs and the result's sign differs from the minuend's
+        if (((amount ^ subtrahend) & (amount ^ difference)) < 0) {
+            return amount < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return difference;
+    }
+
+    /**
+     * Converts an amount in minor units to the nearest double in major units.
+     *
+     * @param minor the amount in minor units
+     * @return the amount in major units
+     */
+    public static double toMajor(long minor) {
+        return minor / (double) MINOR_PER_MAJOR;
+    }
+
+    /**
+     * Converts a percentage to the nearest whole number of basis points (hundredths of a percent).
+     *
+     * @param percent the percentage, e.g. 12.5
+     * @return the percentage in basis points, e.g. 1250
+     */
+    public static long basisPoints(double percent) {
+        return Math.round(percent * 100);
+    }
+
+    /**
+     * Converts a percentage to basis points if it is a whole number of them, as written in decimal.
+     *
+     * @param percent the percentage, e.g. 12.5
+     * @return the percentage in basis points, e.g. 1250, or -1 if it has more than two decimals, e.g. for 12.345
+     */
+    public static long exactBasisPoints(double percent) {
+        long basisPoints = basisPoints(percent);
+        // Dividing the whole number back is correctly rounded, so it gives the same double only if nothing was lost
+        return basisPoints >= 0 && basisPoints / 100.0 == percent ? basisPoints : -1;
+    }
+
+    /**
+     * Takes a percentage off an amount, rounding to the nearest cent, ties to even.
+     *
+     * @param amount the amount in minor units
+     * @param percent the percentage to take off, exactly as written in decimal
+     * @return the discounted amount in minor units
+     */
+    public static long discountByPercent(long amount, double percent) {
+        return discountByPercent(amount, percent, DEFAULT_ROUNDING);
+    }
+
+    /**
+     * Takes a percentage off an amount. The discount is computed exactly, rounded, then subtracted.
+     * Percentages with at most two decimals take the basis-point path, which does not allocate.
+     *
+     * @param amount the amount in minor units
+     * @param percent the percentage to take off, exactly as written in decimal
+     * @param rounding how to round the discount to whole minor units
+     * @return the discounted amount in minor units
+     * @throws ArithmeticException if the intermediate product overflows a long
+     */
+    public static long discountByPercent(long amount, double percent, RoundingMode rounding) {
+        long basisPoints = exactBasisPoints(percent);
+        if (basisPoints >= 0) {
+            return discountByBasisPoints(amount, basisPoints, rounding);
+        }
+        BigDecimal discount = BigDecimal.valueOf(amount).multiply(BigDecimal.valueOf(percent))
+                                        .movePointLeft(2).setScale(0, rounding);
+        return amount - discount.longValueExact();
+    }
+
+    /**
+     * Takes a number of basis points off an amount. The discount is rounded, then subtracted.
+     *
+     * @param amount the amount in minor units
+     * @param basisPoints the discount in hundredths of a percent
+     * @param rounding how to round the discount to whole minor units
+     * @return the discounted amount in minor units
+     * @throws ArithmeticException if the intermediate product overflows a long
+     */
+    public static long discountByBasisPoints(long amount, long basisPoints, RoundingMode rounding) {
+        return amount - divide(Math.multiplyExact(amount, basisPoints), BASIS_POINTS_PER_WHOLE, rounding);
+    }
+
+    /**
+     * Takes a number of basis points off a range of amounts in an array, in place, rounding each discount half to even.
+     * Gives exactly the results of {@link #discountByBasisPoints(long, long, RoundingMode)} with HALF_EVEN, but as
+     * one tight loop whose division by 10,000 is a multiplication by its reciprocal.
+     *
+     * @param amounts the amounts in minor units, replaced by the discounted amounts
+     * @param from the first index to discount, inclusive
+     * @param to the last index to discount, exclusive
+     * @param basisPoints the discount in hundredths of a percent
+     * @throws ArithmeticException if an intermediate product overflows a long
+     */
+    public static void discountAllByBasisPoints(long[] amounts, int from, int to, long basisPoints) {
+        long limit = basisPoints <= 0 ? 0 : (Long.MAX_VALUE - BASIS_POINTS_PER_WHOLE) / basisPoints;
+        for (int i = from; i < to; i++) {
+            long amount = amounts[i];
+            if (amount < 0 || amount > limit) {
+                amounts[i] = discountByBasisPoints(amount, basisPoints, RoundingMode.HALF_EVEN);
+                continue;
+            }
+            long shifted = amount * basisPoints + BASIS_POINTS_PER_WHOLE / 2;
+            long discount = Math.multiplyHigh(shifted, DIVIDE_BY_WHOLE) >> 11;
+            if (discount * BASIS_POINTS_PER_WHOLE == shifted) {
+                discount &= ~1L; // An exact tie lands on the odd neighbour; step back to the even one
+            }
+            amounts[i] = amount - discount;
+        }
+    }
+
+    /**
+     * Divides two longs, rounding the quotient as BigDecimal would, without allocating.
+     *
+     * @param dividend the dividend
+     * @param divisor the divisor
+     * @param rounding how to round an inexact quotient
+     * @return the rounded quotient
+     * @throws ArithmeticException if the divisor is zero, or rounding is needed but the mode is UNNECESSARY
+     */
+    public static long divide(long dividend, long divisor, RoundingMode rounding) {
+        if (dividend >= 0 && divisor > 0 && dividend <= Long.MAX_VALUE - divisor / 2
+                && (rounding == RoundingMode.HALF_EVEN || rounding == RoundingMode.HALF_UP)) {
+            // Common case for prices: rounding by adding half the divisor avoids the remainder branches
+            long shifted = dividend + divisor / 2;
+            long quotient = shifted / divisor;
+            if (rounding == RoundingMode.HALF_EVEN && quotient * divisor == shifted && (divisor & 1) == 0) {
+                quotient &= ~1L; // An exact tie lands on the odd neighbour; step back to the even one
+            }
+            return quotient;
+        }
+        return divideRemainder(dividend, divisor, rounding);
+    }
+
+    // Kept out of divide() so the common path above stays small enough to inline
+    private static long divideRemainder(long dividend, long divisor, RoundingMode rounding) {
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (remainder == 0) {
+            return quotient;
+        }
+        int sign = (dividend ^ divisor) < 0 ? -1 : 1;
+        boolean awayFromZero;
+        switch (rounding) {
+            case UP:
+                awayFromZero = true;
+                break;
+            case DOWN:
+                awayFromZero = false;
+                break;
+            case CEILING:
+                awayFromZero = sign > 0;
+                break;
+            case FLOOR:
+                awayFromZero = sign < 0;
+                break;
+            case UNNECESSARY:
+                throw new ArithmeticException("Rounding necessary");
+            default:
+                // Compare the remainder with half the divisor without overflowing
+                long absRemainder = Math.abs(remainder);
+                int half = Long.compare(absRemainder, Math.abs(divisor) - absRemainder);
+                if (half != 0) {
+                    awayFromZero = half > 0;
+                } else if (rounding == RoundingMode.HALF_EVEN) {
+                    awayFromZero = (quotient & 1) != 0;
+                } else {
+                    awayFromZero = rounding == RoundingMode.HALF_UP;
+                }
+                break;
+        }
+        return awayFromZero ? quotient + sign : quotient;
+    }
+
+    /**
+     * Appends an amount as a plain decimal with two places, e.g. {@code 1299} as {@code 12.99}.
+     * Nothing is allocated beyond growing the builder.
+     *
+     * @param text the builder to append to
+     * @param minor the amount in minor units
+     * @return the builder
+     */
+    public static StringBuilder appendTo(StringBuilder text, long minor) {
+        long whole = minor / MINOR_PER_MAJOR;
+        int cents = (int) Math.abs(minor % MINOR_PER_MAJOR);
+        if (minor < 0 && whole == 0) {
+            text.append('-');
+        }
+        return text.append(whole).append('.')
+                   .append((char) ('0' + cents / 10))
+                   .append((char) ('0' + cents % 10));
+    }
+
+    /**
+     * Formats an amount as a plain decimal with two places, e.g. {@code 1299} as {@code "12.99"}.
+     *
+     * @param minor the amount in minor units
+     * @return the formatted amount
+     */
+    public static String format(long minor) {
+        return appendTo(new StringBuilder(24), minor).toString();
+    }
+}
@@ -0,0 +1,98 @@
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Compares cart totals and price formatting in long minor units against the double arithmetic
+ * and DecimalFormat they replaced.
+ *
+ * Usage: java MoneyBenchmark [prices]
+ */
+public class MoneyBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Random random = new Random(7);
+        double[] prices = new double[count];
+        long[] pricesMinor = new long[count];
+        for (int i = 0; i < count; i++) {
+            pricesMinor[i] = 1 + random.nextInt(500_000);
+            prices[i] = Money.toMajor(pricesMinor[i]);
+        }
+        int rounds = Math.max(50, 20_000_000 / count);
+
+        double doubleTotal = BenchmarkRunner.nanosPerOperation(rounds, rounds, count, () -> {
+            double total = 0;
+            for (double price : prices) {
+                total += price;
+            }
+            return (long) total;
+        });
+        double minorTotal = BenchmarkRunner.nanosPerOperation(rounds, rounds, count, () -> {
+            long total = 0;
+            for (long price : pricesMinor) {
+                total += price;
+            }
+            return total;
+        });
+
+        PercentageDiscount discount = new PercentageDiscount(12.5);
+        double doubleDiscount = BenchmarkRunner.nanosPerOperation(rounds, rounds, count, () -> {
+            double total = 0;
+            for (double price : prices) {
+                total += discount.applyDiscount(price);
+            }
+            return (long) total;
+        });
+        double minorDiscount = BenchmarkRunner.nanosPerOperation(rounds, rounds, count, () -> {
+            long total = 0;
+            for (long price : pricesMinor) {
+                total += discount.applyDiscountMinor(price);
+            }
+            return total;
+        });
+
+        int formatted = Math.min(count, 10_000);
+        int formatRounds = Math.max(20, 2_000_000 / formatted);
+        double decimalFormatPerCall = BenchmarkRunner.nanosPerOperation(formatRounds, formatRounds, formatted, () -> {
+            long length = 0;
+            for (int i = 0; i < formatted; i++) {
+                length += new DecimalFormat("#.00").format(prices[i]).length();
+            }
+            return length;
+        });
+        DecimalFormat shared = new DecimalFormat("#.00");
+        double decimalFormatShared = BenchmarkRunner.nanosPerOperation(formatRounds, formatRounds, formatted, () -> {
+            long length = 0;
+            for (int i = 0; i < formatted; i++) {
+                length += shared.format(prices[i]).length();
+            }
+            return length;
+        });
+        double moneyFormat = BenchmarkRunner.nanosPerOperation(formatRounds, formatRounds, formatted, () -> {
+            long length = 0;
+            for (int i = 0; i < formatted; i++) {
+                length += Money.format(pricesMinor[i]).length();
+            }
+            return length;
+        });
+        StringBuilder text = new StringBuilder(32);
+        double moneyAppend = BenchmarkRunner.nanosPerOperation(formatRounds, formatRounds, formatted, () -> {
+            long length = 0;
+            for (int i = 0; i < formatted; i++) {
+                text.setLength(0);
+                length += Money.appendTo(text, pricesMinor[i]).length();
+            }
+            return length;
+        });
+
+        System.out.println(count + " prices");
+        BenchmarkRunner.report("  double total", doubleTotal, "ns/price");
+        BenchmarkRunner.report("  minor-unit total", minorTotal, "ns/price");
+        BenchmarkRunner.report("  double percentage discount", doubleDiscount, "ns/price");
+        BenchmarkRunner.report("  minor-unit percentage discount", minorDiscount, "ns/price");
+        BenchmarkRunner.report("  new DecimalFormat per call", decimalFormatPerCall, "ns/price");
+        BenchmarkRunner.report("  shared DecimalFormat", decimalFormatShared, "ns/price");
+        BenchmarkRunner.report("  Money.format", moneyFormat, "ns/price");
+        BenchmarkRunner.report("  Money.appendTo, reused builder", moneyAppend, "ns/price");
+    }
+}
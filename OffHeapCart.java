@@ -0,0 +1,655 @@
+import java.io.ObjectStreamException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
+import java.math.RoundingMode;
+
+/**
+ * A Cart whose lines live off-heap in an {@link OffHeapCartStore}, for very large in-memory cart populations.
+ *
+ * The cart itself is one small heap object holding the running totals and the address of its block; the lines,
+ * in insertion order, sit in the store's direct memory and are never traced by the garbage collector.
+ * It holds only products of the store's catalog and answers with the catalog's shared product instances.
+ * Lookups scan the block, which suits the small carts such populations are made of; large carts are better
+ * kept in an ordinary Cart, whose id and price indexes make lookups independent of the cart size.
+ *
+ * An empty cart holds no block. A cart that is dropped while not empty has its block returned to the store by a
+ * {@link Cleaner} once the garbage collector finds the cart unreachable; call {@link #clear()} to return it at once.
+ * When serialized, the cart is written as an ordinary Cart with the same lines.
+ */
+public class OffHeapCart extends Cart {
+    private static final long serialVersionUID = 1L;
+    private static final long NO_OVERRIDE = -1;
+    // One daemon thread returns the blocks of every store's dropped carts
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final transient OffHeapCartStore store;
+    private final transient ProductCatalog catalog;
+    private transient ByteBuffer slab;
+    private transient long address;
+    private transient int base;
+    private transient int sizeClass = -1;
+    private transient int lineCount;
+    private transient int unitCount;
+    private transient long totalMinor;
+    private final transient Block block;
+    private transient Cleaner.Cleanable cleanable;
+
+    OffHeapCart(OffHeapCartStore store) {
+        super(true);
+        this.store = store;
+        this.catalog = store.getCatalog();
+        this.block = new Block(store);
+    }
+
+    @Override
+    public List<Product> getProducts() {
+        List<Product> list = new ArrayList<>(unitCount);
+        forEachProduct(list::add);
+        return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public List<CartLine> getLines() {
+        List<CartLine> list = new ArrayList<>(lineCount);
+        for (int line = 0; line < lineCount; line++) {
+            list.add(new CartLine(productAt(line), quantityAt(line), priceAt(line)));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public void forEachProduct(Consumer<? super Product> action) {
+        for (int line = 0; line < lineCount; line++) {
+            Product product = productAt(line);
+            for (int unit = quantityAt(line); unit > 0; unit--) {
+                action.accept(product);
+            }
+        }
+    }
+
+    @Override
+    public void forEachLine(ObjIntConsumer<? super Product> action) {
+        for (int line = 0; line < lineCount; line++) {
+            action.accept(productAt(line), quantityAt(line));
+        }
+    }
+
+    /**
+     * Adds units of a catalog product to the cart.
+     *
+     * @param product the product to add, which must be in the store's catalog
+     * @param quantity the number of units to add
+     * @throws IllegalArgumentException if the product or its ID is null, it is not in the catalog,
+     *         or the quantity is not positive
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units
+     * @throws IllegalStateException if the cart would outgrow one slab of the store
+     */
+    @Override
+    public void addProduct(Product product, int quantity) {
+        if (quantity <= 0) {
+            requireProduct(product);
+            throw new IllegalArgumentException("Quantity must be positive");
+        }
+        int item = requireItem(product);
+        int line = find(item);
+        if (line < 0) {
+            appendLine(item, quantity);
+        } else {
+            changeQuantity(line, Math.addExact(quantityAt(line), quantity));
+        }
+    }
+
+    /**
+     * Adds one unit of each of several catalog products, validating them all before the cart changes
+     * and growing its block at most once.
+     *
+     * @param added the products to add, which must all be in the store's catalog
+     * @return the number of units added
+     * @throws IllegalArgumentException if the collection, a product or its ID is null, or a product is not
+     *         in the catalog; nothing is added then
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units
+     * @throws IllegalStateException if the cart would outgrow one slab of the store
+     */
+    @Override
+    public int addAll(Collection<? extends Product> added) {
+        if (added == null) {
+            throw new IllegalArgumentException("Products cannot be null");
+        }
+        Staged staged = new Staged(added.size());
+        for (Product product : added) {
+            int item = requireItem(product);
+            staged.add(item, 1, NO_OVERRIDE);
+        }
+        return addStaged(staged);
+    }
+
+    /**
+     * Adds several lines of catalog products, validating them all before the cart changes
+     * and growing its block at most once. Lines are merged as in {@link Cart#addLines(Collection)}.
+     *
+     * @param lines the lines to add, whose products must all be in the store's catalog
+     * @return the number of units added
+     * @throws IllegalArgumentException if the collection, a line or a product ID is null, or a product is not
+     *         in the catalog; nothing is added then
+     * @throws ArithmeticException if the cart would hold more than Integer.MAX_VALUE units
+     * @throws IllegalStateException if the cart would outgrow one slab of the store
+     */
+    @Override
+    public int addLines(Collection<CartLine> lines) {
+        return addStaged(stageLines(lines));
+    }
+
+    /**
+     * Replaces the cart's lines, validating the new lines, and that they fit in one slab, before the cart
+     * is cleared.
+     *
+     * @param lines the lines the cart should hold, whose products must all be in the store's catalog
+     * @throws IllegalArgumentException if the collection, a line or a product ID is null, or a product is not
+     *         in the catalog; the cart is unchanged then
+     * @throws ArithmeticException if the lines hold more than Integer.MAX_VALUE units; the cart is unchanged then
+     * @throws IllegalStateException if the lines do not fit in one slab; the cart is unchanged then
+     */
+    @Override
+    public void replaceLines(Collection<CartLine> lines) {
+        Staged staged = stageLines(lines);
+        if (staged.units > Integer.MAX_VALUE) {
+            throw new ArithmeticException("integer overflow");
+        }
+        store.sizeClassFor(staged.size);
+        clear();
+        addStaged(staged);
+    }
+
+    @Override
+    public void setQuantity(Product product, int quantity) {
+        if (quantity < 0) {
+            requireProduct(product);
+            throw new IllegalArgumentException("Quantity cannot be negative");
+        }
+        int item = requireItem(product);
+        int line = find(item);
+        if (line < 0) {
+            if (quantity > 0) {
+                appendLine(item, quantity);
+            }
+        } else if (quantity == 0) {
+            removeLine(line);
+        } else {
+            changeQuantity(line, quantity);
+        }
+    }
+
+    @Override
+    public int decrement(Product product) {
+        return removeUnit(requireLine(product));
+    }
+
+    @Override
+    public int getQuantity(Product product) {
+        int line = lineOf(product);
+        return line < 0 ? 0 : quantityAt(line);
+    }
+
+    @Override
+    public void removeProduct(Product product) {
+        decrement(product);
+    }
+
+    @Override
+    public Optional<Product> removeProductById(Long id) {
+        int line = id == null ? -1 : find(catalog.indexOf(id));
+        if (line < 0) {
+            return Optional.empty();
+        }
+        Product product = productAt(line);
+        removeUnit(line);
+        return Optional.of(product);
+    }
+
+    @Override
+    public int removeAllById(Collection<Long> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("IDs cannot be null");
+        }
+        int[] removed = new int[1];
+        inBatch(() -> {
+            for (Long id : ids) {
+                int line = id == null ? -1 : find(catalog.indexOf(id));
+                if (line >= 0) {
+                    removed[0] += quantityAt(line);
+                    removeLine(line);
+                }
+            }
+        });
+        return removed[0];
+    }
+
+    @Override
+    public Optional<Product> findProductById(Long id) {
+        int line = id == null ? -1 : find(catalog.indexOf(id));
+        return line < 0 ? Optional.empty() : Optional.of(productAt(line));
+    }
+
+    @Override
+    public long calculateTotalMinor() {
+        return totalMinor;
+    }
+
+    @Override
+    public Optional<Product> getMostExpensiveProduct() {
+        int best = -1;
+        for (int line = 0; line < lineCount; line++) {
+            if (best < 0 || priceAt(line) > priceAt(best)) {
+                best = line;
+            }
+        }
+        return best < 0 ? Optional.empty() : Optional.of(productAt(best));
+    }
+
+    @Override
+    public Optional<Product> getCheapestProduct() {
+        int best = -1;
+        for (int line = 0; line < lineCount; line++) {
+            if (best < 0 || priceAt(line) < priceAt(best)) {
+                best = line;
+            }
+        }
+        return best < 0 ? Optional.empty() : Optional.of(productAt(best));
+    }
+
+    @Override
+    public List<Product> getProductsBelowPrice(double price) {
+        long bound = Money.ofMajorSaturating(price, RoundingMode.CEILING);
+        return bound == Long.MIN_VALUE ? new ArrayList<>() : pricedBetween(Long.MIN_VALUE, bound - 1);
+    }
+
+    @Override
+    public List<Product> getProductsAbovePrice(double price) {
+        long bound = Money.ofMajorSaturating(price, RoundingMode.FLOOR);
+        return bound == Long.MAX_VALUE ? new ArrayList<>() : pricedBetween(bound + 1, Long.MAX_VALUE);
+    }
+
+    @Override
+    public List<Product> getProductsBetweenPrices(double minPrice, double maxPrice) {
+        if (Double.compare(minPrice, maxPrice) > 0) {
+            throw new IllegalArgumentException("Minimum price cannot exceed maximum price");
+        }
+        return pricedBetween(Money.ofMajorSaturating(minPrice, RoundingMode.CEILING),
+                             Money.ofMajorSaturating(maxPrice, RoundingMode.FLOOR));
+    }
+
+    @Override
+    public Stream<Product> streamProductsBelowPrice(double price) {
+        return getProductsBelowPrice(price).stream();
+    }
+
+    @Override
+    public Stream<Product> streamProductsAbovePrice(double price) {
+        return getProductsAbovePrice(price).stream();
+    }
+
+    @Override
+    public Stream<Product> streamProductsBetweenPrices(double minPrice, double maxPrice) {
+        return getProductsBetweenPrices(minPrice, maxPrice).stream();
+    }
+
+    /**
+     * Applies a discount to every line through its price override; catalog products are never changed.
+     *
+     * @param discountRate discount rate in percentage (0-100)
+     * @throws IllegalArgumentException if the rate is outside 0-100; nothing is discounted then
+     */
+    @Override
+    public void applyDiscountToAll(double discountRate) {
+        requireRate(discountRate);
+        for (int line = 0; line < lineCount; line++) {
+            overridePrice(line, Money.discountByPercent(priceAt(line), discountRate));
+        }
+    }
+
+    @Override
+    public void applyLineDiscount(Product product, double discountRate) {
+        requireRate(discountRate);
+        int line = requireLine(product);
+        overridePrice(line, Money.discountByPercent(priceAt(line), discountRate));
+    }
+
+    @Override
+    public void setPriceOverride(Product product, long priceMinor) {
+        if (priceMinor < 0) {
+            throw new IllegalArgumentException("Price cannot be negative");
+        }
+        overridePrice(requireLine(product), priceMinor);
+    }
+
+    @Override
+    public void clearPriceOverride(Product product) {
+        overridePrice(requireLine(product), NO_OVERRIDE);
+    }
+
+    @Override
+    public boolean hasPriceOverride(Product product) {
+        int line = lineOf(product);
+        return line >= 0 && slab.getLong(position(line) + OffHeapCartStore.PRICE_OFFSET) != NO_OVERRIDE;
+    }
+
+    @Override
+    public long getUnitPriceMinor(Product product) {
+        return priceAt(requireLine(product));
+    }
+
+    /**
+     * Empties the cart and returns its block to the store.
+     */
+    @Override
+    public void clear() {
+        release();
+        fireCartCleared();
+    }
+
+    @Override
+    public int getProductCount() {
+        return unitCount;
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    private List<Product> pricedBetween(long min, long max) {
+        List<Integer> matches = new ArrayList<>();
+        for (int line = 0; line < lineCount; line++) {
+            long price = priceAt(line);
+            if (price >= min && price <= max) {
+                matches.add(line);
+            }
+        }
+        // Stable, so lines of equal price keep their insertion order
+        matches.sort(Comparator.comparingLong(this::priceAt));
+        List<Product> list = new ArrayList<>(matches.size());
+        for (int line : matches) {
+            Product product = productAt(line);
+            for (int unit = quantityAt(line); unit > 0; unit--) {
+                list.add(product);
+            }
+        }
+        return list;
+    }
+
+    private int requireItem(Product product) {
+        requireProduct(product);
+        int item = catalog.indexOf(product.getId());
+        if (item < 0 || !catalog.productAt(item).equals(product)) {
+            throw new IllegalArgumentException("Product " + product.getId() + " is not in the catalog");
+        }
+        return item;
+    }
+
+    private int lineOf(Product product) {
+        if (product == null || product.getId() == null) {
+            return -1;
+        }
+        int item = catalog.indexOf(product.getId());
+        return item < 0 || !catalog.productAt(item).equals(product) ? -1 : find(item);
+    }
+
+    private int requireLine(Product product) {
+        int line = lineOf(product);
+        if (line < 0) {
+            throw new IllegalArgumentException("Product is not in the cart");
+        }
+        return line;
+    }
+
+    private int find(int item) {
+        if (item < 0) {
+            return -1;
+        }
+        for (int line = 0; line < lineCount; line++) {
+            if (slab.getInt(position(line) + OffHeapCartStore.ITEM_OFFSET) == item) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    private int position(int line) {
+        return base + line * OffHeapCartStore.LINE_BYTES;
+    }
+
+    private Product productAt(int line) {
+        return catalog.productAt(slab.getInt(position(line) + OffHeapCartStore.ITEM_OFFSET));
+    }
+
+    private int quantityAt(int line) {
+        return slab.getInt(position(line) + OffHeapCartStore.QUANTITY_OFFSET);
+    }
+
+    private long priceAt(int line) {
+        long override = slab.getLong(position(line) + OffHeapCartStore.PRICE_OFFSET);
+        return override == NO_OVERRIDE
+               ? catalog.priceMinorAt(slab.getInt(position(line) + OffHeapCartStore.ITEM_OFFSET))
+               : override;
+    }
+
+    private void appendLine(int item, int quantity) {
+        appendLine(item, quantity, NO_OVERRIDE);
+    }
+
+    private void appendLine(int item, int quantity, long override) {
+        int newUnits = Math.addExact(unitCount, quantity);
+        ensureCapacity(lineCount + 1);
+        int position = position(lineCount);
+        slab.putInt(position + OffHeapCartStore.ITEM_OFFSET, item);
+        slab.putInt(position + OffHeapCartStore.QUANTITY_OFFSET, quantity);
+        slab.putLong(position + OffHeapCartStore.PRICE_OFFSET, override);
+        lineCount++;
+        unitCount = newUnits;
+        long price = priceAt(lineCount - 1);
+        totalMinor += price * quantity;
+        fireLineChanged(catalog.productAt(item), quantity, price);
+    }
+
+    // Every check, and the one growth of the block, come before the first change
+    private int addStaged(Staged staged) {
+        if (unitCount + staged.units > Integer.MAX_VALUE) {
+            throw new ArithmeticException("integer overflow");
+        }
+        int newLines = 0;
+        int[] lines = new int[staged.size];
+        for (int i = 0; i < staged.size; i++) {
+            lines[i] = find(staged.items[i]);
+            if (lines[i] < 0) {
+                newLines++;
+            }
+        }
+        if (newLines > 0) {
+            ensureCapacity(lineCount + newLines);
+        }
+        inBatch(() -> {
+            for (int i = 0; i < staged.size; i++) {
+                if (lines[i] < 0) {
+                    appendLine(staged.items[i], staged.quantities[i], staged.overrides[i]);
+                } else {
+                    changeQuantity(lines[i], quantityAt(lines[i]) + staged.quantities[i]);
+                }
+            }
+        });
+        return (int) staged.units;
+    }
+
+    private Staged stageLines(Collection<CartLine> lines) {
+        if (lines == null) {
+            throw new IllegalArgumentException("Lines cannot be null");
+        }
+        Staged staged = new Staged(lines.size());
+        for (CartLine line : lines) {
+            if (line == null) {
+                throw new IllegalArgumentException("Line cannot be null");
+            }
+            int item = requireItem(line.getProduct());
+            long price = line.getUnitPriceMinor();
+            staged.add(item, line.getQuantity(), price == catalog.priceMinorAt(item) ? NO_OVERRIDE : price);
+        }
+        return staged;
+    }
+
+    private void changeQuantity(int line, int quantity) {
+        int old = quantityAt(line);
+        unitCount = Math.addExact(unitCount, quantity - old);
+        totalMinor += priceAt(line) * (quantity - old);
+        slab.putInt(position(line) + OffHeapCartStore.QUANTITY_OFFSET, quantity);
+        fireLineChanged(productAt(line), quantity, priceAt(line));
+    }
+
+    private int removeUnit(int line) {
+        int remaining = quantityAt(line) - 1;
+        if (remaining == 0) {
+            removeLine(line);
+        } else {
+            changeQuantity(line, remaining);
+        }
+        return remaining;
+    }
+
+    private void removeLine(int line) {
+        Product product = productAt(line);
+        long price = priceAt(line);
+        unitCount -= quantityAt(line);
+        totalMinor -= price * quantityAt(line);
+        // Shift the later lines down one place to keep insertion order
+        for (int from = position(line + 1), end = position(lineCount); from < end; from += 8) {
+            slab.putLong(from - OffHeapCartStore.LINE_BYTES, slab.getLong(from));
+        }
+        if (--lineCount == 0) {
+            release();
+        }
+        fireLineChanged(product, 0, price);
+    }
+
+    private void release() {
+        if (sizeClass >= 0) {
+            block.hold(0, -1);
+            store.free(address, sizeClass);
+            slab = null;
+            sizeClass = -1;
+        }
+        lineCount = 0;
+        unitCount = 0;
+        totalMinor = 0;
+    }
+
+    // A negative price clears the override
+    private void overridePrice(int line, long priceMinor) {
+        long oldPrice = priceAt(line);
+        slab.putLong(position(line) + OffHeapCartStore.PRICE_OFFSET, priceMinor < 0 ? NO_OVERRIDE : priceMinor);
+        totalMinor += (priceAt(line) - oldPrice) * quantityAt(line);
+        fireLineChanged(productAt(line), quantityAt(line), priceAt(line));
+    }
+
+    private void ensureCapacity(int lines) {
+        if (sizeClass >= 0 && lines <= OffHeapCartStore.linesOf(sizeClass)) {
+            return;
+        }
+        int newClass = store.sizeClassFor(lines);
+        long newAddress = store.allocate(newClass);
+        ByteBuffer newSlab = store.slab(newAddress);
+        int newBase = OffHeapCartStore.offset(newAddress);
+        // The cleaner must never see a block already returned, so it is pointed at the new one first
+        block.hold(newAddress, newClass);
+        if (cleanable == null) {
+            cleanable = CLEANER.register(this, block);
+        }
+        if (sizeClass >= 0) {
+            newSlab.put(newBase, slab, base, lineCount * OffHeapCartStore.LINE_BYTES);
+            store.free(address, sizeClass);
+        }
+        slab = newSlab;
+        address = newAddress;
+        base = newBase;
+        sizeClass = newClass;
+    }
+
+    /**
+     * Serializes the cart as an ordinary Cart holding the same lines, since the store cannot be written.
+     *
+     * @return the replacement cart
+     * @throws ObjectStreamException never; declared for serialization
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        Cart copy = new Cart();
+        for (int line = 0; line < lineCount; line++) {
+            Product product = productAt(line);
+            copy.addProduct(product, quantityAt(line));
+            if (slab.getLong(position(line) + OffHeapCartStore.PRICE_OFFSET) != NO_OVERRIDE) {
+                copy.setPriceOverride(product, priceAt(line));
+            }
+        }
+        return copy;
+    }
+
+    // The block a cart holds, returned to the store by the cleaner when the cart is collected; must not refer to it
+    private static final class Block implements Runnable {
+        private final OffHeapCartStore store;
+        private volatile long address;
+        private volatile int sizeClass = -1;
+
+        Block(OffHeapCartStore store) {
+            this.store = store;
+        }
+
+        void hold(long address, int sizeClass) {
+            this.address = address;
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public void run() {
+            if (sizeClass >= 0) {
+                store.free(address, sizeClass);
+            }
+        }
+    }
+
+    // Catalog items to add, merged by item in the order first listed
+    private static final class Staged {
+        final Map<Integer, Integer> positions = new HashMap<>();
+        final int[] items;
+        final int[] quantities;
+        final long[] overrides;
+        int size;
+        long units;
+
+        Staged(int capacity) {
+            items = new int[capacity];
+            quantities = new int[capacity];
+            overrides = new long[capacity];
+        }
+
+        void add(int item, int quantity, long override) {
+            Integer position = positions.get(item);
+            if (position == null) {
+                positions.put(item, size);
+                items[size] = item;
+                quantities[size] = quantity;
+                overrides[size] = override;
+                size++;
+            } else {
+                quantities[position] = Math.addExact(quantities[position], quantity);
+            }
+            units += quantity;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares a large population of heap Carts with the same population of OffHeapCarts,
+ * both holding shared catalog products: heap footprint, the pause of a full collection with the population live,
+ * and throughput and collector time under a mix of adds, removals, lookups and totals.
+ *
+ * Usage: java -Xmx4g OffHeapCartBenchmark [carts] [linesPerCart] [operations]
+ */
+public class OffHeapCartBenchmark {
+
+    public static void main(String[] args) {
+        int carts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int linesPerCart = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 20_000_000;
+
+        ProductCatalog.Builder builder = ProductCatalog.builder();
+        for (int i = 0; i < 50_000; i++) {
+            builder.addMinorUnits(i, "Catalog product number " + i, 100 + i % 10_000, "category-" + i % 40);
+        }
+        ProductCatalog catalog = builder.build();
+        System.out.println(carts + " carts of " + linesPerCart + " lines, " + operations + " operations");
+
+        long heapTotal = run("heap Cart", carts, linesPerCart, operations, catalog, Cart::new);
+        OffHeapCartStore store = new OffHeapCartStore(catalog);
+        long offHeapTotal = run("OffHeapCart", carts, linesPerCart, operations, catalog, store::newCart);
+        BenchmarkRunner.report("  OffHeapCart direct memory reserved", store.getReservedBytes() / 1_048_576.0, "MiB");
+        if (heapTotal != offHeapTotal) {
+            throw new IllegalStateException("Off-heap carts total " + offHeapTotal + " instead of " + heapTotal);
+        }
+    }
+
+    private static long run(String label, int count, int linesPerCart, int operations, ProductCatalog catalog,
+                            Supplier<Cart> factory) {
+        long baseline = BenchmarkRunner.usedHeapAfterGc();
+        Random random = new Random(5);
+        long start = System.nanoTime();
+        Cart[] carts = new Cart[count];
+        for (int c = 0; c < count; c++) {
+            Cart cart = factory.get();
+            for (int l = 0; l < linesPerCart; l++) {
+                cart.addProduct(catalog.productAt(random.nextInt(catalog.size())), 1 + random.nextInt(2));
+            }
+            carts[c] = cart;
+        }
+        double fillNanos = (System.nanoTime() - start) / (double) count;
+        long heap = BenchmarkRunner.usedHeapAfterGc() - baseline;
+
+        long pauseStart = System.nanoTime();
+        System.gc();
+        double fullGcMillis = (System.nanoTime() - pauseStart) / 1e6;
+
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        start = System.nanoTime();
+        long sink = 0;
+        for (int op = 0; op < operations; op++) {
+            Cart cart = carts[random.nextInt(count)];
+            Product product = catalog.productAt(random.nextInt(catalog.size()));
+            switch (op & 3) {
+                case 0:
+                    cart.addProduct(product);
+                    break;
+                case 1:
+                    sink += cart.removeProductById(cart.getCheapestProduct().map(Product::getId).orElse(-1L))
+                                .isPresent() ? 1 : 0;
+                    break;
+                case 2:
+                    sink += cart.findProductById(product.getId()).isPresent() ? 1 : 0;
+                    break;
+                default:
+                    sink += cart.calculateTotalMinor() + cart.getProductCount();
+                    break;
+            }
+        }
+        double opsPerMilli = operations / ((System.nanoTime() - start) / 1e6);
+        long gcCount = gcCount() - gcCountBefore;
+        long gcTime = gcMillis() - gcMillisBefore;
+        BenchmarkRunner.consume(sink);
+
+        long total = 0;
+        for (Cart cart : carts) {
+            total += cart.calculateTotalMinor();
+        }
+        System.out.println(label);
+        BenchmarkRunner.report("  fill", fillNanos, "ns/cart");
+        BenchmarkRunner.report("  heap", heap / (double) count, "bytes/cart");
+        BenchmarkRunner.report("  full collection with carts live", fullGcMillis, "ms");
+        BenchmarkRunner.report("  mixed operations", opsPerMilli, "ops/ms");
+        BenchmarkRunner.report("  collections during operations", gcCount, "");
+        BenchmarkRunner.report("  collector time during operations", gcTime, "ms");
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Off-heap storage for the lines of a large population of carts over one ProductCatalog.
+ *
+ * Lines live in direct ByteBuffer slabs rather than in heap objects, so millions of carts add almost nothing
+ * for the garbage collector to trace: each {@link OffHeapCart} is a single small heap object pointing at its block.
+ * A line takes {@link #LINE_BYTES} bytes: the catalog item index, the quantity and the price override in cents
+ * (negative when the line charges the catalog price).
+ *
+ * Blocks come in power-of-two size classes from four lines up to a whole slab. Freed blocks go onto a free list
+ * per size class and are reused before new slab space is carved out; slabs themselves are never returned.
+ * Allocation and freeing are synchronized, so carts of one store may be used from different threads,
+ * although each cart, like Cart, is not itself thread-safe.
+ */
+public final class OffHeapCartStore {
+    /** The size of one stored line in bytes. */
+    public static final int LINE_BYTES = 16;
+    static final int ITEM_OFFSET = 0;
+    static final int QUANTITY_OFFSET = 4;
+    static final int PRICE_OFFSET = 8;
+
+    private static final int MIN_BLOCK_LINES = 4;
+    private static final int DEFAULT_SLAB_BYTES = 4 << 20;
+    private static final long NONE = -1;
+
+    private final ProductCatalog catalog;
+    private final int slabBytes;
+    private final int maxSizeClass;
+    private final long[] freeHeads;
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    private int slabCount;
+    private int bumpOffset;
+    private long allocatedBytes;
+
+    /**
+     * Creates a store with 4 MiB slabs.
+     *
+     * @param catalog the catalog whose products the carts hold
+     */
+    public OffHeapCartStore(ProductCatalog catalog) {
+        this(catalog, DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param catalog the catalog whose products the carts hold
+     * @param slabBytes the size of each direct buffer slab, a power of two that also bounds the size of one cart
+     * @throws IllegalArgumentException if the catalog is null or the slab size is not a power of two of at least 4 KiB
+     */
+    public OffHeapCartStore(ProductCatalog catalog, int slabBytes) {
+        if (catalog == null) {
+            throw new IllegalArgumentException("Catalog cannot be null");
+        }
+        if (slabBytes < 4096 || Integer.bitCount(slabBytes) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least 4096 bytes");
+        }
+        this.catalog = catalog;
+        this.slabBytes = slabBytes;
+        this.maxSizeClass = Integer.numberOfTrailingZeros(slabBytes / (MIN_BLOCK_LINES * LINE_BYTES));
+        this.freeHeads = new long[maxSizeClass + 1];
+        Arrays.fill(freeHeads, NONE);
+    }
+
+    /**
+     * Creates an empty cart stored in this store.
+     *
+     * @return the new cart
+     */
+    public OffHeapCart newCart() {
+        return new OffHeapCart(this);
+    }
+
+    public ProductCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Gets the off-heap memory reserved by the slabs, whether or not it is in use.
+     *
+     * @return the reserved bytes
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabCount * slabBytes;
+    }
+
+    /**
+     * Gets the off-heap memory held by the blocks of live carts.
+     *
+     * @return the allocated bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Gets the number of lines a block of the given size class holds.
+     *
+     * @param sizeClass the size class
+     * @return the block capacity in lines
+     */
+    static int linesOf(int sizeClass) {
+        return MIN_BLOCK_LINES << sizeClass;
+    }
+
+    /**
+     * Gets the smallest size class whose blocks hold the given number of lines.
+     *
+     * @param lines the number of lines needed
+     * @return the size class
+     * @throws IllegalStateException if a cart of that many lines does not fit in one slab
+     */
+    int sizeClassFor(int lines) {
+        int sizeClass = 0;
+        while (linesOf(sizeClass) < lines) {
+            if (++sizeClass > maxSizeClass) {
+                throw new IllegalStateException("A cart of " + lines + " lines does not fit in one slab");
+            }
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Allocates a block, reusing a freed one of the same size class when there is one.
+     *
+     * @param sizeClass the size class of the block
+     * @return the block address: the slab number in the high half, the byte offset in the low half
+     */
+    synchronized long allocate(int sizeClass) {
+        int bytes = linesOf(sizeClass) * LINE_BYTES;
+        allocatedBytes += bytes;
+        long address = freeHeads[sizeClass];
+        if (address != NONE) {
+            // A free block keeps the address of the next free block in its first eight bytes
+            freeHeads[sizeClass] = slab(address).getLong(offset(address));
+            return address;
+        }
+        if (slabCount == 0 || bumpOffset + bytes > slabBytes) {
+            if (slabCount == slabs.length) {
+                slabs = Arrays.copyOf(slabs, Math.max(4, slabCount * 2));
+            }
+            slabs[slabCount++] = ByteBuffer.allocateDirect(slabBytes);
+            bumpOffset = 0;
+        }
+        address = ((long) (slabCount - 1) << 32) | bumpOffset;
+        bumpOffset += bytes;
+        return address;
+    }
+
+    /**
+     * Returns a block to the free list of its size class.
+     *
+     * @param address the block address
+     * @param sizeClass the size class it was allocated with
+     */
+    synchronized void free(long address, int sizeClass) {
+        allocatedBytes -= linesOf(sizeClass) * LINE_BYTES;
+        slab(address).putLong(offset(address), freeHeads[sizeClass]);
+        freeHeads[sizeClass] = address;
+    }
+
+    /**
+     * Gets the slab holding a block. Slabs never move, so a cart may keep the reference for as long as it holds the block.
+     *
+     * @param address the block address
+     * @return the slab
+     */
+    synchronized ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+}
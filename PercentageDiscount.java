@@ -1,8 +1,8 @@
-import java.text.DecimalFormat; // For formatting output to 2 decimal places
 import java.util.Objects; // For validating input and checking null
  
 public class PercentageDiscount implements DiscountStrategy {
     private double percentage;
+    private long basisPoints; // The same percentage in hundredths of a percent, or -1 if it has more decimals
  
     /**
      * Constructor to initialize the discount percentage.
@@ -16,6 +16,7 @@ public class PercentageDiscount implements DiscountStrategy {
             throw new IllegalArgumentException("Discount percentage must be between 0 and 100.");
         }
         this.percentage = percentage;
+        this.basisPoints = Money.exactBasisPoints(percentage);
     }
  
     /**
@@ -29,15 +30,31 @@ public class PercentageDiscount implements DiscountStrategy {
         return totalAmount * (1 - percentage / 100);
     }
  
+    /**
+     * Applies the discount in exact cents, rounding the discount to the nearest cent, ties to even.
+     * The percentage is taken exactly, whatever its number of decimals, so the result is the result of
+     * {@link #applyDiscount(double)} rounded to the cent, up to the rounding of the double arithmetic itself.
+     *
+     * @param totalMinor the total amount before discount, in cents
+     * @return the total amount after the percentage discount is applied, in cents
+     */
+    @Override
+    public long applyDiscountMinor(long totalMinor) {
+        if (basisPoints < 0) {
+            return Money.discountByPercent(totalMinor, percentage, Money.DEFAULT_ROUNDING);
+        }
+        return Money.discountByBasisPoints(totalMinor, basisPoints, Money.DEFAULT_ROUNDING);
+    }
+
     /**
      * Applies the discount and formats the result to 2 decimal places.
+     * The total is rounded to the nearest cent before the discount is taken.
      *
      * @param totalAmount the total amount before discount
      * @return the discounted total formatted as a string with two decimal points
      */
     public String applyDiscountFormatted(double totalAmount) {
-        DecimalFormat df = new DecimalFormat("#.00");
-        return df.format(applyDiscount(totalAmount));
+        return Money.format(applyDiscountMinor(Money.ofMajor(totalAmount)));
     }
  
     /**
@@ -52,6 +69,7 @@ public class PercentageDiscount implements DiscountStrategy {
             throw new IllegalArgumentException("Discount percentage must be between 0 and 100.");
         }
         this.percentage = newPercentage;
+        this.basisPoints = Money.exactBasisPoints(newPercentage);
     }
  
     /**
@@ -0,0 +1,71 @@
+import java.math.BigDecimal;
+import java.util.Random;
+
+/**
+ * Consistency check of PercentageDiscount's two paths: for many rates and totals, the exact cents path must give
+ * the double path's result rounded to the cent.
+ *
+ * The rates include percentages with more than two decimals, such as 12.345, which the cents path once
+ * truncated to whole basis points. A total whose exact discount lies within the double arithmetic's rounding
+ * error of half a cent may round either way, so the paths may differ by one cent; any larger difference is
+ * a failure, as is a compiled pipeline disagreeing with the strategy. The program exits with status 1 if any
+ * check fails.
+ *
+ * Usage: java PercentageDiscountCheck [totals per rate]
+ */
+public class PercentageDiscountCheck {
+
+    public static void main(String[] args) {
+        int totals = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Random random = new Random(42);
+        double[] rates = new double[200];
+        rates[0] = 12.345;
+        rates[1] = 33.333;
+        rates[2] = 0.005;
+        rates[3] = 99.999;
+        rates[4] = 12.5;
+        for (int i = 5; i < rates.length; i++) {
+            // Alternately rates with two, three and four decimals
+            int scale = i % 3 == 0 ? 100 : i % 3 == 1 ? 1_000 : 10_000;
+            rates[i] = random.nextInt(100 * scale + 1) / (double) scale;
+        }
+
+        long checked = 0;
+        long centApart = 0;
+        int failures = 0;
+        for (double rate : rates) {
+            PercentageDiscount discount = new PercentageDiscount(rate);
+            DiscountPipeline compiled = DiscountPipeline.compile(discount);
+            for (int i = 0; i < totals; i++) {
+                long totalMinor = i < 1_000 ? i : (long) (random.nextDouble() * 1_000_000_000L);
+                long exact = discount.applyDiscountMinor(totalMinor);
+                long viaDouble = Money.ofMajor(discount.applyDiscount(Money.toMajor(totalMinor)));
+                long difference = Math.abs(exact - viaDouble);
+                if (difference == 1 && nearHalfCent(totalMinor, rate)) {
+                    centApart++;
+                } else if (difference > 0 && failures++ < 10) {
+                    System.out.println(rate + "% of " + Money.format(totalMinor) + ": cents path "
+                                       + Money.format(exact) + ", double path " + Money.format(viaDouble));
+                }
+                if (compiled.applyDiscountMinor(totalMinor) != exact && failures++ < 10) {
+                    System.out.println(rate + "% of " + Money.format(totalMinor) + ": pipeline disagrees");
+                }
+                checked++;
+            }
+        }
+
+        BenchmarkRunner.report("totals checked", checked, "");
+        BenchmarkRunner.report("one cent apart at a half-cent tie", centApart, "");
+        BenchmarkRunner.report("failures", failures, "");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Whether the exact discount, in cents, lies within the double path's error of a half cent
+    private static boolean nearHalfCent(long totalMinor, double rate) {
+        BigDecimal discount = BigDecimal.valueOf(totalMinor).multiply(BigDecimal.valueOf(rate)).movePointLeft(2);
+        BigDecimal fraction = discount.subtract(new BigDecimal(discount.toBigInteger()));
+        return fraction.subtract(new BigDecimal("0.5")).abs().compareTo(new BigDecimal("0.000001")) <= 0;
+    }
+}
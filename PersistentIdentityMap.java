@@ -0,0 +1,273 @@
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash array mapped trie keyed by object identity, the persistent map behind {@link CartSnapshot}.
+ *
+ * Every update returns a new map that shares all but the path to the changed key with the old one, so an update
+ * copies at most seven small nodes whatever the size, and old versions stay valid and unchanged. Each level of
+ * the trie consumes five bits of the key's identity hash; keys whose hashes are equal share a collision node.
+ * Keys are compared with {@code ==}, like IdentityHashMap, since cart products are mutable and equal products
+ * may be distinct lines.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+final class PersistentIdentityMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final Object[] NO_SLOTS = new Object[0];
+    private static final PersistentIdentityMap<?, ?> EMPTY =
+            new PersistentIdentityMap<>(new BitmapNode(0, NO_SLOTS), 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentIdentityMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentIdentityMap<K, V> empty() {
+        return (PersistentIdentityMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        return (V) root.get(System.identityHashCode(key), key, 0);
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @param key the key
+     * @param value the value, not null
+     * @return a map with the mapping, or this map if it already held it
+     */
+    PersistentIdentityMap<K, V> with(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node updated = root.with(System.identityHashCode(key), key, value, 0, added);
+        return updated == root ? this : new PersistentIdentityMap<>(updated, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Removes a key's mapping.
+     *
+     * @param key the key
+     * @return a map without the key, or this map if it did not hold it
+     */
+    PersistentIdentityMap<K, V> without(K key) {
+        Node updated = root.without(System.identityHashCode(key), key, 0);
+        if (updated == root) {
+            return this;
+        }
+        return updated == null ? empty() : new PersistentIdentityMap<>(updated, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    private abstract static class Node {
+        abstract Object get(int hash, Object key, int shift);
+
+        abstract Node with(int hash, Object key, Object value, int shift, boolean[] added);
+
+        // Returns null once the node holds nothing
+        abstract Node without(int hash, Object key, int shift);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * Holds up to 32 children, one per five-bit hash fragment, packed by a bitmap of the fragments present.
+     * Each child takes two slots: a key and its value, or null and a deeper node.
+     */
+    private static final class BitmapNode extends Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        @Override
+        Object get(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object slotKey = slots[index];
+            if (slotKey == null) {
+                return ((Node) slots[index + 1]).get(hash, key, shift + BITS);
+            }
+            return slotKey == key ? slots[index + 1] : null;
+        }
+
+        @Override
+        Node with(int hash, Object key, Object value, int shift, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] grown = new Object[slots.length + 2];
+                System.arraycopy(slots, 0, grown, 0, index);
+                grown[index] = key;
+                grown[index + 1] = value;
+                System.arraycopy(slots, index, grown, index + 2, slots.length - index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, grown);
+            }
+            Object slotKey = slots[index];
+            Object slotValue = slots[index + 1];
+            if (slotKey == null) {
+                Node child = (Node) slotValue;
+                Node updated = child.with(hash, key, value, shift + BITS, added);
+                return updated == child ? this : replace(index, null, updated);
+            }
+            if (slotKey == key) {
+                return slotValue == value ? this : replace(index, key, value);
+            }
+            added[0] = true;
+            return replace(index, null, pair(shift + BITS, slotKey, slotValue, hash, key, value));
+        }
+
+        @Override
+        Node without(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object slotKey = slots[index];
+            if (slotKey == null) {
+                Node child = (Node) slots[index + 1];
+                Node updated = child.without(hash, key, shift + BITS);
+                if (updated == child) {
+                    return this;
+                }
+                if (updated != null) {
+                    return replace(index, null, updated);
+                }
+            } else if (slotKey != key) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[slots.length - 2];
+            System.arraycopy(slots, 0, shrunk, 0, index);
+            System.arraycopy(slots, index + 2, shrunk, index, slots.length - index - 2);
+            return new BitmapNode(bitmap & ~bit, shrunk);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < slots.length; i += 2) {
+                if (slots[i] == null) {
+                    ((Node) slots[i + 1]).forEach(action);
+                } else {
+                    action.accept(slots[i], slots[i + 1]);
+                }
+            }
+        }
+
+        private BitmapNode replace(int index, Object key, Object value) {
+            Object[] copy = slots.clone();
+            copy[index] = key;
+            copy[index + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+    }
+
+    /**
+     * Holds the keys whose identity hashes are equal, which no number of levels can tell apart.
+     */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] slots;
+
+        CollisionNode(int hash, Object[] slots) {
+            this.hash = hash;
+            this.slots = slots;
+        }
+
+        @Override
+        Object get(int hash, Object key, int shift) {
+            int index = indexOf(key);
+            return index < 0 ? null : slots[index + 1];
+        }
+
+        @Override
+        Node with(int hash, Object key, Object value, int shift, boolean[] added) {
+            if (hash != this.hash) {
+                // A different hash reached this level; give the collisions a level of their own beside it
+                Node nested = new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[] {null, this});
+                return nested.with(hash, key, value, shift, added);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (slots[index + 1] == value) {
+                    return this;
+                }
+                Object[] copy = slots.clone();
+                copy[index + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] grown = new Object[slots.length + 2];
+            System.arraycopy(slots, 0, grown, 0, slots.length);
+            grown[slots.length] = key;
+            grown[slots.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, grown);
+        }
+
+        @Override
+        Node without(int hash, Object key, int shift) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (slots.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[slots.length - 2];
+            System.arraycopy(slots, 0, shrunk, 0, index);
+            System.arraycopy(slots, index + 2, shrunk, index, slots.length - index - 2);
+            return new CollisionNode(hash, shrunk);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < slots.length; i += 2) {
+                action.accept(slots[i], slots[i + 1]);
+            }
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < slots.length; i += 2) {
+                if (slots[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // A node holding two keys that share the hash fragments above shift
+    private static Node pair(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        int hash1 = System.identityHashCode(key1);
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+        }
+        boolean[] added = new boolean[1];
+        return new BitmapNode(0, NO_SLOTS).with(hash1, key1, value1, shift, added)
+                                          .with(hash2, key2, value2, shift, added);
+    }
+}
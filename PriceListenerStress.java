@@ -0,0 +1,80 @@
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stress check for the price listeners products keep for the carts that hold them.
+ *
+ * Two threads repeatedly add one shared product to carts of their own and drop them again, racing on the
+ * product's listener list; the product's price is then changed and every cart still holding it must have
+ * followed the change. Finally a cart is dropped without being cleared while the product stays alive, and it
+ * must still be garbage collected. The program exits with status 1 if either check fails.
+ *
+ * Usage: java PriceListenerStress [rounds]
+ */
+public class PriceListenerStress {
+
+    public static void main(String[] args) throws InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Product shared = new Product(1L, "Shared", 10.0);
+        Cart[] kept = new Cart[2];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int round = 0; round < rounds; round++) {
+                    Cart cart = new ConcurrentCart();
+                    cart.addProduct(shared);
+                    if (round % 2 == 0) {
+                        cart.clear();
+                    }
+                }
+                Cart cart = new ConcurrentCart();
+                cart.addProduct(shared, 3);
+                kept[index] = cart;
+            }, "price-listener-stress-" + t);
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int failures = 0;
+        shared.setPriceMinor(2_500);
+        for (Cart cart : kept) {
+            if (cart.calculateTotalMinor() != 7_500 || cart.getMostExpensiveProduct().get() != shared) {
+                System.out.println("cart missed the price change: total " + cart.calculateTotalMinor());
+                failures++;
+            }
+        }
+
+        WeakReference<Cart> dropped = new WeakReference<>(dropCart(shared));
+        for (int attempt = 0; attempt < 50 && dropped.get() != null; attempt++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        if (dropped.get() != null) {
+            System.out.println("a dropped cart is still reachable from its product");
+            failures++;
+        }
+        shared.setPriceMinor(3_000); // Prunes the collected carts' listeners
+
+        BenchmarkRunner.report("failures", failures, "");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static Cart dropCart(Product product) {
+        Cart cart = new Cart();
+        cart.addProduct(product);
+        return cart;
+    }
+}
@@ -1,16 +1,53 @@
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Objects; 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.math.RoundingMode;
 
 public class Product implements Serializable {
+    // Pinned to the value computed for the original class so previously saved carts stay readable
+    private static final long serialVersionUID = 8044147463715450898L;
+    // The serialized form keeps the original double price so carts saved before prices were held in cents still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("id", Long.class),
+        new ObjectStreamField("name", String.class),
+        new ObjectStreamField("price", double.class)
+    };
+    private static final ListenerRef[] NO_LISTENERS = new ListenerRef[0];
+
     private Long id;
     private String name;
-    private double price;
+    private long priceMinor; // In cents, see Money
+    // Copied on write under the product's monitor; held weakly, so a product outliving a cart does not keep it alive
+    private transient volatile ListenerRef[] priceListeners = NO_LISTENERS;
+    // Set on catalog products, which many carts share; such products never change
+    private transient boolean frozen;
+
+    /**
+     * Callback notified whenever the price of a product changes.
+     * Carts use it to keep their running totals and price ordering up to date.
+     */
+    interface PriceListener {
+        void priceChanged(Product product, long oldPriceMinor, long newPriceMinor);
+    }
+
+    // A listener the product does not keep reachable; the cart holding the listener does
+    private static final class ListenerRef extends WeakReference<PriceListener> {
+        ListenerRef(PriceListener listener) {
+            super(listener);
+        }
+    }
     
     /**
      * Constructor to initialize a Product object.
      * @param id Unique identifier for the product.
      * @param name Name of the product.
-     * @param price Price of the product. Must be non-negative.
+     * @param price Price of the product. Must be non-negative. Rounded to the nearest cent, ties to even.
      */
     public Product(Long id, String name, double price) {
         if (price < 0) {
@@ -18,7 +55,51 @@ public class Product implements Serializable {
         }
         this.id = id;
         this.name = name;
-        this.price = price;
+        this.priceMinor = Money.ofMajor(price);
+    }
+
+    private Product(Long id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Creates a product priced in minor units, with no rounding.
+     * @param id Unique identifier for the product.
+     * @param name Name of the product.
+     * @param priceMinor Price of the product in cents. Must be non-negative.
+     * @return The new product.
+     */
+    public static Product ofMinorUnits(Long id, String name, long priceMinor) {
+        if (priceMinor < 0) {
+            throw new IllegalArgumentException("Price cannot be negative");
+        }
+        Product product = new Product(id, name);
+        product.priceMinor = priceMinor;
+        return product;
+    }
+ 
+    /**
+     * Creates an immutable product, shared as a flyweight by every cart that holds it.
+     * @param id Unique identifier for the product.
+     * @param name Name of the product.
+     * @param priceMinor Price of the product in cents.
+     * @return The new frozen product.
+     */
+    static Product frozen(Long id, String name, long priceMinor) {
+        Product product = ofMinorUnits(id, name, priceMinor);
+        product.frozen = true;
+        return product;
+    }
+
+    /**
+     * Checks whether the product is immutable, as products of a ProductCatalog are.
+     * The setters and applyDiscount of a frozen product throw; carts holding it keep their own price overrides instead.
+     * A deserialized copy of a frozen product is an ordinary mutable product.
+     * @return true if the product cannot be changed.
+     */
+    public boolean isFrozen() {
+        return frozen;
     }
  
     // Getters
@@ -31,18 +112,32 @@ public class Product implements Serializable {
     }
  
     public double getPrice() {
-        return price;
+        return Money.toMajor(priceMinor);
+    }
+
+    public long getPriceMinor() {
+        return priceMinor;
     }
  
     // Setters with validation
     public void setPrice(double price) {
+        requireMutable();
         if (price < 0) {
             throw new IllegalArgumentException("Price cannot be negative");
         }
-        this.price = price;
+        updatePrice(Money.ofMajor(price));
+    }
+
+    public void setPriceMinor(long priceMinor) {
+        requireMutable();
+        if (priceMinor < 0) {
+            throw new IllegalArgumentException("Price cannot be negative");
+        }
+        updatePrice(priceMinor);
     }
  
     public void setName(String name) {
+        requireMutable();
         if (name == null || name.trim().isEmpty()) {
             throw new IllegalArgumentException("Name cannot be null or empty");
         }
@@ -50,14 +145,109 @@ public class Product implements Serializable {
     }
  
     /**
-     * Applies a discount to the product price.
+     * Applies a discount to the product price, rounding the discount to the nearest cent, ties to even.
      * @param discountRate Discount rate in percentage (0-100).
      */
     public void applyDiscount(double discountRate) {
+        applyDiscount(discountRate, Money.DEFAULT_ROUNDING);
+    }
+
+    /**
+     * Applies a discount to the product price.
+     * @param discountRate Discount rate in percentage (0-100), to a precision of hundredths of a percent.
+     * @param rounding How to round the discount to whole cents.
+     */
+    public void applyDiscount(double discountRate, RoundingMode rounding) {
+        requireMutable();
         if (discountRate < 0 || discountRate > 100) {
             throw new IllegalArgumentException("Discount rate must be between 0 and 100");
         }
-        this.price -= this.price * (discountRate / 100);
+        updatePrice(Money.discountByPercent(priceMinor, discountRate, rounding));
+    }
+
+    /**
+     * Registers a listener to be notified of price changes.
+     * The product holds the listener weakly: it is notified only while something else, such as the cart
+     * whose line it is, keeps it reachable, so a cart dropped without being cleared can still be collected.
+     * Listeners whose referents were collected are pruned here.
+     * @param listener The listener to add.
+     */
+    synchronized void addPriceListener(PriceListener listener) {
+        if (frozen) {
+            return; // The price never changes, and sharing carts would otherwise pile up listeners here
+        }
+        ListenerRef[] current = liveListeners(listeners());
+        ListenerRef[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new ListenerRef(listener);
+        priceListeners = updated;
+    }
+
+    /**
+     * Unregisters a previously added price listener.
+     * @param listener The listener to remove.
+     */
+    synchronized void removePriceListener(PriceListener listener) {
+        ListenerRef[] current = listeners();
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].get() == listener) {
+                ListenerRef[] updated = new ListenerRef[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                priceListeners = updated.length == 0 ? NO_LISTENERS : updated;
+                return;
+            }
+        }
+    }
+
+    private void updatePrice(long newPrice) {
+        long oldPrice = this.priceMinor;
+        this.priceMinor = newPrice;
+        boolean collected = false;
+        for (ListenerRef ref : listeners()) {
+            PriceListener listener = ref.get();
+            if (listener == null) {
+                collected = true;
+            } else {
+                listener.priceChanged(this, oldPrice, newPrice);
+            }
+        }
+        if (collected) {
+            synchronized (this) {
+                priceListeners = liveListeners(listeners());
+            }
+        }
+    }
+
+    // Drops the references whose listeners were collected
+    private static ListenerRef[] liveListeners(ListenerRef[] current) {
+        int live = 0;
+        for (ListenerRef ref : current) {
+            if (ref.get() != null) {
+                live++;
+            }
+        }
+        if (live == current.length) {
+            return current;
+        }
+        ListenerRef[] kept = new ListenerRef[live];
+        int next = 0;
+        for (ListenerRef ref : current) {
+            if (ref.get() != null && next < live) {
+                kept[next++] = ref;
+            }
+        }
+        return next == 0 ? NO_LISTENERS : Arrays.copyOf(kept, next);
+    }
+
+    private void requireMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Catalog product " + id + " is immutable");
+        }
+    }
+
+    // Listeners are transient, so a deserialized product starts with none
+    private ListenerRef[] listeners() {
+        return priceListeners == null ? NO_LISTENERS : priceListeners;
     }
  
     /**
@@ -70,7 +260,7 @@ public class Product implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Product product = (Product) o;
-        return Double.compare(product.price, price) == 0 &&
+        return product.priceMinor == priceMinor &&
                 Objects.equals(id, product.id) &&
                 Objects.equals(name, product.name);
     }
@@ -81,7 +271,7 @@ public class Product implements Serializable {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(id, name, price);
+        return Objects.hash(id, name, priceMinor);
     }
  
     /**
@@ -90,6 +280,26 @@ public class Product implements Serializable {
      */
     @Override
     public String toString() {
-        return "Product{id=" + id + ", name='" + name + "', price=" + price + '}';
+        return "Product{id=" + id + ", name='" + name + "', price=" + getPrice() + '}';
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id);
+        fields.put("name", name);
+        fields.put("price", getPrice());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = (Long) fields.get("id", null);
+        name = (String) fields.get("name", null);
+        double price = fields.get("price", 0.0);
+        if (!(price >= 0) || Double.isInfinite(price)) {
+            throw new InvalidObjectException("Invalid product price " + price);
+        }
+        priceMinor = Money.ofMajor(price);
+        priceListeners = NO_LISTENERS;
     }
 }
@@ -0,0 +1,254 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Immutable, shared catalog of products that carts reference instead of holding their own copies.
+ *
+ * Every catalog item has exactly one {@link Product} instance, frozen so it can be shared by any number
+ * of carts and threads; carts that discount or reprice a catalog product keep the price as a per-cart override
+ * (see {@link Cart#setPriceOverride(Product, long)}) and never touch the product itself.
+ *
+ * Item attributes are also stored column by column in parallel primitive arrays, addressed by a dense item index,
+ * so bulk readers such as repricing or analytics can scan prices and categories without chasing pointers.
+ * Names and categories are interned: items sharing a name or category share one String.
+ * Ids are looked up through an open-addressing table of primitive longs.
+ */
+public final class ProductCatalog {
+    private static final int NONE = -1;
+
+    // Columns, one element per item, in the order items were added
+    private final long[] ids;
+    private final long[] pricesMinor;
+    private final int[] nameRefs;
+    private final int[] categoryRefs;
+    private final String[] names;
+    private final String[] categories;
+    private final Product[] products;
+
+    // Id table: product id -> item index
+    private final long[] tableKeys;
+    private final int[] tableItems;
+    private final int tableMask;
+
+    private ProductCatalog(Builder builder) {
+        int size = builder.size;
+        ids = Arrays.copyOf(builder.ids, size);
+        pricesMinor = Arrays.copyOf(builder.pricesMinor, size);
+        nameRefs = Arrays.copyOf(builder.nameRefs, size);
+        categoryRefs = Arrays.copyOf(builder.categoryRefs, size);
+        names = new String[builder.names.size()];
+        for (Map.Entry<String, Integer> name : builder.names.entrySet()) {
+            names[name.getValue()] = name.getKey();
+        }
+        categories = new String[builder.categories.size()];
+        for (Map.Entry<String, Integer> category : builder.categories.entrySet()) {
+            categories[category.getValue()] = category.getKey();
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(8, size) - 1) << 2;
+        tableKeys = new long[capacity];
+        tableItems = new int[capacity];
+        Arrays.fill(tableItems, NONE);
+        tableMask = capacity - 1;
+        products = new Product[size];
+        for (int item = 0; item < size; item++) {
+            int slot = hash(ids[item]) & tableMask;
+            while (tableItems[slot] != NONE) {
+                if (tableKeys[slot] == ids[item]) {
+                    throw new IllegalArgumentException("Duplicate product id " + ids[item]);
+                }
+                slot = (slot + 1) & tableMask;
+            }
+            tableKeys[slot] = ids[item];
+            tableItems[slot] = item;
+            products[item] = Product.frozen(ids[item], nameAt(item), pricesMinor[item]);
+        }
+    }
+
+    /**
+     * Starts building a catalog.
+     *
+     * @return an empty builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the number of items in the catalog.
+     *
+     * @return the item count
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Gets the shared product with the given id.
+     *
+     * @param id the product id
+     * @return the frozen catalog product
+     * @throws IllegalArgumentException if the catalog has no such product
+     */
+    public Product get(long id) {
+        int item = indexOf(id);
+        if (item == NONE) {
+            throw new IllegalArgumentException("Unknown product id " + id);
+        }
+        return products[item];
+    }
+
+    /**
+     * Finds the shared product with the given id.
+     *
+     * @param id the product id
+     * @return an Optional containing the frozen catalog product, or empty if the catalog has no such product
+     */
+    public Optional<Product> findById(long id) {
+        int item = indexOf(id);
+        return item == NONE ? Optional.empty() : Optional.of(products[item]);
+    }
+
+    /**
+     * Gets the category of a product.
+     *
+     * @param id the product id
+     * @return the category, or null if the item has none
+     * @throws IllegalArgumentException if the catalog has no such product
+     */
+    public String getCategory(long id) {
+        int item = indexOf(id);
+        if (item == NONE) {
+            throw new IllegalArgumentException("Unknown product id " + id);
+        }
+        return categoryAt(item);
+    }
+
+    /**
+     * Gets the dense index of an item, for use with the column accessors.
+     *
+     * @param id the product id
+     * @return the item index, or -1 if the catalog has no such product
+     */
+    public int indexOf(long id) {
+        int slot = hash(id) & tableMask;
+        while (tableItems[slot] != NONE) {
+            if (tableKeys[slot] == id) {
+                return tableItems[slot];
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return NONE;
+    }
+
+    public long idAt(int item) {
+        return ids[item];
+    }
+
+    public long priceMinorAt(int item) {
+        return pricesMinor[item];
+    }
+
+    public String nameAt(int item) {
+        return names[nameRefs[item]];
+    }
+
+    public String categoryAt(int item) {
+        int category = categoryRefs[item];
+        return category == NONE ? null : categories[category];
+    }
+
+    public Product productAt(int item) {
+        return products[item];
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Collects catalog items. A builder is not thread-safe and can build one catalog.
+     */
+    public static final class Builder {
+        private long[] ids = new long[16];
+        private long[] pricesMinor = new long[16];
+        private int[] nameRefs = new int[16];
+        private int[] categoryRefs = new int[16];
+        private final Map<String, Integer> names = new HashMap<>();
+        private final Map<String, Integer> categories = new HashMap<>();
+        private int size;
+        private boolean built;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds an item priced in major units.
+         *
+         * @param id the product id, unique within the catalog
+         * @param name the product name
+         * @param price the price, rounded to the nearest cent, ties to even
+         * @param category the category used by category-scoped rules, or null
+         * @return this builder
+         * @throws IllegalArgumentException if the name is null or the price negative
+         */
+        public Builder add(long id, String name, double price, String category) {
+            if (price < 0) {
+                throw new IllegalArgumentException("Price cannot be negative");
+            }
+            return addMinorUnits(id, name, Money.ofMajor(price), category);
+        }
+
+        /**
+         * Adds an item priced in minor units.
+         *
+         * @param id the product id, unique within the catalog
+         * @param name the product name
+         * @param priceMinor the price in cents
+         * @param category the category used by category-scoped rules, or null
+         * @return this builder
+         * @throws IllegalArgumentException if the name is null or the price negative
+         */
+        public Builder addMinorUnits(long id, String name, long priceMinor, String category) {
+            if (built) {
+                throw new IllegalStateException("Catalog already built");
+            }
+            if (name == null) {
+                throw new IllegalArgumentException("Name cannot be null");
+            }
+            if (priceMinor < 0) {
+                throw new IllegalArgumentException("Price cannot be negative");
+            }
+            if (size == ids.length) {
+                int capacity = size << 1;
+                ids = Arrays.copyOf(ids, capacity);
+                pricesMinor = Arrays.copyOf(pricesMinor, capacity);
+                nameRefs = Arrays.copyOf(nameRefs, capacity);
+                categoryRefs = Arrays.copyOf(categoryRefs, capacity);
+            }
+            ids[size] = id;
+            pricesMinor[size] = priceMinor;
+            nameRefs[size] = names.computeIfAbsent(name, key -> names.size());
+            categoryRefs[size] = category == null ? NONE : categories.computeIfAbsent(category, key -> categories.size());
+            size++;
+            return this;
+        }
+
+        /**
+         * Builds the catalog. The builder cannot be used afterwards.
+         *
+         * @return the immutable catalog
+         * @throws IllegalArgumentException if two items share an id
+         */
+        public ProductCatalog build() {
+            if (built) {
+                throw new IllegalStateException("Catalog already built");
+            }
+            built = true;
+            return new ProductCatalog(this);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.Random;
+
+/**
+ * Compares the heap taken by a large population of carts holding their own Product copies
+ * with the same carts referencing the shared, frozen products of a ProductCatalog.
+ * The copies model carts restored from files, where every cart deserializes its own products and names.
+ * Every tenth line of each cart is repriced: in place on a copy, through a per-cart override on a catalog product.
+ *
+ * Usage: java -Xmx4g ProductCatalogBenchmark [carts] [linesPerCart] [catalogSize]
+ */
+public class ProductCatalogBenchmark {
+
+    public static void main(String[] args) {
+        int carts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int linesPerCart = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int catalogSize = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+
+        ProductCatalog.Builder builder = ProductCatalog.builder();
+        for (int i = 0; i < catalogSize; i++) {
+            builder.addMinorUnits(i, "Catalog product number " + i, 100 + i % 10_000, "category-" + i % 40);
+        }
+        ProductCatalog catalog = builder.build();
+        long baseline = BenchmarkRunner.usedHeapAfterGc();
+
+        Cart[] copies = fill(carts, linesPerCart, catalog, false);
+        long copiesHeap = BenchmarkRunner.usedHeapAfterGc() - baseline;
+        long copiesTotal = checksum(copies);
+        copies = null;
+
+        baseline = BenchmarkRunner.usedHeapAfterGc();
+        Cart[] shared = fill(carts, linesPerCart, catalog, true);
+        long sharedHeap = BenchmarkRunner.usedHeapAfterGc() - baseline;
+        if (checksum(shared) != copiesTotal) {
+            throw new IllegalStateException("Shared carts total differently from carts of copies");
+        }
+
+        System.out.println(carts + " carts of " + linesPerCart + " lines, catalog of " + catalogSize);
+        BenchmarkRunner.report("  own product copies", copiesHeap / (double) carts, "bytes/cart");
+        BenchmarkRunner.report("  shared catalog products", sharedHeap / (double) carts, "bytes/cart");
+        BenchmarkRunner.report("  heap saved", (copiesHeap - sharedHeap) / 1_048_576.0, "MiB");
+        BenchmarkRunner.consume(shared.length);
+    }
+
+    private static Cart[] fill(int carts, int linesPerCart, ProductCatalog catalog, boolean share) {
+        Random random = new Random(11);
+        Cart[] result = new Cart[carts];
+        for (int c = 0; c < carts; c++) {
+            Cart cart = new Cart();
+            for (int l = 0; l < linesPerCart; l++) {
+                int item = random.nextInt(catalog.size());
+                Product product = share ? catalog.productAt(item)
+                                        : Product.ofMinorUnits(catalog.idAt(item), new String(catalog.nameAt(item)),
+                                                               catalog.priceMinorAt(item));
+                if (!cart.findProductById(product.getId()).isPresent()) {
+                    cart.addProduct(product, 1 + random.nextInt(3));
+                    if (random.nextInt(10) == 0) {
+                        if (share) {
+                            cart.setPriceOverride(product, Money.discountByPercent(product.getPriceMinor(), 10));
+                        } else {
+                            product.applyDiscount(10);
+                        }
+                    }
+                }
+            }
+            result[c] = cart;
+        }
+        return result;
+    }
+
+    private static long checksum(Cart[] carts) {
+        long sum = 0;
+        for (Cart cart : carts) {
+            sum += cart.calculateTotalMinor();
+        }
+        return sum;
+    }
+}
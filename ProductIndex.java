@@ -0,0 +1,385 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Insertion-ordered index of cart lines keyed by their primitive product id.
+ * The id table uses open addressing with linear probing, so lookups never box the id,
+ * and every entry sits in a doubly linked list that preserves the order lines were added.
+ * Entries sharing an id are chained together in insertion order behind a single table slot.
+ */
+public class ProductIndex {
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 8;
+
+    // Hash table: product id -> first entry carrying that id
+    private long[] tableKeys;
+    private int[] tableHeads;
+    private int tableMask;
+    private int tableSize;
+
+    // Entry storage, linked in insertion order and by shared id
+    private CartEntry[] entries;
+    private int[] prev;
+    private int[] next;
+    private int[] sameNext;
+    private int head = NONE;
+    private int tail = NONE;
+    private int freeHead = NONE;
+    private int allocated;
+    private int size;
+
+    /**
+     * Creates an empty index.
+     */
+    public ProductIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an empty index sized for the expected number of products.
+     *
+     * @param expectedSize the number of products the index should hold without resizing
+     */
+    public ProductIndex(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, expectedSize);
+        entries = new CartEntry[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        sameNext = new int[capacity];
+        initTable(tableCapacityFor(capacity));
+    }
+
+    /**
+     * Gets the number of entries held by the index.
+     *
+     * @return the entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Grows the index so it holds the given number of entries without resizing again,
+     * letting a batch of additions pay for at most one resize.
+     *
+     * @param expectedSize the number of entries the index should hold
+     */
+    public void ensureCapacity(int expectedSize) {
+        if (expectedSize > entries.length) {
+            entries = Arrays.copyOf(entries, expectedSize);
+            prev = Arrays.copyOf(prev, expectedSize);
+            next = Arrays.copyOf(next, expectedSize);
+            sameNext = Arrays.copyOf(sameNext, expectedSize);
+        }
+        int tableCapacity = tableCapacityFor(expectedSize);
+        if (tableCapacity > tableHeads.length) {
+            rehash(tableCapacity);
+        }
+    }
+
+    /**
+     * Appends an entry to the end of the insertion order.
+     *
+     * @param cartEntry the entry to add; its product id must not be null
+     */
+    public void add(CartEntry cartEntry) {
+        long id = cartEntry.getProduct().getId();
+        int entry = allocateEntry();
+        entries[entry] = cartEntry;
+        sameNext[entry] = NONE;
+        linkLast(entry);
+
+        int slot = findSlot(id);
+        if (slot >= 0) {
+            int last = tableHeads[slot];
+            while (sameNext[last] != NONE) {
+                last = sameNext[last];
+            }
+            sameNext[last] = entry;
+        } else {
+            insertKey(id, entry);
+        }
+        size++;
+    }
+
+    /**
+     * Finds the earliest added entry with the given product id.
+     *
+     * @param id the product id
+     * @return the entry, or null if no product has that id
+     */
+    public CartEntry first(long id) {
+        int slot = findSlot(id);
+        return slot < 0 ? null : entries[tableHeads[slot]];
+    }
+
+    /**
+     * Finds the earliest added entry whose product equals the given one.
+     *
+     * @param product the product to look for
+     * @return the entry, or null if no entry matched
+     */
+    public CartEntry find(Product product) {
+        int slot = findSlot(product.getId());
+        if (slot < 0) {
+            return null;
+        }
+        for (int entry = tableHeads[slot]; entry != NONE; entry = sameNext[entry]) {
+            if (entries[entry].getProduct().equals(product)) {
+                return entries[entry];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given entry.
+     *
+     * @param cartEntry the entry to remove
+     * @return true if the entry was in the index
+     */
+    public boolean remove(CartEntry cartEntry) {
+        int slot = findSlot(cartEntry.getProduct().getId());
+        if (slot < 0) {
+            return false;
+        }
+        int before = NONE;
+        for (int entry = tableHeads[slot]; entry != NONE; entry = sameNext[entry]) {
+            if (entries[entry] == cartEntry) {
+                unlinkFromChain(slot, before, entry);
+                return true;
+            }
+            before = entry;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the earliest added entry whose product equals the given one.
+     *
+     * @param product the product to remove
+     * @return the removed entry, or null if no entry matched
+     */
+    public CartEntry remove(Product product) {
+        int slot = findSlot(product.getId());
+        if (slot < 0) {
+            return null;
+        }
+        int before = NONE;
+        for (int entry = tableHeads[slot]; entry != NONE; entry = sameNext[entry]) {
+            CartEntry cartEntry = entries[entry];
+            if (cartEntry.getProduct().equals(product)) {
+                unlinkFromChain(slot, before, entry);
+                return cartEntry;
+            }
+            before = entry;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the earliest added entry with the given product id.
+     *
+     * @param id the product id
+     * @return the removed entry, or null if no product has that id
+     */
+    public CartEntry removeFirst(long id) {
+        int slot = findSlot(id);
+        if (slot < 0) {
+            return null;
+        }
+        int entry = tableHeads[slot];
+        CartEntry removed = entries[entry];
+        unlinkFromChain(slot, NONE, entry);
+        return removed;
+    }
+
+    /**
+     * Removes every entry from the index, keeping the allocated capacity.
+     */
+    public void clear() {
+        Arrays.fill(entries, 0, allocated, null);
+        Arrays.fill(tableHeads, NONE);
+        head = tail = freeHead = NONE;
+        allocated = 0;
+        size = 0;
+        tableSize = 0;
+    }
+
+    /**
+     * Visits every entry in insertion order.
+     *
+     * @param action the action to perform on each entry
+     */
+    public void forEach(Consumer<? super CartEntry> action) {
+        for (int entry = head; entry != NONE; entry = next[entry]) {
+            action.accept(entries[entry]);
+        }
+    }
+
+    /**
+     * Copies the indexed products into a new list in insertion order,
+     * repeating each product once per unit of its entry.
+     *
+     * @return a list of the indexed products
+     */
+    public List<Product> toProductList() {
+        List<Product> list = new ArrayList<>(size);
+        for (int entry = head; entry != NONE; entry = next[entry]) {
+            CartEntry cartEntry = entries[entry];
+            for (int unit = cartEntry.getQuantity(); unit > 0; unit--) {
+                list.add(cartEntry.getProduct());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Copies the indexed entries into a new list of lines in insertion order.
+     *
+     * @return a list of snapshots of the indexed entries
+     */
+    public List<CartLine> toLineList() {
+        List<CartLine> list = new ArrayList<>(size);
+        for (int entry = head; entry != NONE; entry = next[entry]) {
+            CartEntry cartEntry = entries[entry];
+            list.add(new CartLine(cartEntry.getProduct(), cartEntry.getQuantity(), cartEntry.getIndexedPrice()));
+        }
+        return list;
+    }
+
+    private void unlinkFromChain(int slot, int before, int entry) {
+        if (before == NONE) {
+            if (sameNext[entry] == NONE) {
+                deleteSlot(slot);
+            } else {
+                tableHeads[slot] = sameNext[entry];
+            }
+        } else {
+            sameNext[before] = sameNext[entry];
+        }
+        unlink(entry);
+        entries[entry] = null;
+        next[entry] = freeHead;
+        freeHead = entry;
+        size--;
+    }
+
+    private int allocateEntry() {
+        if (freeHead != NONE) {
+            int entry = freeHead;
+            freeHead = next[entry];
+            return entry;
+        }
+        if (allocated == entries.length) {
+            int capacity = entries.length << 1;
+            entries = Arrays.copyOf(entries, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            next = Arrays.copyOf(next, capacity);
+            sameNext = Arrays.copyOf(sameNext, capacity);
+        }
+        return allocated++;
+    }
+
+    private void linkLast(int entry) {
+        prev[entry] = tail;
+        next[entry] = NONE;
+        if (tail == NONE) {
+            head = entry;
+        } else {
+            next[tail] = entry;
+        }
+        tail = entry;
+    }
+
+    private void unlink(int entry) {
+        int before = prev[entry];
+        int after = next[entry];
+        if (before == NONE) {
+            head = after;
+        } else {
+            next[before] = after;
+        }
+        if (after == NONE) {
+            tail = before;
+        } else {
+            prev[after] = before;
+        }
+    }
+
+    private int findSlot(long id) {
+        int slot = hash(id) & tableMask;
+        while (tableHeads[slot] != NONE) {
+            if (tableKeys[slot] == id) {
+                return slot;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return NONE;
+    }
+
+    private void insertKey(long id, int entry) {
+        if ((tableSize + 1) * 2 > tableHeads.length) {
+            rehash(tableHeads.length << 1);
+        }
+        int slot = hash(id) & tableMask;
+        while (tableHeads[slot] != NONE) {
+            slot = (slot + 1) & tableMask;
+        }
+        tableKeys[slot] = id;
+        tableHeads[slot] = entry;
+        tableSize++;
+    }
+
+    // Backward-shift deletion keeps probe sequences intact without tombstones
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int current = (gap + 1) & tableMask;
+        while (tableHeads[current] != NONE) {
+            int home = hash(tableKeys[current]) & tableMask;
+            if (((current - home) & tableMask) >= ((current - gap) & tableMask)) {
+                tableKeys[gap] = tableKeys[current];
+                tableHeads[gap] = tableHeads[current];
+                gap = current;
+            }
+            current = (current + 1) & tableMask;
+        }
+        tableHeads[gap] = NONE;
+        tableSize--;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = tableKeys;
+        int[] oldHeads = tableHeads;
+        initTable(capacity);
+        for (int slot = 0; slot < oldHeads.length; slot++) {
+            if (oldHeads[slot] != NONE) {
+                int target = hash(oldKeys[slot]) & tableMask;
+                while (tableHeads[target] != NONE) {
+                    target = (target + 1) & tableMask;
+                }
+                tableKeys[target] = oldKeys[slot];
+                tableHeads[target] = oldHeads[slot];
+            }
+        }
+    }
+
+    private void initTable(int capacity) {
+        tableKeys = new long[capacity];
+        tableHeads = new int[capacity];
+        Arrays.fill(tableHeads, NONE);
+        tableMask = capacity - 1;
+    }
+
+    private static int tableCapacityFor(int entries) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, entries) - 1) << 2;
+        return Math.max(MIN_CAPACITY * 2, capacity);
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
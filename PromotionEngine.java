@@ -0,0 +1,245 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates {@link PromotionRule}s over the lines of a cart.
+ *
+ * Rules are registered for a product id, for a catalog category or for every line, and indexed when the engine
+ * is built: each catalog item gets the array of every rule that can apply to it, and other products are looked up
+ * by id. Evaluating a line is then one lookup plus the rules that actually match it, whatever the total number of rules.
+ * Categories come from the engine's {@link ProductCatalog}; a product is in the category of the catalog item
+ * with its id.
+ *
+ * Rules on the same line do not stack: a line gets the largest discount any of its rules gives,
+ * never more than the line total. Rules on different lines are independent, which is what lets
+ * a {@link PromotionTracker} re-evaluate only the line that changed.
+ *
+ * An engine is immutable and may be shared by any number of carts and threads.
+ */
+public final class PromotionEngine {
+    private static final PromotionRule[] NO_RULES = new PromotionRule[0];
+
+    private final ProductCatalog catalog;
+    private final PromotionRule[] everyLine;
+    private final Map<Long, PromotionRule[]> byProduct;
+    private final PromotionRule[][] byItem;
+
+    private PromotionEngine(Builder builder) {
+        catalog = builder.catalog;
+        everyLine = builder.everyLine.toArray(NO_RULES);
+        byProduct = new HashMap<>();
+        for (Map.Entry<Long, List<PromotionRule>> rules : builder.byProduct.entrySet()) {
+            byProduct.put(rules.getKey(), concat(rules.getValue(), null));
+        }
+        if (catalog == null) {
+            byItem = null;
+            return;
+        }
+        byItem = new PromotionRule[catalog.size()][];
+        Map<String, PromotionRule[]> byCategory = new HashMap<>();
+        for (int item = 0; item < byItem.length; item++) {
+            String category = catalog.categoryAt(item);
+            PromotionRule[] rules = byProduct.get(catalog.idAt(item));
+            List<PromotionRule> categoryRules = category == null ? null : builder.byCategory.get(category);
+            if (categoryRules == null) {
+                byItem[item] = rules != null ? rules : everyLine;
+            } else if (rules == null) {
+                // Items of one category without product rules share one array
+                byItem[item] = byCategory.computeIfAbsent(category, key -> concat(categoryRules, null));
+            } else {
+                byItem[item] = concat(categoryRules, rules);
+            }
+        }
+    }
+
+    /**
+     * Starts building an engine without a catalog, which supports product and every-line rules only.
+     *
+     * @return an empty builder
+     */
+    public static Builder builder() {
+        return new Builder(null);
+    }
+
+    /**
+     * Starts building an engine whose category rules use the given catalog.
+     *
+     * @param catalog the catalog giving each product id its category
+     * @return an empty builder
+     * @throws IllegalArgumentException if the catalog is null
+     */
+    public static Builder builder(ProductCatalog catalog) {
+        if (catalog == null) {
+            throw new IllegalArgumentException("Catalog cannot be null");
+        }
+        return new Builder(catalog);
+    }
+
+    /**
+     * Evaluates every line of a cart.
+     *
+     * @param cart the cart
+     * @return the total discount in cents
+     */
+    public long discountMinor(Cart cart) {
+        if (cart == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        long discount = 0;
+        for (CartLine line : cart.getLines()) {
+            discount += lineDiscountMinor(line.getProduct(), line.getQuantity(), line.getUnitPriceMinor());
+        }
+        return discount;
+    }
+
+    /**
+     * Evaluates one line: the largest discount any matching rule gives, capped at the line total.
+     *
+     * @param product the product on the line
+     * @param quantity the number of units
+     * @param unitPriceMinor the unit price the cart charges, in cents
+     * @return the line's discount in cents, zero if no rule applies
+     */
+    public long lineDiscountMinor(Product product, int quantity, long unitPriceMinor) {
+        PromotionRule[] rules = rulesFor(product);
+        long best = 0;
+        for (PromotionRule rule : rules) {
+            best = Math.max(best, rule.discountMinor(quantity, unitPriceMinor));
+        }
+        return Math.min(best, unitPriceMinor * quantity);
+    }
+
+    /**
+     * Checks whether any rule can apply to a product, whatever its quantity and price.
+     *
+     * @param product the product
+     * @return true if lines of the product need evaluating
+     */
+    public boolean appliesTo(Product product) {
+        return rulesFor(product).length > 0;
+    }
+
+    /**
+     * Starts keeping a cart's discount current as its lines change.
+     *
+     * @param cart the cart to track
+     * @return a tracker, to be closed when no longer needed
+     */
+    public PromotionTracker track(Cart cart) {
+        return new PromotionTracker(this, cart);
+    }
+
+    public ProductCatalog getCatalog() {
+        return catalog;
+    }
+
+    private PromotionRule[] rulesFor(Product product) {
+        Long id = product.getId();
+        if (id == null) {
+            return everyLine;
+        }
+        if (byItem != null) {
+            int item = catalog.indexOf(id);
+            if (item >= 0) {
+                return byItem[item];
+            }
+        }
+        PromotionRule[] rules = byProduct.get(id);
+        return rules != null ? rules : everyLine;
+    }
+
+    // Every-line rules are folded into each indexed array, so a lookup never merges arrays
+    private PromotionRule[] concat(List<PromotionRule> first, PromotionRule[] second) {
+        int secondLength = second == null ? 0 : second.length - everyLine.length;
+        PromotionRule[] rules = first.toArray(new PromotionRule[first.size() + secondLength + everyLine.length]);
+        if (second != null) {
+            System.arraycopy(second, 0, rules, first.size(), secondLength);
+        }
+        System.arraycopy(everyLine, 0, rules, rules.length - everyLine.length, everyLine.length);
+        return rules;
+    }
+
+    /**
+     * Collects rules. A builder is not thread-safe and can build one engine.
+     */
+    public static final class Builder {
+        private final ProductCatalog catalog;
+        private final List<PromotionRule> everyLine = new ArrayList<>();
+        private final Map<Long, List<PromotionRule>> byProduct = new HashMap<>();
+        private final Map<String, List<PromotionRule>> byCategory = new HashMap<>();
+        private boolean built;
+
+        private Builder(ProductCatalog catalog) {
+            this.catalog = catalog;
+        }
+
+        /**
+         * Adds a rule for the lines of one product.
+         *
+         * @param id the product id
+         * @param rule the rule
+         * @return this builder
+         */
+        public Builder forProduct(long id, PromotionRule rule) {
+            byProduct.computeIfAbsent(id, key -> new ArrayList<>()).add(requireRule(rule));
+            return this;
+        }
+
+        /**
+         * Adds a rule for the lines of every catalog product in a category.
+         *
+         * @param category the category
+         * @param rule the rule
+         * @return this builder
+         * @throws IllegalStateException if the builder has no catalog
+         */
+        public Builder forCategory(String category, PromotionRule rule) {
+            if (catalog == null) {
+                throw new IllegalStateException("Category rules need a catalog");
+            }
+            if (category == null) {
+                throw new IllegalArgumentException("Category cannot be null");
+            }
+            byCategory.computeIfAbsent(category, key -> new ArrayList<>()).add(requireRule(rule));
+            return this;
+        }
+
+        /**
+         * Adds a rule for every line.
+         *
+         * @param rule the rule
+         * @return this builder
+         */
+        public Builder forEveryLine(PromotionRule rule) {
+            everyLine.add(requireRule(rule));
+            return this;
+        }
+
+        /**
+         * Builds and indexes the engine. The builder cannot be used afterwards.
+         *
+         * @return the immutable engine
+         */
+        public PromotionEngine build() {
+            requireNotBuilt();
+            built = true;
+            return new PromotionEngine(this);
+        }
+
+        private PromotionRule requireRule(PromotionRule rule) {
+            requireNotBuilt();
+            if (rule == null) {
+                throw new IllegalArgumentException("Rule cannot be null");
+            }
+            return rule;
+        }
+
+        private void requireNotBuilt() {
+            if (built) {
+                throw new IllegalStateException("Engine already built");
+            }
+        }
+    }
+}
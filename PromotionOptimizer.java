@@ -0,0 +1,578 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the stack of promotions giving the lowest legal price: which candidate discounts to apply, and in what order.
+ *
+ * Order matters: taking 10% off and then 5.00 off is cheaper than the reverse, and caps from
+ * {@link DiscountStrategy#withMaxDiscount(double)} change the picture further, so trying every ordered subset
+ * of 20 candidates (about 6.6 * 10^18 stacks) is out of the question. Instead the search works on sets of applied
+ * promotions, one stack size at a time, and keeps for each set only the lowest amount any order of it reaches
+ * and the promotion applied last to get there. Each set is settled once, so the work grows with the number of sets
+ * rather than the number of orderings. Branches are pruned three ways:
+ * <ul>
+ * <li>A promotion that does not lower the current amount is never applied, since skipping it keeps more options open.</li>
+ * <li>A set whose amount is no lower than that of one of its subsets is not extended: whatever could follow it
+ * could follow the subset too, at a lower amount and with fewer promotions.</li>
+ * <li>Exclusivity and the maximum stack size cut branches before they are evaluated.</li>
+ * </ul>
+ * Keeping one amount per set relies on every candidate being non-decreasing: a lower amount in must never give
+ * a higher amount out. Every built-in strategy and every composition of them is; a custom strategy that is not
+ * may be mis-ranked.
+ *
+ * The sets of one stack size are extended in parallel on a fork/join pool, meeting in a shared lock-free table.
+ * A stack is legal if it respects the constraints. The amount never goes below zero: a promotion taking off more
+ * than is left brings it to zero, as {@link FlatDiscount} does, which also keeps the pruning sound.
+ * Among stacks reaching the same price, the one with the fewest promotions wins.
+ */
+public final class PromotionOptimizer {
+    /** The most candidates one optimizer accepts; sets of promotions are held as bits of a long. */
+    public static final int MAX_CANDIDATES = 64;
+    /** The most sets one search may reach before it gives up. */
+    public static final int MAX_SETS = 1 << 22;
+
+    // A table value packs the amount with the index of the promotion applied last, plus one so zero means empty
+    private static final int LAST_BITS = 6;
+    private static final long MAX_TOTAL = Long.MAX_VALUE >>> (LAST_BITS + 1);
+    private static final int CHUNK = 2048;
+    // Up to this many candidates, a search reaching a good share of all sets indexes its table directly by set
+    private static final int DENSE_CANDIDATES = 21;
+
+    private final String[] names;
+    private final DiscountStrategy[] strategies;
+    private final long[] conflicts;
+    private final int maxStack;
+    private final ForkJoinPool pool;
+
+    private PromotionOptimizer(Builder builder, ForkJoinPool pool) {
+        int count = builder.names.size();
+        names = builder.names.toArray(new String[0]);
+        strategies = new DiscountStrategy[count];
+        conflicts = new long[count];
+        for (int i = 0; i < count; i++) {
+            strategies[i] = builder.strategies.get(i).compile();
+            for (int j = 0; j < count; j++) {
+                String group = builder.groups.get(i);
+                boolean exclusive = builder.exclusive.get(i) || builder.exclusive.get(j);
+                if (i == j || exclusive || (group != null && group.equals(builder.groups.get(j)))) {
+                    conflicts[i] |= 1L << j;
+                }
+            }
+        }
+        maxStack = Math.min(builder.maxStack, count);
+        this.pool = pool;
+    }
+
+    /**
+     * Starts building an optimizer.
+     *
+     * @return an empty builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Finds the best stack for a cart's current total.
+     *
+     * @param cart the cart
+     * @return the best stack and the price it gives
+     * @throws IllegalStateException if the search would reach more than {@link #MAX_SETS} sets
+     */
+    public Result optimize(Cart cart) {
+        if (cart == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        return optimize(cart.calculateTotalMinor());
+    }
+
+    /**
+     * Finds the best stack for a total.
+     *
+     * @param totalMinor the total before promotions, in cents
+     * @return the best stack and the price it gives
+     * @throws IllegalArgumentException if the total is negative or too large to search
+     * @throws IllegalStateException if the search would reach more than {@link #MAX_SETS} sets;
+     *         exclusivity groups or a smaller maximum stack narrow it
+     */
+    public Result optimize(long totalMinor) {
+        if (totalMinor < 0 || totalMinor > MAX_TOTAL) {
+            throw new IllegalArgumentException("Total must be between 0 and " + MAX_TOTAL + " cents");
+        }
+        Search search = new Search(totalMinor);
+        search.run();
+
+        List<String> stack = new ArrayList<>();
+        List<DiscountStrategy> steps = new ArrayList<>();
+        for (long set = search.bestSet; set != 0; ) {
+            int last = search.lastOf(set);
+            stack.add(names[last]);
+            steps.add(strategies[last]);
+            set &= ~(1L << last);
+        }
+        Collections.reverse(stack);
+        Collections.reverse(steps);
+        return new Result(totalMinor, search.bestAmount, Collections.unmodifiableList(stack),
+                          new Stack(steps.toArray(new DiscountStrategy[0])), search.explored);
+    }
+
+    public int getCandidateCount() {
+        return names.length;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    private void runOnPool(Runnable task) {
+        if (ForkJoinPool.commonPool() == pool) {
+            task.run();
+        } else {
+            pool.invoke(ForkJoinTask.adapt(task));
+        }
+    }
+
+    // Whether the sets within the stack limit are a large enough share of all sets to give each its own slot
+    private boolean dense() {
+        if (names.length > DENSE_CANDIDATES) {
+            return false;
+        }
+        long sets = 0;
+        long choose = 1;
+        for (int k = 1; k <= maxStack; k++) {
+            choose = choose * (names.length - k + 1) / k;
+            sets += choose;
+        }
+        return sets >= (1L << names.length) / 8;
+    }
+
+    /**
+     * One optimization: a table from each reached set to the lowest amount reaching it, filled one stack size at a time.
+     * A dense table has a slot for every possible set; otherwise sets are hashed into a table grown between layers.
+     */
+    private final class Search {
+        private final long totalMinor;
+        private final boolean dense = dense();
+        private final AtomicInteger size = new AtomicInteger();
+        private AtomicLongArray keys = new AtomicLongArray(dense ? 0 : 16);
+        private AtomicLongArray values = new AtomicLongArray(dense ? 1 << names.length : 16);
+        private long bestSet;
+        private long bestAmount;
+        private long explored;
+        private volatile boolean overflowed;
+
+        Search(long totalMinor) {
+            this.totalMinor = totalMinor;
+            this.bestAmount = totalMinor;
+        }
+
+        void run() {
+            long[] layer = {0L};
+            for (int depth = 0; layer.length > 0; depth++) {
+                boolean extend = depth < maxStack;
+                if (extend && !dense) {
+                    ensureCapacity((long) size.get() + (long) layer.length * names.length);
+                }
+                long[] sets = layer;
+                int chunks = (sets.length + CHUNK - 1) / CHUNK;
+                Chunk[] results = new Chunk[chunks];
+                if (chunks == 1) {
+                    results[0] = visit(sets, 0, sets.length, extend);
+                } else {
+                    runOnPool(() -> IntStream.range(0, chunks).parallel().forEach(c -> {
+                        results[c] = visit(sets, c * CHUNK, Math.min(sets.length, (c + 1) * CHUNK), extend);
+                    }));
+                }
+
+                if (overflowed) {
+                    throw new IllegalStateException("More than " + MAX_SETS + " promotion sets to search;"
+                                                    + " use exclusivity groups or a smaller maximum stack");
+                }
+
+                int reached = 0;
+                long layerSet = 0;
+                long layerAmount = Long.MAX_VALUE;
+                for (Chunk chunk : results) {
+                    explored += chunk.visited;
+                    reached += chunk.reached;
+                    if (chunk.bestAmount < layerAmount || (chunk.bestAmount == layerAmount && chunk.bestSet < layerSet)) {
+                        layerAmount = chunk.bestAmount;
+                        layerSet = chunk.bestSet;
+                    }
+                }
+                // Layers go by increasing stack size, so a later layer must be strictly cheaper to win
+                if (layerAmount < bestAmount) {
+                    bestAmount = layerAmount;
+                    bestSet = layerSet;
+                }
+                layer = new long[reached];
+                int at = 0;
+                for (Chunk chunk : results) {
+                    System.arraycopy(chunk.next, 0, layer, at, chunk.reached);
+                    at += chunk.reached;
+                }
+            }
+        }
+
+        // Settles and extends the sets of one layer in [from, to); the values of the layer are final by now
+        private Chunk visit(long[] sets, int from, int to, boolean extend) {
+            Chunk chunk = new Chunk();
+            for (int s = from; s < to; s++) {
+                long set = sets[s];
+                long amount = amountOf(set);
+                long blocked = 0;
+                boolean dominated = false;
+                for (long rest = set; rest != 0; rest &= rest - 1) {
+                    int member = Long.numberOfTrailingZeros(rest);
+                    blocked |= conflicts[member];
+                    long subset = set & ~(1L << member);
+                    if (subset != 0 && amountOf(subset) <= amount) {
+                        dominated = true;
+                        break;
+                    }
+                }
+                if (dominated) {
+                    continue;
+                }
+                chunk.visited++;
+                if (amount < chunk.bestAmount || (amount == chunk.bestAmount && set < chunk.bestSet)) {
+                    chunk.bestAmount = amount;
+                    chunk.bestSet = set;
+                }
+                if (!extend || amount == 0) {
+                    continue;
+                }
+                for (int candidate = 0; candidate < strategies.length; candidate++) {
+                    if ((blocked & 1L << candidate) != 0) {
+                        continue;
+                    }
+                    long next = Math.max(strategies[candidate].applyDiscountMinor(amount), 0);
+                    if (next < amount && offer(set | 1L << candidate, next, candidate)) {
+                        chunk.add(set | 1L << candidate);
+                    }
+                }
+            }
+            return chunk;
+        }
+
+        /**
+         * Records that a set was reached at an amount with the given promotion last, keeping the lowest.
+         *
+         * @return true if this call added the set to the table, so it belongs to the next layer
+         */
+        private boolean offer(long set, long amount, int last) {
+            int slot = dense ? (int) set : slotFor(set);
+            if (slot < 0) {
+                return false;
+            }
+            long value = (amount << LAST_BITS | last) + 1;
+            for (long recorded = values.get(slot); recorded == 0 || value < recorded; recorded = values.get(slot)) {
+                if (values.compareAndSet(slot, recorded, value)) {
+                    // Exactly one thread fills an empty slot, and it lists the set for the next layer
+                    return recorded == 0;
+                }
+            }
+            return false;
+        }
+
+        // Finds or claims the slot of a set in a hashed table, or gives -1 if the table may grow no further
+        private int slotFor(long set) {
+            int mask = keys.length() - 1;
+            for (int slot = slot(set, mask); ; slot = (slot + 1) & mask) {
+                long key = keys.get(slot);
+                if (key == 0) {
+                    if (size.get() >= MAX_SETS) {
+                        // The table must stay sparse; the layer is abandoned and reported once it completes
+                        overflowed = true;
+                        return -1;
+                    }
+                    if (keys.compareAndSet(slot, 0, set)) {
+                        size.incrementAndGet();
+                        return slot;
+                    }
+                    key = keys.get(slot);
+                }
+                if (key == set) {
+                    return slot;
+                }
+            }
+        }
+
+        // An unreached set reads as a value of zero, which decodes to an amount above any total
+        private long amountOf(long set) {
+            return set == 0 ? totalMinor : (valueOf(set) - 1) >>> LAST_BITS;
+        }
+
+        int lastOf(long set) {
+            return (int) ((valueOf(set) - 1) & ((1 << LAST_BITS) - 1));
+        }
+
+        private long valueOf(long set) {
+            if (dense) {
+                return values.get((int) set);
+            }
+            int mask = keys.length() - 1;
+            for (int slot = slot(set, mask); ; slot = (slot + 1) & mask) {
+                long key = keys.get(slot);
+                if (key == set) {
+                    return values.get(slot);
+                }
+                if (key == 0) {
+                    return 0;
+                }
+            }
+        }
+
+        // Called between layers, when no thread is using the table
+        private void ensureCapacity(long sets) {
+            long needed = Long.highestOneBit(Math.max(8, Math.min(sets, MAX_SETS)) - 1) << 2;
+            if (needed <= keys.length()) {
+                return;
+            }
+            AtomicLongArray oldKeys = keys;
+            AtomicLongArray oldValues = values;
+            keys = new AtomicLongArray((int) needed);
+            values = new AtomicLongArray((int) needed);
+            int mask = keys.length() - 1;
+            for (int i = 0; i < oldKeys.length(); i++) {
+                long key = oldKeys.get(i);
+                if (key != 0) {
+                    int slot = slot(key, mask);
+                    while (keys.get(slot) != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys.set(slot, key);
+                    values.set(slot, oldValues.get(i));
+                }
+            }
+        }
+    }
+
+    private static int slot(long set, int mask) {
+        long h = set * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * What one parallel task found: the sets it added for the next layer and its best set.
+     */
+    private static final class Chunk {
+        private long[] next = new long[16];
+        private int reached;
+        private long visited;
+        private long bestSet;
+        private long bestAmount = Long.MAX_VALUE;
+
+        void add(long set) {
+            if (reached == next.length) {
+                next = Arrays.copyOf(next, reached * 2);
+            }
+            next[reached++] = set;
+        }
+    }
+
+    /**
+     * Promotions applied in order, each result floored at zero as the search does.
+     */
+    private static final class Stack implements DiscountStrategy {
+        private final DiscountStrategy[] steps;
+
+        Stack(DiscountStrategy[] steps) {
+            this.steps = steps;
+        }
+
+        @Override
+        public double applyDiscount(double totalAmount) {
+            double amount = totalAmount;
+            for (DiscountStrategy step : steps) {
+                amount = Math.max(step.applyDiscount(amount), 0);
+            }
+            return amount;
+        }
+
+        @Override
+        public long applyDiscountMinor(long totalMinor) {
+            long amount = totalMinor;
+            for (DiscountStrategy step : steps) {
+                amount = Math.max(step.applyDiscountMinor(amount), 0);
+            }
+            return amount;
+        }
+    }
+
+    /**
+     * The best stack found for a total.
+     */
+    public static final class Result {
+        private final long originalMinor;
+        private final long totalMinor;
+        private final List<String> promotions;
+        private final DiscountStrategy strategy;
+        private final long statesExplored;
+
+        Result(long originalMinor, long totalMinor, List<String> promotions, DiscountStrategy strategy,
+               long statesExplored) {
+            this.originalMinor = originalMinor;
+            this.totalMinor = totalMinor;
+            this.promotions = promotions;
+            this.strategy = strategy;
+            this.statesExplored = statesExplored;
+        }
+
+        /**
+         * Gets the total after the best stack.
+         *
+         * @return the discounted total in cents
+         */
+        public long getTotalMinor() {
+            return totalMinor;
+        }
+
+        public double getTotal() {
+            return Money.toMajor(totalMinor);
+        }
+
+        public long getDiscountMinor() {
+            return originalMinor - totalMinor;
+        }
+
+        /**
+         * Gets the names of the promotions to apply, in the order to apply them.
+         *
+         * @return an unmodifiable list, empty if no promotion lowers the total
+         */
+        public List<String> getPromotions() {
+            return promotions;
+        }
+
+        /**
+         * Gets the best stack as one strategy, which can be applied to the total again.
+         * Like the search, it floors the amount at zero after every promotion.
+         *
+         * @return the promotions combined in order
+         */
+        public DiscountStrategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Gets the number of sets of promotions the search settled and extended, a measure of how well it pruned.
+         *
+         * @return the explored set count
+         */
+        public long getStatesExplored() {
+            return statesExplored;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{total=" + Money.format(totalMinor) + ", promotions=" + promotions
+                   + ", statesExplored=" + statesExplored + '}';
+        }
+    }
+
+    /**
+     * Collects candidate promotions and constraints. A builder is not thread-safe.
+     */
+    public static final class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<DiscountStrategy> strategies = new ArrayList<>();
+        private final List<String> groups = new ArrayList<>();
+        private final List<Boolean> exclusive = new ArrayList<>();
+        private int maxStack = Integer.MAX_VALUE;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a candidate that may stack with any other.
+         *
+         * @param name the name reported in results
+         * @param strategy the discount
+         * @return this builder
+         */
+        public Builder add(String name, DiscountStrategy strategy) {
+            return add(name, strategy, null, false);
+        }
+
+        /**
+         * Adds a candidate belonging to an exclusivity group: at most one candidate of a group is applied.
+         *
+         * @param name the name reported in results
+         * @param strategy the discount
+         * @param group the exclusivity group, or null for none
+         * @return this builder
+         */
+        public Builder add(String name, DiscountStrategy strategy, String group) {
+            return add(name, strategy, group, false);
+        }
+
+        /**
+         * Adds a candidate that cannot be combined with any other.
+         *
+         * @param name the name reported in results
+         * @param strategy the discount
+         * @return this builder
+         */
+        public Builder addExclusive(String name, DiscountStrategy strategy) {
+            return add(name, strategy, null, true);
+        }
+
+        /**
+         * Limits how many promotions one stack may apply.
+         *
+         * @param maxStack the largest stack, at least one
+         * @return this builder
+         */
+        public Builder maxStack(int maxStack) {
+            if (maxStack <= 0) {
+                throw new IllegalArgumentException("Maximum stack size must be positive");
+            }
+            this.maxStack = maxStack;
+            return this;
+        }
+
+        /**
+         * Builds an optimizer searching on the common fork/join pool.
+         *
+         * @return the optimizer
+         */
+        public PromotionOptimizer build() {
+            return build(ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Builds an optimizer searching on the given pool, whose parallelism bounds the threads used.
+         *
+         * @param pool the pool to search on
+         * @return the optimizer
+         */
+        public PromotionOptimizer build(ForkJoinPool pool) {
+            if (pool == null) {
+                throw new IllegalArgumentException("Pool cannot be null");
+            }
+            return new PromotionOptimizer(this, pool);
+        }
+
+        private Builder add(String name, DiscountStrategy strategy, String group, boolean alone) {
+            if (name == null || strategy == null) {
+                throw new IllegalArgumentException("Name and strategy cannot be null");
+            }
+            if (names.size() == MAX_CANDIDATES) {
+                throw new IllegalArgumentException("At most " + MAX_CANDIDATES + " candidates are supported");
+            }
+            names.add(name);
+            strategies.add(strategy);
+            groups.add(group);
+            exclusive.add(alone);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how long PromotionOptimizer takes to find the best stack as the number of candidates grows,
+ * unconstrained and with exclusivity groups and a stack limit, on fork/join pools of 1 up to N threads.
+ * Candidates are a random mix of percentage, flat, capped and composed discounts.
+ * For reference, the number of ordered stacks a brute-force search would evaluate is printed with each size.
+ * Unconstrained searches of more than 22 candidates exceed {@link PromotionOptimizer#MAX_SETS} and are reported as such.
+ *
+ * Usage: java PromotionOptimizerBenchmark [maxCandidates] [maxThreads]
+ */
+public class PromotionOptimizerBenchmark {
+
+    public static void main(String[] args) {
+        int maxCandidates = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long totalMinor = 250_000;
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, total "
+                           + Money.format(totalMinor));
+        for (int candidates = 8; candidates <= maxCandidates; candidates += 4) {
+            System.out.println(candidates + " candidates, " + String.format("%.3g", orderedStacks(candidates, candidates))
+                               + " ordered stacks unconstrained, "
+                               + String.format("%.3g", orderedStacks(candidates, 5)) + " up to 5 deep");
+            for (int threads = 1; threads <= maxThreads; threads++) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                measure("  unconstrained, " + threads + " thread" + (threads == 1 ? "" : "s"),
+                        candidates(candidates, false, 0).build(pool), totalMinor);
+                measure("  4 groups, max 5, " + threads + " thread" + (threads == 1 ? "" : "s"),
+                        candidates(candidates, true, 5).build(pool), totalMinor);
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void measure(String label, PromotionOptimizer optimizer, long totalMinor) {
+        PromotionOptimizer.Result result;
+        try {
+            result = optimizer.optimize(totalMinor);
+        } catch (IllegalStateException e) {
+            System.out.println(String.format("%-48s %s", label, e.getMessage()));
+            return;
+        }
+        double nanos = BenchmarkRunner.nanosPerOperation(3, 5, 1, () -> optimizer.optimize(totalMinor).getTotalMinor());
+        BenchmarkRunner.report(label, nanos / 1e6, "ms/solve, " + result.getStatesExplored() + " sets explored, "
+                                                   + result.getPromotions().size() + " applied");
+    }
+
+    private static PromotionOptimizer.Builder candidates(int count, boolean grouped, int maxStack) {
+        Random random = new Random(count);
+        PromotionOptimizer.Builder builder = PromotionOptimizer.builder();
+        for (int i = 0; i < count; i++) {
+            DiscountStrategy strategy;
+            switch (random.nextInt(4)) {
+                case 0:
+                    strategy = new PercentageDiscount(1 + random.nextInt(15));
+                    break;
+                case 1:
+                    strategy = new FlatDiscount(1 + random.nextInt(100));
+                    break;
+                case 2:
+                    strategy = DiscountStrategy.percentageDiscount(5 + random.nextInt(20))
+                                               .withMaxDiscount(20 + random.nextInt(200));
+                    break;
+                default:
+                    strategy = new FlatDiscount(random.nextInt(30)).combineWith(new PercentageDiscount(random.nextInt(5)));
+                    break;
+            }
+            String group = grouped && i % 3 != 0 ? "group" + i % 4 : null;
+            builder.add("promotion" + i, strategy, group);
+        }
+        if (maxStack > 0) {
+            builder.maxStack(maxStack);
+        }
+        return builder;
+    }
+
+    // The number of ordered stacks of up to maxStack distinct candidates
+    private static double orderedStacks(int candidates, int maxStack) {
+        double stacks = 0;
+        double permutations = 1;
+        for (int k = 1; k <= Math.min(candidates, maxStack); k++) {
+            permutations *= candidates - k + 1;
+            stacks += permutations;
+        }
+        return stacks;
+    }
+}
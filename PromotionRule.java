@@ -0,0 +1,84 @@
+/**
+ * A promotion evaluated on one cart line at a time.
+ *
+ * Unlike a {@link DiscountStrategy}, which only sees a cart total, a rule sees a line's quantity and unit price,
+ * so it can express "20% off headphones" or "buy 2 get 1 free". Which lines a rule applies to is decided
+ * where it is registered with a {@link PromotionEngine}: a product id, a category, or every line.
+ * Rules must be stateless, since one rule is shared by every cart the engine evaluates.
+ */
+@FunctionalInterface
+public interface PromotionRule {
+
+    /**
+     * Computes the discount this rule gives a line.
+     *
+     * @param quantity the number of units on the line, at least one
+     * @param unitPriceMinor the unit price the cart charges, in cents
+     * @return the discount in cents; the engine never gives more than the line total
+     */
+    long discountMinor(int quantity, long unitPriceMinor);
+
+    /**
+     * Restricts this rule to lines holding at least the given number of units.
+     *
+     * @param minQuantity the smallest quantity the rule applies to
+     * @return a rule giving no discount below the threshold
+     * @throws IllegalArgumentException if the threshold is not positive
+     */
+    default PromotionRule fromQuantity(int minQuantity) {
+        if (minQuantity <= 0) {
+            throw new IllegalArgumentException("Minimum quantity must be positive");
+        }
+        PromotionRule rule = this;
+        return (quantity, unitPriceMinor) -> quantity < minQuantity ? 0 : rule.discountMinor(quantity, unitPriceMinor);
+    }
+
+    /**
+     * Takes a percentage off the line total, rounding the discount to the nearest cent, ties to even.
+     *
+     * @param percentage the percentage (e.g., 20 for 20%)
+     * @return the rule
+     * @throws IllegalArgumentException if the percentage is not in range [0, 100]
+     */
+    static PromotionRule percentOff(double percentage) {
+        if (percentage < 0 || percentage > 100) {
+            throw new IllegalArgumentException("Discount percentage must be between 0 and 100.");
+        }
+        return (quantity, unitPriceMinor) -> {
+            long lineTotal = unitPriceMinor * quantity;
+            return lineTotal - Money.discountByPercent(lineTotal, percentage, Money.DEFAULT_ROUNDING);
+        };
+    }
+
+    /**
+     * Takes a fixed amount off every unit, never more than the unit price.
+     *
+     * @param amount the amount off each unit
+     * @return the rule
+     * @throws IllegalArgumentException if the amount is negative
+     */
+    static PromotionRule amountOffEach(double amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Discount amount cannot be negative.");
+        }
+        long amountMinor = Money.ofMajor(amount);
+        return (quantity, unitPriceMinor) -> Math.min(amountMinor, unitPriceMinor) * quantity;
+    }
+
+    /**
+     * Buy some, get some free: out of every {@code buy + free} units, {@code free} cost nothing.
+     * Incomplete groups get nothing, so "buy 2 get 1" makes the third unit free but not the second.
+     *
+     * @param buy the units paid for in each group
+     * @param free the units given free in each group
+     * @return the rule
+     * @throws IllegalArgumentException if either count is not positive
+     */
+    static PromotionRule buyGetFree(int buy, int free) {
+        if (buy <= 0 || free <= 0) {
+            throw new IllegalArgumentException("Bought and free units must be positive");
+        }
+        long group = (long) buy + free;
+        return (quantity, unitPriceMinor) -> quantity / group * free * unitPriceMinor;
+    }
+}
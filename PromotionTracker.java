@@ -0,0 +1,142 @@
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the promotion discount of one cart current as the cart changes, see {@link PromotionEngine#track(Cart)}.
+ *
+ * The tracker listens to the cart's line changes and re-evaluates only the line that changed, so reading
+ * the discount costs nothing and changing a line costs the rules of that line alone. Lines no rule applies to
+ * are skipped after a single index lookup.
+ *
+ * The tracker is thread-safe, so a ConcurrentCart may be tracked while other threads change it.
+ * Close the tracker to stop listening; the cart otherwise keeps it reachable.
+ */
+public final class PromotionTracker implements AutoCloseable {
+    private final PromotionEngine engine;
+    private final Cart cart;
+    private final Cart.LineListener listener = new Listener();
+    // Keyed by identity: a cart reports each line with the same product instance, whose price may change
+    private final Map<Product, Long> lineDiscounts = new IdentityHashMap<>();
+    private long discountMinor;
+    // Lines changed while the initial evaluation ran, whose snapshot state may be older than the events
+    private Map<Product, Boolean> changedWhileStarting = new IdentityHashMap<>();
+    private boolean clearedWhileStarting;
+
+    PromotionTracker(PromotionEngine engine, Cart cart) {
+        if (cart == null) {
+            throw new IllegalArgumentException("Cart cannot be null");
+        }
+        this.engine = engine;
+        this.cart = cart;
+        // Listen first, then evaluate a snapshot, so no change can fall between the two
+        cart.addLineListener(listener);
+        List<CartLine> lines = cart.getLines();
+        synchronized (this) {
+            if (!clearedWhileStarting) {
+                for (CartLine line : lines) {
+                    if (!changedWhileStarting.containsKey(line.getProduct())) {
+                        update(line.getProduct(), line.getQuantity(), line.getUnitPriceMinor());
+                    }
+                }
+            }
+            changedWhileStarting = null;
+        }
+    }
+
+    public Cart getCart() {
+        return cart;
+    }
+
+    /**
+     * Gets the current promotion discount of the cart.
+     *
+     * @return the discount in cents
+     */
+    public synchronized long getDiscountMinor() {
+        return discountMinor;
+    }
+
+    /**
+     * Gets the current promotion discount of the cart.
+     *
+     * @return the discount in major units
+     */
+    public double getDiscount() {
+        return Money.toMajor(getDiscountMinor());
+    }
+
+    /**
+     * Gets the current discount of one line.
+     *
+     * @param product the product on the line
+     * @return the line's discount in cents, zero if it has none or is not in the cart
+     */
+    public synchronized long getLineDiscountMinor(Product product) {
+        for (Map.Entry<Product, Long> line : lineDiscounts.entrySet()) {
+            if (line.getKey().equals(product)) {
+                return line.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the cart total less the promotion discount. For a cart changed by other threads
+     * the two are read one after the other, not atomically.
+     *
+     * @return the discounted total in cents
+     */
+    public long getTotalMinor() {
+        return cart.calculateTotalMinor() - getDiscountMinor();
+    }
+
+    /**
+     * Stops tracking the cart. The discount is no longer updated afterwards.
+     */
+    @Override
+    public void close() {
+        cart.removeLineListener(listener);
+    }
+
+    private synchronized void lineChanged(Product product, int quantity, long unitPriceMinor) {
+        if (changedWhileStarting != null) {
+            changedWhileStarting.put(product, Boolean.TRUE);
+        }
+        update(product, quantity, unitPriceMinor);
+    }
+
+    private synchronized void cartCleared() {
+        if (changedWhileStarting != null) {
+            clearedWhileStarting = true;
+        }
+        lineDiscounts.clear();
+        discountMinor = 0;
+    }
+
+    private void update(Product product, int quantity, long unitPriceMinor) {
+        long discount = quantity == 0 ? 0 : engine.lineDiscountMinor(product, quantity, unitPriceMinor);
+        Long old = discount == 0 ? lineDiscounts.remove(product) : lineDiscounts.put(product, discount);
+        discountMinor += discount - (old == null ? 0 : old);
+    }
+
+    @Override
+    public String toString() {
+        return "PromotionTracker{discount=" + Money.format(getDiscountMinor()) + '}';
+    }
+
+    private final class Listener implements Cart.LineListener {
+        @Override
+        public void lineChanged(Cart changed, Product product, int quantity, long unitPriceMinor) {
+            // Most lines of a large catalog have no rule; skip them without taking the tracker's lock
+            if (engine.appliesTo(product)) {
+                PromotionTracker.this.lineChanged(product, quantity, unitPriceMinor);
+            }
+        }
+
+        @Override
+        public void cartCleared(Cart changed) {
+            PromotionTracker.this.cartCleared();
+        }
+    }
+}
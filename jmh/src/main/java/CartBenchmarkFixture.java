@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import benchmarks.CartFixture;
+
+/**
+ * The cart and operations timed by benchmarks.CartBenchmark, kept in the default package with the cart classes.
+ */
+public class CartBenchmarkFixture implements CartFixture {
+    private static final int IDS = 1_024;
+
+    private final Cart cart = new Cart();
+    private final Cart[] carts;
+    private final CartService service;
+    private final Product extra;
+    private final long[] ids = new long[IDS];
+    private final Path file;
+
+    public CartBenchmarkFixture(int size) throws IOException {
+        Random random = new Random(size);
+        for (long id = 0; id < size; id++) {
+            cart.addProduct(new Product(id, "Catalog item " + id, 1 + random.nextInt(50_000) / 100.0));
+        }
+        Cart copy = new Cart();
+        cart.forEachLine(copy::addProduct);
+        carts = new Cart[] {cart, copy};
+        service = new CartService(cart);
+        extra = new Product((long) size, "Extra item", 9.99);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextInt(size);
+        }
+        file = Files.createTempFile("cart-bench", ".dat");
+        CartFileHandler.saveCart(cart, file.toString());
+    }
+
+    @Override
+    public int addAndRemoveProduct() {
+        cart.addProduct(extra);
+        cart.removeProduct(extra);
+        return cart.getLineCount();
+    }
+
+    @Override
+    public Object findProductById(int index) {
+        return cart.findProductById(ids[index & (IDS - 1)]);
+    }
+
+    @Override
+    public double calculateTotal(int index) {
+        return carts[index & 1].calculateTotal();
+    }
+
+    @Override
+    public Object getMostExpensiveProduct() {
+        return service.getMostExpensiveProduct();
+    }
+
+    @Override
+    public Object findProductsBelowPrice() {
+        return service.findProductsBelowPrice(50);
+    }
+
+    @Override
+    public void saveCart() throws IOException {
+        CartFileHandler.saveCart(cart, file.toString());
+    }
+
+    @Override
+    public Object loadCart() throws IOException {
+        try {
+            return CartFileHandler.loadCart(file.toString());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.Random;
+
+import benchmarks.DiscountFixture;
+
+/**
+ * The discount chain and totals used by benchmarks.DiscountChainBenchmark,
+ * kept in the default package with the discount classes.
+ */
+public class DiscountChainFixture implements DiscountFixture {
+    private static final int TOTALS = 1_024;
+
+    private final DiscountStrategy chain;
+    private final long[] totals = new long[TOTALS];
+
+    public DiscountChainFixture(int length) {
+        Random random = new Random(length);
+        DiscountStrategy composed = DiscountStrategy.noDiscount();
+        for (int i = 0; i < length; i++) {
+            composed = composed.combineWith(i % 2 == 0 ? new PercentageDiscount(1 + random.nextInt(10))
+                                                       : new FlatDiscount(random.nextInt(5)));
+        }
+        chain = composed.withMaxDiscount(100);
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = 100 + random.nextInt(1_000_000);
+        }
+    }
+
+    @Override
+    public long applyDiscountMinor(int index) {
+        return chain.applyDiscountMinor(totals[index & (TOTALS - 1)]);
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Random;
+
+import benchmarks.PipelineFixture;
+
+/**
+ * The promotion stacks used by benchmarks.DiscountPipelineBenchmark,
+ * kept in the default package with the discount classes.
+ */
+public class DiscountPipelineFixture implements PipelineFixture {
+    private final DiscountStrategy[] nested = new DiscountStrategy[STACKS];
+    private final DiscountStrategy[] compiled = new DiscountStrategy[STACKS];
+    private final double[] totals = new double[TOTALS];
+
+    public DiscountPipelineFixture(int depth) {
+        Random random = new Random(depth);
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = 10 + random.nextInt(500_000) / 100.0;
+        }
+        for (int s = 0; s < STACKS; s++) {
+            nested[s] = randomStack(random, depth);
+            compiled[s] = nested[s].compile();
+            verify(nested[s], compiled[s]);
+        }
+    }
+
+    @Override
+    public double evaluateNested() {
+        return evaluate(nested);
+    }
+
+    @Override
+    public double evaluateCompiled() {
+        return evaluate(compiled);
+    }
+
+    private double evaluate(DiscountStrategy[] stacks) {
+        double sum = 0;
+        for (DiscountStrategy stack : stacks) {
+            for (double total : totals) {
+                sum += stack.applyDiscount(total);
+            }
+        }
+        return sum;
+    }
+
+    private void verify(DiscountStrategy chain, DiscountStrategy pipeline) {
+        for (double total : totals) {
+            double expected = chain.applyDiscount(total);
+            double actual = pipeline.applyDiscount(total);
+            if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)) {
+                throw new IllegalStateException("Compiled pipeline gave " + actual + " instead of " + expected
+                                                + " for " + total);
+            }
+            long totalMinor = Money.ofMajor(total);
+            if (chain.applyDiscountMinor(totalMinor) != pipeline.applyDiscountMinor(totalMinor)) {
+                throw new IllegalStateException("Compiled pipeline differs in cents for " + totalMinor);
+            }
+        }
+    }
+
+    private static DiscountStrategy randomStack(Random random, int rules) {
+        DiscountStrategy stack = DiscountStrategy.noDiscount();
+        for (int r = 0; r < rules; r++) {
+            DiscountStrategy rule;
+            switch (random.nextInt(5)) {
+                case 0:
+                    rule = new PercentageDiscount(random.nextInt(30));
+                    break;
+                case 1:
+                    rule = new FlatDiscount(random.nextInt(2_000) / 100.0);
+                    break;
+                case 2:
+                    rule = DiscountStrategy.percentageDiscount(random.nextInt(15) + 0.5);
+                    break;
+                case 3:
+                    rule = DiscountStrategy.fixedAmountDiscount(random.nextInt(500) / 100.0);
+                    break;
+                default:
+                    rule = DiscountStrategy.from(amount -> amount > 100 ? amount - 1 : amount);
+                    break;
+            }
+            stack = stack.combineWith(rule);
+            if (random.nextInt(4) == 0) {
+                stack = stack.withMaxDiscount(random.nextInt(20_000) / 100.0);
+            }
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the cart's hot paths at several cart sizes: adding, removing and finding products, totals,
+ * the price queries of CartService, and saving and loading cart files.
+ *
+ * Save results with JMH's -rf json -rff file options and compare runs made on the same machine
+ * to catch a regression before rollout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int size;
+
+    private CartFixture cart;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        cart = CartFixture.create(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cart.close();
+    }
+
+    @Benchmark
+    public int addAndRemoveProduct() {
+        return cart.addAndRemoveProduct();
+    }
+
+    @Benchmark
+    public void findProductById(Blackhole blackhole) {
+        blackhole.consume(cart.findProductById(next++));
+    }
+
+    @Benchmark
+    public void calculateTotal(Blackhole blackhole) {
+        // Alternates between two equal carts, or the JIT could read the unchanging total once for the whole loop
+        blackhole.consume(cart.calculateTotal(next++));
+    }
+
+    @Benchmark
+    public void getMostExpensiveProduct(Blackhole blackhole) {
+        blackhole.consume(cart.getMostExpensiveProduct());
+    }
+
+    @Benchmark
+    public void findProductsBelowPrice(Blackhole blackhole) {
+        blackhole.consume(cart.findProductsBelowPrice());
+    }
+
+    @Benchmark
+    public void saveCart() throws IOException {
+        cart.saveCart();
+    }
+
+    @Benchmark
+    public void loadCart(Blackhole blackhole) throws IOException {
+        blackhole.consume(cart.loadCart());
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.IOException;
+
+/**
+ * A cart of a given size and the operations the benchmarks time on it.
+ *
+ * JMH only accepts benchmarks in a named package, and a named package cannot refer to the cart classes,
+ * which live in the default package. The benchmarks therefore reach the cart through this interface,
+ * implemented by CartBenchmarkFixture in the default package and loaded by name.
+ */
+public interface CartFixture {
+
+    /**
+     * Creates a cart of products with random prices, the same for every run with the same size.
+     *
+     * @param size the number of products in the cart
+     * @return the fixture
+     * @throws IOException if the cart file for the save and load cases cannot be written
+     */
+    static CartFixture create(int size) throws IOException {
+        return Fixtures.create("CartBenchmarkFixture", CartFixture.class, size);
+    }
+
+    /**
+     * Adds a product not yet in the cart and removes it again.
+     *
+     * @return the number of lines afterwards
+     */
+    int addAndRemoveProduct();
+
+    /**
+     * Finds a product by the id of one of the cart's products.
+     *
+     * @param index selects the id among a fixed set of random ids
+     * @return the product found, if any
+     */
+    Object findProductById(int index);
+
+    /**
+     * Totals the cart, or an equal copy of it.
+     *
+     * @param index selects the cart or its copy, so the total cannot be read once for the whole loop
+     * @return the total
+     */
+    double calculateTotal(int index);
+
+    /**
+     * Finds the most expensive product through CartService.
+     *
+     * @return the product
+     */
+    Object getMostExpensiveProduct();
+
+    /**
+     * Finds the products below a price through CartService, about a tenth of the cart.
+     *
+     * @return the products found
+     */
+    Object findProductsBelowPrice();
+
+    /**
+     * Saves the cart to its file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void saveCart() throws IOException;
+
+    /**
+     * Loads the cart saved to its file.
+     *
+     * @return the loaded products
+     * @throws IOException if the file cannot be read
+     */
+    Object loadCart() throws IOException;
+
+    /**
+     * Deletes the cart file.
+     *
+     * @throws IOException if the file cannot be deleted
+     */
+    void close() throws IOException;
+}
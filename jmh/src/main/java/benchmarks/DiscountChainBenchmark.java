@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks a capped chain of percentage and flat discounts composed with DiscountStrategy.combineWith,
+ * at several chain lengths, applied to varying totals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscountChainBenchmark {
+
+    @Param({"1", "4", "16"})
+    private int length;
+
+    private DiscountFixture chain;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        chain = DiscountFixture.create(length);
+    }
+
+    @Benchmark
+    public void applyDiscountMinor(Blackhole blackhole) {
+        blackhole.consume(chain.applyDiscountMinor(next++));
+    }
+}
@@ -0,0 +1,35 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A composed discount chain and the totals the benchmarks apply it to,
+ * implemented in the default package with the discount classes.
+ *
+ * @see CartFixture
+ */
+public interface DiscountFixture {
+
+    /**
+     * Creates a capped chain of alternating percentage and flat discounts, the same for every run with the length.
+     *
+     * @param length the number of discounts in the chain
+     * @return the fixture
+     */
+    static DiscountFixture create(int length) {
+        try {
+            return Fixtures.create("DiscountChainFixture", DiscountFixture.class, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies the chain to one of a fixed set of random totals.
+     *
+     * @param index selects the total
+     * @return the discounted total in cents
+     */
+    long applyDiscountMinor(int index);
+}
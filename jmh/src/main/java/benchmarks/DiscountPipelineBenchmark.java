@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares evaluating promotion stacks as nested DiscountStrategy chains with evaluating the same stacks
+ * compiled by DiscountPipeline, at several stack depths. Every stack is checked to give identical results
+ * in both forms before timing.
+ *
+ * Several differently shaped stacks are evaluated in turn, so the nested chains' call sites see many receiver
+ * types. Scores are per evaluation of one stack on one total.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscountPipelineBenchmark {
+
+    @Param({"10", "30"})
+    private int depth;
+
+    private PipelineFixture stacks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stacks = PipelineFixture.create(depth);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PipelineFixture.STACKS * PipelineFixture.TOTALS)
+    public double nestedChain() {
+        return stacks.evaluateNested();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PipelineFixture.STACKS * PipelineFixture.TOTALS)
+    public double compiledPipeline() {
+        return stacks.evaluateCompiled();
+    }
+}
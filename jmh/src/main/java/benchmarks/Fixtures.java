@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Loads the fixtures that reach the default-package cart classes for the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a fixture by the name of its default-package class, which has a public constructor taking a size.
+     *
+     * @param className the fixture class
+     * @param type the interface the fixture implements
+     * @param size the size passed to the constructor
+     * @param <T> the fixture type
+     * @return the new fixture
+     * @throws IOException if the fixture's constructor throws it
+     */
+    static <T> T create(String className, Class<T> type, int size) throws IOException {
+        try {
+            return Class.forName(className).asSubclass(type).getConstructor(int.class).newInstance(size);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot create " + className, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+}
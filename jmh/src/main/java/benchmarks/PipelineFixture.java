@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Promotion stacks built as nested DiscountStrategy chains and compiled by DiscountPipeline,
+ * implemented in the default package with the discount classes.
+ *
+ * @see CartFixture
+ */
+public interface PipelineFixture {
+
+    /** The number of differently shaped stacks, evaluated in turn as in a promotion simulation. */
+    int STACKS = 8;
+
+    /** The number of totals each stack is applied to. */
+    int TOTALS = 1_024;
+
+    /**
+     * Creates random stacks, the same for every run with the depth, and checks that both forms of each stack
+     * give identical results.
+     *
+     * @param depth the number of rules in each stack
+     * @return the fixture
+     * @throws IllegalStateException if a compiled stack differs from its chain
+     */
+    static PipelineFixture create(int depth) {
+        try {
+            return Fixtures.create("DiscountPipelineFixture", PipelineFixture.class, depth);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies every nested chain to every total.
+     *
+     * @return the sum of the discounted totals
+     */
+    double evaluateNested();
+
+    /**
+     * Applies every compiled pipeline to every total.
+     *
+     * @return the sum of the discounted totals
+     */
+    double evaluateCompiled();
+}